@@ -0,0 +1,28 @@
+package com.datastax.faultytowers;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Defines a single class from bytes given to it, and delegates every other class to its parent, so
+ * that benchmarks can load a class exactly as the transformer rewrote it without an agent.
+ */
+final class BenchmarkClassLoader extends ClassLoader {
+    static {
+        registerAsParallelCapable();
+    }
+
+    BenchmarkClassLoader() {
+        super(BenchmarkClassLoader.class.getClassLoader());
+    }
+
+    Class<?> define(String className, byte[] bytes) {
+        return defineClass(className, bytes, 0, bytes.length);
+    }
+
+    static byte[] classFile(Class<?> c) throws IOException {
+        try (InputStream in = c.getResourceAsStream(c.getSimpleName() + ".class")) {
+            return in.readAllBytes();
+        }
+    }
+}
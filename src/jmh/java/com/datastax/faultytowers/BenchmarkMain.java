@@ -0,0 +1,56 @@
+package com.datastax.faultytowers;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Runs every benchmark and writes the results as JSON, one file per run, so that the cost of the
+ * agent's hot path can be tracked from build to build:
+ * <ul>
+ *   <li>{@code injection-<n>-threads.json} for {@link InjectionBenchmark} with 1, 8 and 64 threads</li>
+ *   <li>{@code transform.json} for {@link TransformBenchmark}</li>
+ *   <li>{@code call-scope.json} for {@link CallScopeBenchmark}</li>
+ *   <li>{@code thread-filter.json} for {@link ThreadFilterBenchmark}</li>
+ *   <li>{@code budget-<n>-threads.json} for {@link BudgetBenchmark} with 1, 8 and 64 threads</li>
+ * </ul>
+ *
+ * Run with {@code mvn -Pjmh -DskipTests verify}. The output directory is the first argument. The forked
+ * benchmark JVMs inherit this JVM's options.
+ */
+public class BenchmarkMain {
+    private static final int[] THREADS = {1, 8, 64};
+
+    public static void main(String[] args) throws IOException, RunnerException {
+        Path output = Paths.get(args.length > 0 ? args[0] : "target/jmh");
+        Files.createDirectories(output);
+
+        for (int threads : THREADS) {
+            run(new OptionsBuilder()
+                    .include(InjectionBenchmark.class.getName())
+                    .threads(threads), output.resolve("injection-" + threads + "-threads.json"));
+        }
+        run(new OptionsBuilder().include(TransformBenchmark.class.getName()), output.resolve("transform.json"));
+        run(new OptionsBuilder().include(CallScopeBenchmark.class.getName()), output.resolve("call-scope.json"));
+        run(new OptionsBuilder().include(ThreadFilterBenchmark.class.getName()), output.resolve("thread-filter.json"));
+        for (int threads : THREADS) {
+            run(new OptionsBuilder()
+                    .include(BudgetBenchmark.class.getName())
+                    .threads(threads), output.resolve("budget-" + threads + "-threads.json"));
+        }
+    }
+
+    private static void run(ChainedOptionsBuilder options, Path result) throws RunnerException {
+        new Runner(options
+                .resultFormat(ResultFormatType.JSON)
+                .result(result.toString())
+                .build()).run();
+    }
+}
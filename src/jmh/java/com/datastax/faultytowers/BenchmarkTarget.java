@@ -0,0 +1,17 @@
+package com.datastax.faultytowers;
+
+import java.util.function.IntUnaryOperator;
+
+/**
+ * The method measured by {@link InjectionBenchmark}. It can throw an unchecked exception, so it is a
+ * candidate for injection, and it is called through an interface so that the call is as cheap as the
+ * JIT can make it.
+ */
+public class BenchmarkTarget implements IntUnaryOperator {
+    @Override
+    public int applyAsInt(int x) {
+        if (x == Integer.MIN_VALUE)
+            throw new IllegalArgumentException();
+        return x * 31 + 7;
+    }
+}
@@ -0,0 +1,53 @@
+package com.datastax.faultytowers;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The cost of taking a permit from the {@link Budget} for the JVM as a site fires, run with as many
+ * threads as {@link BenchmarkMain} asks for:
+ * <ul>
+ *   <li>{@code none}: no budget at all.</li>
+ *   <li>{@code 1000000000/1s}: a budget with plenty of room, so every call takes a permit.</li>
+ *   <li>{@code 1/1h}: an empty budget, so every call is refused.</li>
+ * </ul>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BudgetBenchmark {
+    @Param({"none", "1000000000/1s", "1/1h"})
+    public String budget;
+
+    @Setup
+    public void setUp() {
+        Budget.setCurrent(budget.equals("none") ? null
+                : new Budget(RateLimit.parse(budget), null, 0, Runtime.getRuntime().availableProcessors()));
+        Budget.tryAcquire(0);
+    }
+
+    @TearDown
+    public void tearDown() {
+        Budget.setCurrent(null);
+    }
+
+    @Benchmark
+    public boolean acquire() {
+        return Budget.tryAcquire(0);
+    }
+}
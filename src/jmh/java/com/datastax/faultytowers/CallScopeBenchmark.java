@@ -0,0 +1,54 @@
+package com.datastax.faultytowers;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The cost of the call scope, see {@link CallScope}.
+ *
+ * <ul>
+ *   <li>{@code check}: the gate an armed site passes before sampling, with scoping off or on.</li>
+ *   <li>{@code enterCheckExit}: an entry point's markers around one check.</li>
+ * </ul>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CallScopeBenchmark {
+    @Param({"false", "true"})
+    public boolean scoped;
+
+    @Setup
+    public void setUp() {
+        CallScope.setScoped(scoped);
+    }
+
+    @Benchmark
+    public boolean check() {
+        return CallScope.allows();
+    }
+
+    @Benchmark
+    public boolean enterCheckExit() {
+        CallScope.enter();
+        try {
+            return CallScope.allows();
+        } finally {
+            CallScope.exit();
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.datastax.faultytowers;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * The cost of calling a method with an injected prologue, compared with the same method left alone.
+ *
+ * <ul>
+ *   <li>{@code uninstrumented}: the original method.</li>
+ *   <li>{@code armed}: the prologue samples a tiny probability on every call and almost never throws.</li>
+ *   <li>{@code disarmed}: the site has used up its throw limit and its call site has been relinked to
+ *   a no-op.</li>
+ *   <li>{@code throwing}: every call throws and the exception is caught by the caller.</li>
+ * </ul>
+ *
+ * Each variant runs in its own fork, so the agent's static state never leaks between them. The
+ * target is transformed and loaded directly rather than through an attached agent.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class InjectionBenchmark {
+    private static final String TARGET = BenchmarkTarget.class.getName();
+
+    @Param({"uninstrumented", "armed", "disarmed", "throwing"})
+    public String variant;
+
+    private IntUnaryOperator target;
+    private int input = 42;
+
+    @Setup
+    public void setUp() throws Exception {
+        BenchmarkClassLoader loader = new BenchmarkClassLoader();
+        byte[] bytes = BenchmarkClassLoader.classFile(BenchmarkTarget.class);
+        if (!variant.equals("uninstrumented")) {
+            ExceptionThrower.setCountEveryHit(false);
+            ExceptionThrower thrower = new ExceptionThrower(1.0, 42, null, true);
+            bytes = thrower.transform(loader, TARGET.replace('.', '/'), null, null, bytes);
+            if (bytes == null)
+                throw new IllegalStateException(TARGET + " was not transformed");
+        }
+        target = (IntUnaryOperator) loader.define(TARGET, bytes).getDeclaredConstructor().newInstance();
+
+        switch (variant) {
+            case "armed":
+                ExceptionThrower.setThrowLimit(Long.MAX_VALUE);
+                ExceptionThrower.setProbability(TARGET, 1e-12);
+                break;
+            case "disarmed":
+                ExceptionThrower.setThrowLimit(1);
+                call();
+                break;
+            case "throwing":
+                ExceptionThrower.setThrowLimit(Long.MAX_VALUE);
+                break;
+        }
+    }
+
+    @Benchmark
+    public int call() {
+        try {
+            return target.applyAsInt(input);
+        } catch (IllegalArgumentException e) {
+            return -1;
+        }
+    }
+}
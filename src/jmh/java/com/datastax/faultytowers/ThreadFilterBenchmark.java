@@ -0,0 +1,46 @@
+package com.datastax.faultytowers;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The cost of the thread filter, see {@link ThreadFilter}, that an armed site checks before sampling:
+ * with no filter, and with one whose result every thread has already cached.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ThreadFilterBenchmark {
+    @Param({"", "group:main|jmh-worker-*"})
+    public String threads;
+
+    @Setup
+    public void setUp() {
+        ThreadFilter.setCurrent(threads.isEmpty() ? null : ThreadFilter.parse(threads));
+    }
+
+    @TearDown
+    public void tearDown() {
+        ThreadFilter.setCurrent(null);
+    }
+
+    @Benchmark
+    public boolean check() {
+        return ThreadFilter.allows();
+    }
+}
@@ -0,0 +1,81 @@
+package com.datastax.faultytowers;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+/**
+ * Throughput of {@link ExceptionThrower#transform} in classes per second, over every class in the jars
+ * on the benchmark's class path (Guava, Commons CLI, JMH itself and so on). Each operation transforms
+ * the next class in the corpus, so the mix of rejected, unchanged and rewritten classes is that of
+ * real libraries.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class TransformBenchmark {
+    @Param({"0.01", "1.0"})
+    public double probability;
+
+    private final List<String> names = new ArrayList<>();
+    private final List<byte[]> classFiles = new ArrayList<>();
+    private ExceptionThrower thrower;
+    private ClassLoader loader;
+    private int next;
+
+    @Setup
+    public void setUp() throws IOException {
+        for (String path : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            if (!path.endsWith(".jar"))
+                continue;
+            try (JarFile jar = new JarFile(path)) {
+                Enumeration<JarEntry> entries = jar.entries();
+                while (entries.hasMoreElements()) {
+                    JarEntry entry = entries.nextElement();
+                    String name = entry.getName();
+                    if (!name.endsWith(".class") || name.endsWith("module-info.class"))
+                        continue;
+                    names.add(name.substring(0, name.length() - ".class".length()));
+                    classFiles.add(jar.getInputStream(entry).readAllBytes());
+                }
+            }
+        }
+        if (names.isEmpty())
+            throw new IllegalStateException("No classes found on the class path");
+
+        thrower = new ExceptionThrower(probability, 42, null, false);
+        loader = TransformBenchmark.class.getClassLoader();
+    }
+
+    @Benchmark
+    public byte[] transform() {
+        int i = next;
+        next = i + 1 == names.size() ? 0 : i + 1;
+        try {
+            return thrower.transform(loader, names.get(i), null, null, classFiles.get(i));
+        } catch (RuntimeException e) {
+            // The JVM ignores a transformer that throws, so a failed class just costs its time
+            return null;
+        }
+    }
+}
@@ -1,31 +1,195 @@
 package com.datastax.faultytowers;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.Closeable;
+import java.io.IOException;
 import java.lang.instrument.Instrumentation;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
 
 public class Agent {
+    /**
+     * The agent arguments that remove an installed agent rather than installing a new one.
+     */
+    static final String UNLOAD = "unload";
+
+    private static Instrumentation instrumentation;
+    private static ExceptionThrower thrower;
+    private static MetricsSnapshot snapshot;
+
     /**
      * Entry point for statically loading the agent via -javaagent.
-     * @param agentArgs The probability of throwing an exception
+     * @param agentArgs The agent options, see {@link AgentOptions}
      * @param inst The instrumentation object
      */
     public static void premain(String agentArgs, Instrumentation inst) {
         System.out.println("Premain called");
-        agentmain(agentArgs, inst);
+        try {
+            // Nothing interesting has been loaded yet
+            install(AgentOptions.parse(agentArgs), inst, false);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
     }
 
     /**
      * Entry point for dynamically loading the agent via Attach API.
-     * @param agentArgs The probability of throwing an exception
+     * @param agentArgs The agent options, see {@link AgentOptions}, or {@link #UNLOAD} to remove the agent
      * @param inst The instrumentation object
      */
     public static void agentmain(String agentArgs, Instrumentation inst) {
         System.out.println("Agentmain called");
-        double throwProbability = Double.parseDouble(agentArgs);
+        if (UNLOAD.equals(agentArgs)) {
+            unload();
+            return;
+        }
+
         try {
-            ExceptionThrower thrower = new ExceptionThrower(throwProbability);
-            inst.addTransformer(thrower);
+            AgentOptions options = AgentOptions.parse(agentArgs);
+            install(options, inst, options.isInstrumentLoaded());
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
+
+    /**
+     * @param instrumentLoaded Whether to also instrument the classes that are already loaded
+     */
+    private static synchronized void install(AgentOptions options, Instrumentation inst, boolean instrumentLoaded)
+            throws Exception {
+        long attachNanos = System.nanoTime();
+        if (thrower != null) {
+            System.out.println("Faulty Towers is already installed");
+            return;
+        }
+
+        System.out.println("Faulty Towers seed: " + options.getSeed());
+
+        EventLog events = EventLog.global();
+        if (options.getRecordPath() != null)
+            events.addSink(new ReplayRecorder(options.getRecordPath(), options.getSeed()));
+        if (options.getNdjsonPath() != null)
+            events.addSink(new NdjsonSink(options.getNdjsonPath()));
+        events.start(options.getEventLogPath());
+
+        ReplayPlan replayPlan = null;
+        if (options.getReplayPath() != null) {
+            replayPlan = ReplayPlan.load(options.getReplayPath());
+            System.out.println("Replaying exceptions for " + replayPlan.size() + " sites");
+        }
+
+        MethodProfile profile = null;
+        if (options.getProfilePath() != null) {
+            profile = MethodProfile.load(options.getProfilePath(), options.isHotSelection(), options.getProfileFraction());
+            System.out.println("Profile selected " + profile.size() + " "
+                    + (options.isHotSelection() ? "hot" : "cold") + " entries");
+        }
+
+        // Sampled hits need not be counted exactly unless they are being recorded
+        ExceptionThrower.setCountEveryHit(options.getRecordPath() != null);
+
+        ExceptionThrower newThrower = new ExceptionThrower(options.getProbability(), options.getSeed(), replayPlan,
+                options.isRuntimeMode(), profile);
+        newThrower.setDefaultExceptionPolicy(options.getExceptionPolicy());
+        newThrower.setDefaultLatencyFault(options.getLatencyFault());
+        newThrower.setEntryPoints(options.getEntryPoints());
+        FaultPlan plan = options.getFaultPlan();
+        if (plan != null) {
+            System.out.println("Fault plan has rules for " + plan.size() + " prefixes");
+            newThrower.setFaultPlan(plan);
+            if (plan.getClassFilter() != null)
+                newThrower.setClassFilter(plan.getClassFilter());
+        }
+        if (options.getThrowLimit() != null)
+            ExceptionThrower.setThrowLimit(options.getThrowLimit());
+        Budget budget = options.getBudget();
+        if (budget != null)
+            System.out.println("Faulty Towers budget: " + budget);
+        Budget.setCurrent(budget);
+        ThreadFilter.setCurrent(options.getThreadFilter());
+        ExceptionThrower.enableMetrics(options.isCountInvocations(), options.isRecoveryProbe());
+        ExceptionThrower.enableFaultEvents(options.isFaultEvents());
+        if (options.getCachePath() != null)
+            newThrower.setCache(ClassCache.open(options.getCachePath(), ClassCache.fingerprint(options),
+                    ClassCache.DEFAULT_SLOTS));
+        // Register the MBean before the transformer, so that a failure leaves no classes changed
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new FaultyTowersControl(newThrower),
+                    new ObjectName(FaultyTowersMXBean.OBJECT_NAME));
+        } catch (JMException e) {
+            closeQuietly(newThrower);
+            events.stop();
+            throw e;
+        }
+        // Register as retransform capable so that the JVM keeps the original bytes for unload()
+        inst.addTransformer(newThrower, true);
+        Runtime.getRuntime().addShutdownHook(new Thread(() ->
+                System.out.println("Faulty Towers transformer: " + newThrower.getTransformStats())));
+
+        if (options.getSnapshotPath() != null) {
+            MetricsSnapshot newSnapshot = MetricsSnapshot.start(options.getSnapshotPath(),
+                    options.getSnapshotIntervalNanos());
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> closeQuietly(newSnapshot)));
+            snapshot = newSnapshot;
+        }
+
+        instrumentation = inst;
+        thrower = newThrower;
+
+        if (instrumentLoaded)
+            LoadedClasses.instrument(inst, newThrower, attachNanos);
+    }
+
+    /**
+     * Remove the agent: stop transforming new classes, disarm every site, and restore the original
+     * bytecode of every class that was changed.
+     */
+    static synchronized void unload() {
+        if (thrower == null) {
+            System.out.println("Faulty Towers is not installed");
+            return;
+        }
+
+        instrumentation.removeTransformer(thrower);
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(FaultyTowersMXBean.OBJECT_NAME));
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+        // Stop throwing straight away rather than waiting for every class to be restored
+        ExceptionThrower.disarmAll();
+
+        Set<String> transformed = thrower.getTransformedClasses();
+        List<Class<?>> classes = new ArrayList<>();
+        for (Class<?> c : instrumentation.getAllLoadedClasses()) {
+            if (transformed.contains(c.getName().replace('.', '/')) && instrumentation.isModifiableClass(c))
+                classes.add(c);
+        }
+
+        Retransformer.Result result = Retransformer.retransform(instrumentation, classes,
+                Retransformer.DEFAULT_BATCH_SIZE, Runtime.getRuntime().availableProcessors());
+        System.out.println("Faulty Towers restored " + result);
+        ExceptionThrower.reset();
+
+        closeQuietly(thrower);
+        if (snapshot != null) {
+            closeQuietly(snapshot);
+            snapshot = null;
+        }
+        // Close the sinks so that their files are complete, and the next install can open its own
+        EventLog.global().stop();
+        thrower = null;
+        instrumentation = null;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
 }
@@ -0,0 +1,334 @@
+package com.datastax.faultytowers;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Options passed to the agent, either on the {@code -javaagent} command line or through the Attach
+ * API.
+ *
+ * The argument string is a comma separated list of {@code key=value} pairs, e.g.
+ * {@code probability=0.1,log=/tmp/faulty.events}. For backwards compatibility a string that is just a
+ * number is taken to be the probability.
+ *
+ * The {@code plan} option names a {@link FaultPlan} file. Any agent option set in the plan applies
+ * unless it is also given in the arguments.
+ *
+ * The {@code node} option is set for each JVM of a {@link Cluster} to its index in the cluster. Every
+ * file the agent reads or writes for itself, wherever its path came from, then has {@code .<node>}
+ * added, so the nodes do not overwrite each other's files and each replays its own recording.
+ */
+final class AgentOptions {
+    static final String PROBABILITY = "probability";
+    static final String LOG = "log";
+    static final String SEED = "seed";
+    static final String RECORD = "record";
+    static final String REPLAY = "replay";
+    static final String MODE = "mode";
+    static final String PROFILE = "profile";
+    static final String SELECT = "select";
+    static final String FRACTION = "fraction";
+    static final String LOADED = "loaded";
+    static final String CACHE = "cache";
+    static final String EXCEPTIONS = "exceptions";
+    static final String LATENCY = "latency";
+    static final String METRICS = "metrics";
+    static final String RECOVERY = "recovery";
+    static final String SNAPSHOT = "snapshot";
+    static final String SNAPSHOT_INTERVAL = "snapshotInterval";
+    static final String ENTRY = "entry";
+    static final String THREADS = "threads";
+    static final String PLAN = "plan";
+    static final String LIMIT = "limit";
+    static final String BUDGET = "budget";
+    static final String SITE_BUDGET = "siteBudget";
+    static final String DELAY = "delay";
+    static final String JFR = "jfr";
+    static final String NDJSON = "ndjson";
+    static final String NODE = "node";
+
+    // Apply the probability once per method when its class is loaded
+    static final String MODE_LOAD = "load";
+    // Instrument every candidate method and apply the probability on every call
+    static final String MODE_RUNTIME = "runtime";
+
+    // Inject into the most executed methods of the profile
+    static final String SELECT_HOT = "hot";
+    // Inject into the least executed methods of the profile
+    static final String SELECT_COLD = "cold";
+
+    private static final Set<String> KEYS = Set.of(PROBABILITY, LOG, SEED, RECORD, REPLAY, MODE, PROFILE, SELECT,
+            FRACTION, LOADED, CACHE, EXCEPTIONS,
+            LATENCY, METRICS, RECOVERY, SNAPSHOT, SNAPSHOT_INTERVAL, ENTRY, THREADS, PLAN, LIMIT,
+            BUDGET, SITE_BUDGET, DELAY, JFR, NDJSON, NODE);
+    // The options naming a file that each node of a cluster needs its own copy of
+    private static final String[] NODE_FILES = {LOG, RECORD, REPLAY, SNAPSHOT, NDJSON};
+    private static final String DEFAULT_SNAPSHOT_INTERVAL = "10s";
+    static final String DEFAULT_LOG = "/tmp/faulty.events";
+
+    private final Map<String, String> values;
+    private final FaultPlan faultPlan;
+    private final long seed;
+
+    private AgentOptions(Map<String, String> values) {
+        this(values, null);
+    }
+
+    private AgentOptions(Map<String, String> values, FaultPlan faultPlan) {
+        this.values = Collections.unmodifiableMap(values);
+        this.faultPlan = faultPlan;
+        // Pick a seed now if none was given so that every caller sees the same one
+        this.seed = values.containsKey(SEED) ? Long.parseLong(values.get(SEED)) : SiteRandom.newSeed();
+    }
+
+    /**
+     * @throws IllegalArgumentException if the arguments are malformed or contain an unknown key.
+     * @throws IOException if the fault plan cannot be read or is malformed.
+     */
+    static AgentOptions parse(String agentArgs) throws IOException {
+        Map<String, String> values = new LinkedHashMap<>();
+        if (agentArgs == null || agentArgs.trim().isEmpty())
+            return new AgentOptions(values);
+
+        if (agentArgs.indexOf('=') < 0) {
+            values.put(PROBABILITY, agentArgs.trim());
+            return new AgentOptions(values);
+        }
+
+        for (String pair : agentArgs.split(",")) {
+            int equals = pair.indexOf('=');
+            if (equals <= 0)
+                throw new IllegalArgumentException("Expected key=value but got '" + pair + "'");
+
+            String key = pair.substring(0, equals).trim();
+            if (!KEYS.contains(key))
+                throw new IllegalArgumentException("Unknown agent option '" + key + "'");
+            values.put(key, pair.substring(equals + 1).trim());
+        }
+
+        FaultPlan plan = null;
+        if (values.containsKey(PLAN)) {
+            plan = FaultPlan.load(Paths.get(values.get(PLAN)));
+            for (Map.Entry<String, String> option : plan.getOptions().entrySet()) {
+                if (!KEYS.contains(option.getKey()) || option.getKey().equals(PLAN) || option.getKey().equals(NODE))
+                    throw new IllegalArgumentException("Unknown agent option '" + option.getKey() + "' in "
+                            + values.get(PLAN));
+                values.putIfAbsent(option.getKey(), option.getValue());
+            }
+        }
+        if (values.containsKey(NODE))
+            addNodeSuffix(values);
+        return new AgentOptions(values, plan);
+    }
+
+    // Done once the plan's options are in, so that the paths it gives are suffixed too
+    private static void addNodeSuffix(Map<String, String> values) {
+        int node = Integer.parseInt(values.get(NODE));
+        if (node < 0)
+            throw new IllegalArgumentException("Expected a node index of 0 or more but got " + node);
+        for (String option : NODE_FILES) {
+            String path = option.equals(LOG) ? values.getOrDefault(option, DEFAULT_LOG) : values.get(option);
+            if (path != null)
+                values.put(option, path + "." + node);
+        }
+    }
+
+    double getProbability() {
+        return Double.parseDouble(values.getOrDefault(PROBABILITY, "1.0"));
+    }
+
+    Path getEventLogPath() {
+        return Paths.get(values.getOrDefault(LOG, DEFAULT_LOG));
+    }
+
+    /**
+     * @return true if the probability should be sampled on every call rather than once per method.
+     */
+    boolean isRuntimeMode() {
+        String mode = values.getOrDefault(MODE, MODE_LOAD);
+        if (!mode.equals(MODE_LOAD) && !mode.equals(MODE_RUNTIME))
+            throw new IllegalArgumentException("Unknown mode '" + mode + "', expected load or runtime");
+        return mode.equals(MODE_RUNTIME);
+    }
+
+    long getSeed() {
+        return seed;
+    }
+
+    /**
+     * @return The file to record thrown exceptions to, or null if they should not be recorded.
+     */
+    Path getRecordPath() {
+        return values.containsKey(RECORD) ? Paths.get(values.get(RECORD)) : null;
+    }
+
+    /**
+     * @return The replay file to re-throw exceptions from, or null if this is not a replay.
+     */
+    Path getReplayPath() {
+        return values.containsKey(REPLAY) ? Paths.get(values.get(REPLAY)) : null;
+    }
+
+    /**
+     * @return The profile or coverage file that narrows down the methods to inject into, or null if
+     * every method is a candidate.
+     */
+    Path getProfilePath() {
+        return values.containsKey(PROFILE) ? Paths.get(values.get(PROFILE)) : null;
+    }
+
+    /**
+     * @return true to inject into the most executed methods of the profile, false for the least executed.
+     */
+    boolean isHotSelection() {
+        String select = values.getOrDefault(SELECT, SELECT_HOT);
+        if (!select.equals(SELECT_HOT) && !select.equals(SELECT_COLD))
+            throw new IllegalArgumentException("Unknown selection '" + select + "', expected hot or cold");
+        return select.equals(SELECT_HOT);
+    }
+
+    /**
+     * @return The fraction of the executed methods in the profile to inject into.
+     */
+    double getProfileFraction() {
+        return Double.parseDouble(values.getOrDefault(FRACTION, "1.0"));
+    }
+
+    /**
+     * @return Whether an agent attached to a running JVM should also instrument the classes that
+     * were loaded before it was attached.
+     */
+    boolean isInstrumentLoaded() {
+        return Boolean.parseBoolean(values.getOrDefault(LOADED, "true"));
+    }
+
+    /**
+     * @return The directory of the transformed class cache shared between JVMs, or null for no cache.
+     */
+    Path getCachePath() {
+        return values.containsKey(CACHE) ? Paths.get(values.get(CACHE)) : null;
+    }
+
+    /**
+     * @return How sites build the exceptions they throw, unless changed for some of them at runtime.
+     */
+    ExceptionPolicy getExceptionPolicy() {
+        return ExceptionPolicy.parse(values.getOrDefault(EXCEPTIONS, ExceptionPolicy.FULL.toString()));
+    }
+
+    /**
+     * @return The delay every site injects in place of an exception, or null to throw exceptions.
+     */
+    LatencyFault getLatencyFault() {
+        return values.containsKey(LATENCY) ? LatencyFault.parse(values.get(LATENCY)) : null;
+    }
+
+    /**
+     * @return The methods that sites may only throw inside, or null to throw anywhere.
+     */
+    EntryPoints getEntryPoints() {
+        return values.containsKey(ENTRY) ? EntryPoints.parse(values.get(ENTRY)) : null;
+    }
+
+    /**
+     * @return The threads that sites may only throw on, or null to throw on every thread.
+     */
+    ThreadFilter getThreadFilter() {
+        return values.containsKey(THREADS) ? ThreadFilter.parse(values.get(THREADS)) : null;
+    }
+
+    /**
+     * @return The fault plan file, or null if there is none.
+     */
+    Path getPlanPath() {
+        return values.containsKey(PLAN) ? Paths.get(values.get(PLAN)) : null;
+    }
+
+    /**
+     * @return The settings of individual sites and the classes to inject into, or null if there is no plan.
+     */
+    FaultPlan getFaultPlan() {
+        return faultPlan;
+    }
+
+    /**
+     * @return The maximum number of throws from each site, or null to leave the current limit alone.
+     */
+    Long getThrowLimit() {
+        if (!values.containsKey(LIMIT))
+            return null;
+        long limit = Long.parseLong(values.get(LIMIT));
+        if (limit < 0)
+            throw new IllegalArgumentException("Throw limit must not be negative but was " + limit);
+        return limit;
+    }
+
+    /**
+     * @return The budgets that sites fire within, starting now, or null if sites may fire at any time.
+     */
+    Budget getBudget() {
+        if (!values.containsKey(BUDGET) && !values.containsKey(SITE_BUDGET) && !values.containsKey(DELAY))
+            return null;
+        RateLimit global = values.containsKey(BUDGET) ? RateLimit.parse(values.get(BUDGET)) : null;
+        RateLimit perSite = values.containsKey(SITE_BUDGET) ? RateLimit.parse(values.get(SITE_BUDGET)) : null;
+        long delayNanos = LatencyFault.parseDuration(values.getOrDefault(DELAY, "0"));
+        if (delayNanos < 0)
+            throw new IllegalArgumentException("Delay must not be negative");
+        return new Budget(global, perSite, delayNanos, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @return Whether to count every invocation of an instrumented method, even while its site is disarmed.
+     */
+    boolean isCountInvocations() {
+        return Boolean.parseBoolean(values.getOrDefault(METRICS, "false"));
+    }
+
+    /**
+     * @return Whether to inject exit probes that time the recovery from each throw.
+     */
+    boolean isRecoveryProbe() {
+        return Boolean.parseBoolean(values.getOrDefault(RECOVERY, "false"));
+    }
+
+    /**
+     * @return Whether to emit a JFR event for every injected fault.
+     */
+    boolean isFaultEvents() {
+        return Boolean.parseBoolean(values.getOrDefault(JFR, "false"));
+    }
+
+    /**
+     * @return The file to stream every event to as JSON lines, or null for no stream.
+     */
+    Path getNdjsonPath() {
+        return values.containsKey(NDJSON) ? Paths.get(values.get(NDJSON)) : null;
+    }
+
+    /**
+     * @return The file to write periodic snapshots of the site metrics to, or null for no snapshots.
+     */
+    Path getSnapshotPath() {
+        return values.containsKey(SNAPSHOT) ? Paths.get(values.get(SNAPSHOT)) : null;
+    }
+
+    /**
+     * @return The time between metrics snapshots in nanoseconds.
+     */
+    long getSnapshotIntervalNanos() {
+        long nanos = LatencyFault.parseDuration(values.getOrDefault(SNAPSHOT_INTERVAL, DEFAULT_SNAPSHOT_INTERVAL));
+        if (nanos <= 0)
+            throw new IllegalArgumentException("Snapshot interval must be positive");
+        return nanos;
+    }
+
+    @Override
+    public String toString() {
+        return values.toString();
+    }
+}
@@ -0,0 +1,157 @@
+package com.datastax.faultytowers;
+
+/**
+ * Limits how often sites fire over time, so that a long soak test keeps injecting faults at a steady
+ * rate rather than using up its throw limits in the first few minutes. There is a budget for the
+ * whole JVM, e.g. {@code 100/1s}, one for each site, e.g. {@code 1/10m}, or both, and a delay after
+ * the agent starts during which nothing fires at all, so that start up is left alone.
+ *
+ * Each budget is a token bucket kept as a single {@code long}: the time at which the bucket will be
+ * full again. Taking a permit moves that time on by one permit's worth with a compare and set, and
+ * the number of permits left is how far the time is from now, so there is no separate refill. An
+ * empty bucket is never written to, so a site that is out of budget only ever reads shared state.
+ *
+ * The budget for the JVM is split into stripes on separate cache lines, one per core up to the
+ * number of permits, and each thread takes permits from the stripe picked by its id first, so that
+ * busy sites on many cores do not fight over one counter. A thread whose stripe is empty tries the
+ * others, so a single thread can still use the whole budget.
+ */
+final class Budget {
+    // null if sites may fire at any time
+    private static volatile Budget current;
+
+    private final long originNanos;
+    private final long delayNanos;
+    private final RateLimit global;
+    private final RateLimit perSite;
+    private final int stripeMask;
+    // The time for a permit to come back to each stripe, which differ by one permit if the permits do
+    // not split evenly
+    private final long[] stripeIntervalNanos;
+    // The full time of each stripe of the JVM's bucket, each on a cache line of its own
+    private final CounterTable stripes = new CounterTable();
+    // The full time of each site's bucket, by site id
+    private final CounterTable sites = new CounterTable();
+    private final long siteIntervalNanos;
+
+    /**
+     * @param global The budget for the whole JVM, or null for none
+     * @param perSite The budget for each site, or null for none
+     * @param delayNanos The time from now before any site may fire
+     * @param cores The number of cores to spread the budget for the JVM over
+     */
+    Budget(RateLimit global, RateLimit perSite, long delayNanos, int cores) {
+        this.originNanos = System.nanoTime();
+        this.delayNanos = delayNanos;
+        this.global = global;
+        this.perSite = perSite;
+        int stripeCount = 1;
+        if (global != null) {
+            while (stripeCount < cores && stripeCount * 2L <= global.getPermits())
+                stripeCount *= 2;
+        }
+        this.stripeMask = stripeCount - 1;
+        this.stripeIntervalNanos = new long[stripeCount];
+        for (int i = 0; global != null && i < stripeCount; i++) {
+            long share = global.getPermits() / stripeCount + (i < global.getPermits() % stripeCount ? 1 : 0);
+            stripeIntervalNanos[i] = global.intervalNanos(share);
+        }
+        stripes.ensureCapacity(stripeCount - 1);
+        this.siteIntervalNanos = perSite == null ? 0 : perSite.intervalNanos();
+    }
+
+    /**
+     * @param budget The budget that sites fire within from now on, or null for none
+     */
+    static void setCurrent(Budget budget) {
+        current = budget;
+    }
+
+    static Budget getCurrent() {
+        return current;
+    }
+
+    /**
+     * Take a permit from every budget for a site that is about to fire.
+     * @return false if the site must not fire yet.
+     */
+    static boolean tryAcquire(int siteId) {
+        Budget budget = current;
+        return budget == null || budget.acquire(siteId);
+    }
+
+    /**
+     * Give back the permits taken by {@link #tryAcquire} for a site that did not fire after all.
+     */
+    static void release(int siteId) {
+        Budget budget = current;
+        if (budget != null)
+            budget.giveBack(siteId);
+    }
+
+    boolean acquire(int siteId) {
+        // Relative to the origin, so that a full bucket's time of 0 is always in the past
+        long now = System.nanoTime() - originNanos;
+        if (now < delayNanos)
+            return false;
+
+        // The site's own budget comes first, so that a site that is out of budget takes nothing from the JVM's
+        if (perSite != null) {
+            sites.ensureCapacity(siteId);
+            if (!take(sites, siteId, now, siteIntervalNanos, perSite.getPeriodNanos()))
+                return false;
+        }
+        if (global == null)
+            return true;
+
+        int first = (int) Thread.currentThread().getId() & stripeMask;
+        for (int i = 0; i <= stripeMask; i++) {
+            int stripe = (first + i) & stripeMask;
+            if (take(stripes, stripe, now, stripeIntervalNanos[stripe], global.getPeriodNanos()))
+                return true;
+        }
+        // Give the site its permit back, as it is not firing after all
+        if (perSite != null)
+            sites.addAndGet(siteId, -siteIntervalNanos);
+        return false;
+    }
+
+    void giveBack(int siteId) {
+        long now = System.nanoTime() - originNanos;
+        if (now < delayNanos)
+            return;
+        if (perSite != null)
+            sites.addAndGet(siteId, -siteIntervalNanos);
+        if (global == null)
+            return;
+        // The permit came from the first stripe in the thread's order that had one, and so is not full now
+        int first = (int) Thread.currentThread().getId() & stripeMask;
+        for (int i = 0; i <= stripeMask; i++) {
+            int stripe = (first + i) & stripeMask;
+            if (stripes.get(stripe) > now) {
+                stripes.addAndGet(stripe, -stripeIntervalNanos[stripe]);
+                return;
+            }
+        }
+    }
+
+    // Take a permit from the bucket of id, which is full again at the time it holds
+    private static boolean take(CounterTable buckets, int id, long now, long intervalNanos, long periodNanos) {
+        long full;
+        long next;
+        do {
+            full = buckets.get(id);
+            next = Math.max(full, now) + intervalNanos;
+            if (next - now > periodNanos)
+                return false;
+        } while (!buckets.compareAndSet(id, full, next));
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "global " + (global == null ? "unlimited" : global + " in " + (stripeMask + 1) + " stripes")
+                + ", per site " + (perSite == null ? "unlimited" : perSite.toString())
+                + ", delay " + delayNanos + "ns";
+    }
+}
@@ -0,0 +1,50 @@
+package com.datastax.faultytowers;
+
+/**
+ * Limits injection to the calls a thread makes while it is inside an entry method, e.g. a request
+ * handler or a compaction task, so that a method shared with paths nobody cares about only fails when
+ * it is reached from one that matters.
+ *
+ * The transformer calls {@link #enter()} at the start of every entry method and {@link #exit()} on
+ * every way out of it, by a return or an exception, so each thread counts the entry methods it is
+ * inside. Checking the scope is then a read of a flag and, only while scoping is on, of a thread
+ * local, rather than a walk of the stack. Virtual threads have thread locals of their own, so each
+ * keeps its own count.
+ */
+public final class CallScope {
+    private static final ThreadLocal<CallScope> SCOPE = ThreadLocal.withInitial(CallScope::new);
+    private static volatile boolean scoped = false;
+
+    private int depth;
+
+    private CallScope() {
+    }
+
+    /**
+     * @param entryPointsConfigured Whether injection is limited to entry methods
+     */
+    static void setScoped(boolean entryPointsConfigured) {
+        scoped = entryPointsConfigured;
+    }
+
+    /**
+     * Called on entry to an entry method.
+     */
+    public static void enter() {
+        SCOPE.get().depth++;
+    }
+
+    /**
+     * Called on every exit from an entry method.
+     */
+    public static void exit() {
+        SCOPE.get().depth--;
+    }
+
+    /**
+     * @return true if a site may throw on this thread.
+     */
+    static boolean allows() {
+        return !scoped || SCOPE.get().depth > 0;
+    }
+}
@@ -0,0 +1,181 @@
+package com.datastax.faultytowers;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A single streaming pass over a class file that finds the methods an exception could be injected
+ * into: methods with bytecode that declare a {@code throws} clause, contain an {@code ATHROW}
+ * instruction, or call a method of the same class through {@code invokestatic} or
+ * {@code invokespecial} that contains one, directly or through further such calls. These are the
+ * methods {@link ExceptionAnalyzer} may find an exception type for.
+ *
+ * This is much cheaper than building a {@link org.objectweb.asm.tree.ClassNode} because
+ * only a small record of each method is kept, and debug information and stack map frames are skipped
+ * entirely. Line numbers are only read when a line based {@link MethodProfile}
+ * needs them.
+ */
+final class CandidateScanner extends ClassVisitor {
+    private final boolean withLines;
+    private final List<String> candidates = new ArrayList<>();
+    private String className;
+    private String sourceFile;
+    // Every method with bytecode, in class file order, until visitEnd() picks out the candidates
+    private final List<ScannedMethod> methods = new ArrayList<>();
+    // The first and last line number of each candidate, in pairs, when scanning with lines
+    private int[] lines = new int[0];
+
+    private static final class ScannedMethod {
+        final String key;
+        final boolean throwsChecked;
+        boolean reachesThrow;
+        // The same class methods it calls, or null if none
+        List<String> callees;
+        int firstLine = -1;
+        int lastLine = -1;
+
+        ScannedMethod(String key, boolean throwsChecked) {
+            this.key = key;
+            this.throwsChecked = throwsChecked;
+        }
+    }
+
+    private CandidateScanner(boolean withLines) {
+        super(Opcodes.ASM9);
+        this.withLines = withLines;
+    }
+
+    /**
+     * @return The name and descriptor, e.g. {@code read(I)V}, of every candidate method in the class.
+     */
+    static List<String> scan(byte[] classFileBuffer) {
+        CandidateScanner scanner = new CandidateScanner(false);
+        new ClassReader(classFileBuffer).accept(scanner, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+        return scanner.candidates;
+    }
+
+    /**
+     * Scan a class, also reading its source file and the line numbers of each candidate.
+     */
+    static CandidateScanner scanWithLines(byte[] classFileBuffer) {
+        CandidateScanner scanner = new CandidateScanner(true);
+        new ClassReader(classFileBuffer).accept(scanner, ClassReader.SKIP_FRAMES);
+        return scanner;
+    }
+
+    List<String> getCandidates() {
+        return candidates;
+    }
+
+    /**
+     * @return The class's source file name, e.g. {@code Bar.java}, or null if it was not recorded.
+     */
+    String getSourceFile() {
+        return sourceFile;
+    }
+
+    /**
+     * @return The first line number of candidate {@code i}, or -1 if it has no line numbers.
+     */
+    int getFirstLine(int i) {
+        return lines[2 * i];
+    }
+
+    int getLastLine(int i) {
+        return lines[2 * i + 1];
+    }
+
+    @Override
+    public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+        className = name;
+    }
+
+    @Override
+    public void visitSource(String source, String debug) {
+        sourceFile = source;
+    }
+
+    @Override
+    public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+        if ((access & (Opcodes.ACC_ABSTRACT | Opcodes.ACC_NATIVE)) != 0)
+            return null;
+
+        ScannedMethod method = new ScannedMethod(name + descriptor, exceptions != null && exceptions.length > 0);
+        methods.add(method);
+        return new MethodVisitor(Opcodes.ASM9) {
+            @Override
+            public void visitInsn(int opcode) {
+                if (opcode == Opcodes.ATHROW)
+                    method.reachesThrow = true;
+            }
+
+            @Override
+            public void visitMethodInsn(int opcode, String owner, String name, String descriptor, boolean isInterface) {
+                if ((opcode == Opcodes.INVOKESTATIC || opcode == Opcodes.INVOKESPECIAL) && owner.equals(className)) {
+                    if (method.callees == null)
+                        method.callees = new ArrayList<>(2);
+                    method.callees.add(name + descriptor);
+                }
+            }
+
+            @Override
+            public void visitLineNumber(int line, Label start) {
+                if (method.firstLine < 0 || line < method.firstLine)
+                    method.firstLine = line;
+                method.lastLine = Math.max(method.lastLine, line);
+            }
+        };
+    }
+
+    @Override
+    public void visitEnd() {
+        propagateThrows();
+        for (ScannedMethod method : methods) {
+            if (!method.throwsChecked && !method.reachesThrow)
+                continue;
+            candidates.add(method.key);
+            if (withLines) {
+                int i = candidates.size() - 1;
+                if (lines.length < 2 * (i + 1))
+                    lines = Arrays.copyOf(lines, Math.max(8, 2 * lines.length));
+                lines[2 * i] = method.firstLine;
+                lines[2 * i + 1] = method.lastLine;
+            }
+        }
+    }
+
+    // Mark every method that calls a method that reaches an ATHROW, until nothing changes
+    private void propagateThrows() {
+        Map<String, ScannedMethod> byKey = null;
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (ScannedMethod method : methods) {
+                if (method.reachesThrow || method.callees == null)
+                    continue;
+                if (byKey == null) {
+                    byKey = new HashMap<>();
+                    for (ScannedMethod m : methods)
+                        byKey.put(m.key, m);
+                }
+                for (String callee : method.callees) {
+                    ScannedMethod target = byKey.get(callee);
+                    if (target != null && target.reachesThrow) {
+                        method.reachesThrow = true;
+                        changed = true;
+                        break;
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,346 @@
+package com.datastax.faultytowers;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.CodeSource;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * A content addressed cache of transformed classes on disk, shared by every JVM that uses the same
+ * directory, so that a fork that loads the same jars with the same configuration gets its classes
+ * with a lookup instead of an ASM round trip.
+ *
+ * Entries are keyed by a 128 bit hash of the original class file and a fingerprint of everything
+ * else that affects the result: the agent options, the replay, profile and plan files, and the
+ * agent's own code. An entry holds the rewritten class, or nothing if the class is left alone, plus
+ * the sites it contains so that they can be registered without parsing the class.
+ *
+ * Two files make up the cache:
+ * <ul>
+ *   <li>{@code index}: a memory mapped open addressing hash table of fixed size slots
+ *   {@code (key0, key1, offset, length)}. {@code key0} is written last with release semantics and
+ *   read with acquire semantics, so a reader that finds its key also sees the rest of the slot.</li>
+ *   <li>{@code data}: an append only log of {@code (key0, key1, length, crc, payload)} records. Readers
+ *   check the key and CRC of every record they read, so a torn or stale slot is just a miss.</li>
+ * </ul>
+ *
+ * Readers take no locks. Writers serialise on an exclusive lock of the data file, which also works
+ * between processes. When the table is too full to find a slot the entry is simply not cached.
+ */
+final class ClassCache implements Closeable {
+    static final int DEFAULT_SLOTS = 1 << 18;
+
+    private static final long MAGIC = 0x4654434143484531L; // FTCACHE1
+    private static final int HEADER_SIZE = 64;
+    private static final int SLOT_SIZE = 32;
+    private static final int KEY1 = 8;
+    private static final int OFFSET = 16;
+    private static final int LENGTH = 24;
+    private static final int RECORD_HEADER_SIZE = 24;
+    private static final int MAX_PROBES = 32;
+
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+    private static final VarHandle BYTES_AS_LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final long P1 = 0x9e3779b97f4a7c15L;
+    private static final long P2 = 0xc2b2ae3d27d4eb4fL;
+
+    /**
+     * A cached transformation.
+     */
+    static final class Entry {
+        // The name, descriptor and exception class of each injected method
+        private final List<String[]> sites;
+        // The rewritten class, or null if the class is not changed
+        private final byte[] bytes;
+
+        Entry(List<String[]> sites, byte[] bytes) {
+            this.sites = sites;
+            this.bytes = bytes;
+        }
+
+        List<String[]> getSites() {
+            return sites;
+        }
+
+        byte[] getBytes() {
+            return bytes;
+        }
+    }
+
+    private final long fingerprint;
+    private final int slots;
+    private final FileChannel indexChannel;
+    private final MappedByteBuffer index;
+    private final FileChannel data;
+
+    private ClassCache(long fingerprint, int slots, FileChannel indexChannel, MappedByteBuffer index, FileChannel data) {
+        this.fingerprint = fingerprint;
+        this.slots = slots;
+        this.indexChannel = indexChannel;
+        this.index = index;
+        this.data = data;
+    }
+
+    /**
+     * Open the cache in {@code directory}, creating it if needed.
+     * @param fingerprint A hash of the configuration, see {@link #fingerprint(AgentOptions)}
+     * @param slots The number of slots in a new index, a power of two
+     */
+    static ClassCache open(Path directory, long fingerprint, int slots) throws IOException {
+        if (Integer.bitCount(slots) != 1)
+            throw new IllegalArgumentException("Slots must be a power of two but was " + slots);
+
+        Files.createDirectories(directory);
+        FileChannel data = FileChannel.open(directory.resolve("data"),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        FileChannel indexChannel = FileChannel.open(directory.resolve("index"),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            // The first JVM to take the lock sizes the index and every other JVM uses that size
+            FileLock lock = data.lock();
+            try {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                indexChannel.read(header, 0);
+                header.flip();
+                if (header.remaining() >= 12 && header.getLong(0) == MAGIC) {
+                    slots = header.getInt(8);
+                } else {
+                    header = ByteBuffer.allocate(HEADER_SIZE);
+                    header.putLong(0, MAGIC).putInt(8, slots);
+                    indexChannel.write(header, 0);
+                    // Sparse on most file systems, so an empty table costs no disk space
+                    indexChannel.write(ByteBuffer.allocate(1), HEADER_SIZE + (long) slots * SLOT_SIZE - 1);
+                }
+            } finally {
+                lock.release();
+            }
+            MappedByteBuffer index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0,
+                    HEADER_SIZE + (long) slots * SLOT_SIZE);
+            return new ClassCache(fingerprint, slots, indexChannel, index, data);
+        } catch (IOException | RuntimeException e) {
+            data.close();
+            indexChannel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return A hash of everything apart from the class itself that changes how a class is transformed.
+     */
+    static long fingerprint(AgentOptions options) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        // In runtime mode every candidate is instrumented whatever the probability and seed, so runs with
+        // different seeds can share the cache
+        out.writeBoolean(options.isRuntimeMode());
+        if (!options.isRuntimeMode()) {
+            out.writeDouble(options.getProbability());
+            out.writeLong(options.getSeed());
+        }
+        out.writeBoolean(options.isHotSelection());
+        out.writeDouble(options.getProfileFraction());
+        // Exit probes are part of the transformed class
+        out.writeBoolean(options.isRecoveryProbe());
+        // So are the entry and exit markers of entry points
+        out.writeUTF(String.valueOf(options.getEntryPoints()));
+        for (Path path : new Path[] {options.getReplayPath(), options.getProfilePath(), options.getPlanPath()})
+            out.write(path == null ? new byte[0] : Files.readAllBytes(path));
+        writeAgentCode(out);
+        return hash(bytes.toByteArray(), 0)[0];
+    }
+
+    // Every class of the agent, and the ASM it bundles, can change how a class is transformed, so the
+    // whole jar, or every class file of the directory the agent was loaded from, is part of the fingerprint
+    private static void writeAgentCode(DataOutputStream out) throws IOException {
+        CodeSource codeSource = ClassCache.class.getProtectionDomain().getCodeSource();
+        if (codeSource == null || codeSource.getLocation() == null)
+            throw new IOException("Cannot find the agent's code to fingerprint");
+        Path location;
+        try {
+            location = Paths.get(codeSource.getLocation().toURI());
+        } catch (URISyntaxException | IllegalArgumentException e) {
+            throw new IOException("Cannot fingerprint the agent's code at " + codeSource.getLocation(), e);
+        }
+        if (!Files.isDirectory(location)) {
+            out.write(Files.readAllBytes(location));
+            return;
+        }
+        List<Path> classFiles;
+        try (Stream<Path> files = Files.walk(location)) {
+            classFiles = files.filter(file -> file.toString().endsWith(".class")).sorted().collect(Collectors.toList());
+        }
+        for (Path classFile : classFiles) {
+            out.writeUTF(location.relativize(classFile).toString());
+            out.write(Files.readAllBytes(classFile));
+        }
+    }
+
+    /**
+     * @return The cached transformation of {@code classFile}, or null if there is none.
+     */
+    Entry get(byte[] classFile) {
+        long[] key = hash(classFile, fingerprint);
+        int mask = slots - 1;
+        int slot = (int) key[1] & mask;
+        for (int probe = 0; probe < MAX_PROBES; probe++, slot = (slot + 1) & mask) {
+            int base = HEADER_SIZE + slot * SLOT_SIZE;
+            long key0 = (long) LONGS.getAcquire(index, base);
+            if (key0 == 0)
+                return null;
+            if (key0 == key[0] && index.getLong(base + KEY1) == key[1])
+                return read(key, index.getLong(base + OFFSET), index.getInt(base + LENGTH));
+        }
+        return null;
+    }
+
+    /**
+     * Cache the transformation of {@code classFile}. Failures are ignored, as the class can always be
+     * transformed again.
+     */
+    synchronized void put(byte[] classFile, Entry entry) {
+        long[] key = hash(classFile, fingerprint);
+        try {
+            FileLock lock = data.lock();
+            try {
+                putLocked(key, entry);
+            } finally {
+                lock.release();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Called with the data file locked
+    private void putLocked(long[] key, Entry entry) throws IOException {
+        int mask = slots - 1;
+        int slot = (int) key[1] & mask;
+        for (int probe = 0; probe < MAX_PROBES; probe++, slot = (slot + 1) & mask) {
+            int base = HEADER_SIZE + slot * SLOT_SIZE;
+            long key0 = (long) LONGS.getAcquire(index, base);
+            if (key0 == key[0] && index.getLong(base + KEY1) == key[1])
+                return;
+            if (key0 != 0)
+                continue;
+
+            byte[] payload = encode(entry);
+            long offset = data.size();
+            ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + payload.length);
+            record.putLong(key[0]).putLong(key[1]).putInt(payload.length).putInt(crc(payload)).put(payload).flip();
+            while (record.hasRemaining())
+                data.write(record, offset + record.position());
+
+            index.putLong(base + KEY1, key[1]);
+            index.putLong(base + OFFSET, offset);
+            index.putInt(base + LENGTH, payload.length);
+            LONGS.setRelease(index, base, key[0]);
+            return;
+        }
+    }
+
+    private Entry read(long[] key, long offset, int length) {
+        try {
+            ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + length);
+            while (record.hasRemaining()) {
+                if (data.read(record, offset + record.position()) < 0)
+                    return null;
+            }
+            record.flip();
+            if (record.getLong() != key[0] || record.getLong() != key[1] || record.getInt() != length)
+                return null;
+            int crc = record.getInt();
+            byte[] payload = new byte[length];
+            record.get(payload);
+            return crc == crc(payload) ? decode(payload) : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static byte[] encode(Entry entry) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(entry.sites.size());
+        for (String[] site : entry.sites) {
+            for (String field : site)
+                out.writeUTF(field);
+        }
+        out.writeInt(entry.bytes == null ? -1 : entry.bytes.length);
+        if (entry.bytes != null)
+            out.write(entry.bytes);
+        return bytes.toByteArray();
+    }
+
+    private static Entry decode(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        int siteCount = in.readInt();
+        List<String[]> sites = siteCount == 0 ? Collections.emptyList() : new ArrayList<>(siteCount);
+        for (int i = 0; i < siteCount; i++)
+            sites.add(new String[] {in.readUTF(), in.readUTF(), in.readUTF()});
+        int length = in.readInt();
+        byte[] bytes = null;
+        if (length >= 0) {
+            bytes = new byte[length];
+            in.readFully(bytes);
+        }
+        return new Entry(sites, bytes);
+    }
+
+    private static int crc(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * A 128 bit hash of {@code data}, eight bytes at a time in two independent lanes. The first half
+     * is never 0, which marks an empty slot.
+     */
+    static long[] hash(byte[] data, long seed) {
+        long h1 = seed ^ P1;
+        long h2 = Long.rotateLeft(seed, 32) ^ P2;
+        int i = 0;
+        for (; i + 8 <= data.length; i += 8) {
+            long w = (long) BYTES_AS_LONGS.get(data, i);
+            h1 = Long.rotateLeft(h1 ^ w * P1, 31) * P2;
+            h2 = Long.rotateLeft(h2 + w * P2, 27) * P1 + h1;
+        }
+        long tail = 0;
+        for (int j = data.length - 1; j >= i; j--)
+            tail = tail << 8 | (data[j] & 0xFF);
+        h1 = SiteRandom.mix(h1 ^ tail * P1 ^ data.length);
+        h2 = SiteRandom.mix(h2 ^ tail * P2 ^ h1);
+        return new long[] {h1 == 0 ? 1 : h1, h2};
+    }
+
+    /**
+     * Close the files of the cache. The index stays mapped until it is garbage collected, but is never
+     * read or written again, and a transform still running sees every entry as a miss.
+     */
+    @Override
+    public void close() throws IOException {
+        data.close();
+        indexChannel.close();
+    }
+}
@@ -0,0 +1,82 @@
+package com.datastax.faultytowers;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decides whether a class is eligible for injection by looking only at its internal name, e.g.
+ * {@code org/apache/cassandra/db/ReadCommand}, so that classes can be rejected before their bytecode
+ * is parsed.
+ *
+ * Include and exclude prefixes are compiled into a single {@link PrefixTrie}. A class name is matched by
+ * walking the trie once, and the longest matching prefix decides: excluding {@code org/foo/internal/}
+ * while including {@code org/foo/} keeps everything in {@code org/foo/} apart from the internal
+ * package. When no include prefixes are given every class that is not excluded is eligible.
+ *
+ * Nested and anonymous classes (names containing {@code $}) are never eligible.
+ */
+final class ClassNameFilter {
+    // Do not transform bytecode for JDK classes other transformers.
+    static final List<String> DEFAULT_EXCLUDES = Collections.unmodifiableList(Arrays.asList(
+            "java/",
+            "sun/",
+            "jdk/",
+            "com/sun/",
+            "org/junit/",
+            "org/apache/maven/surefire/",
+            "org/jacoco/",
+            "org/apache/tools",
+            "org/slf4j",
+            "ch/qos"));
+
+    private final PrefixTrie<Boolean> rules;
+    private final boolean includeByDefault;
+
+    private ClassNameFilter(Collection<String> includes, Collection<String> excludes) {
+        this.includeByDefault = includes.isEmpty();
+        Map<String, Boolean> rules = new HashMap<>();
+        includes.forEach(prefix -> rules.put(prefix.replace('.', '/'), Boolean.TRUE));
+        // Excludes are added last so that they win if the same prefix is both included and excluded
+        excludes.forEach(prefix -> rules.put(prefix.replace('.', '/'), Boolean.FALSE));
+        this.rules = PrefixTrie.of(rules);
+    }
+
+    /**
+     * The filter used when the user has not asked for anything else: everything apart from the JDK,
+     * test frameworks and logging libraries.
+     */
+    static ClassNameFilter defaults() {
+        return of(Collections.emptyList(), Collections.emptyList());
+    }
+
+    /**
+     * Build a filter from package or class name prefixes. Prefixes may use either {@code .} or
+     * {@code /} as the package separator. {@link #DEFAULT_EXCLUDES} are always excluded.
+     */
+    static ClassNameFilter of(Collection<String> includes, Collection<String> excludes) {
+        List<String> allExcludes = new ArrayList<>(DEFAULT_EXCLUDES);
+        allExcludes.addAll(excludes);
+        return new ClassNameFilter(includes, allExcludes);
+    }
+
+    /**
+     * @param className The internal name of the class, as passed to
+     *                  {@link java.lang.instrument.ClassFileTransformer#transform}
+     * @return true if exceptions may be injected into the class.
+     */
+    boolean accepts(String className) {
+        if (className == null)
+            return false;
+
+        Boolean include = rules.longestMatch(className);
+        if (include == null ? !includeByDefault : !include)
+            return false;
+
+        return className.indexOf('$') < 0;
+    }
+}
@@ -0,0 +1,155 @@
+package com.datastax.faultytowers;
+
+import com.sun.tools.attach.AttachNotSupportedException;
+import com.sun.tools.attach.VirtualMachine;
+import com.sun.tools.attach.VirtualMachineDescriptor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+import java.util.regex.Pattern;
+
+/**
+ * Several JVMs on this machine driven as one, e.g. the nodes of a local Cassandra cluster. The agent
+ * is installed in every node with the same options, and so the same seed, and commands go to every
+ * node.
+ *
+ * Each node is attached to on a thread of its own, so installing the agent or sending commands takes
+ * about as long as it does for the slowest node however many nodes there are. The output for each
+ * node is collected and printed in one piece, prefixed with its process id.
+ *
+ * Each node is also known by its index in the cluster, which names its files rather than its process
+ * id so that a recording made by a node can be replayed by the same node once it has been restarted.
+ */
+final class Cluster {
+    private final List<String> pids;
+
+    Cluster(List<String> pids) {
+        if (pids.isEmpty())
+            throw new IllegalArgumentException("A cluster needs at least one JVM");
+        this.pids = List.copyOf(pids);
+    }
+
+    /**
+     * @param mainClass A glob, e.g. {@code *CassandraDaemon}, matched against the main class of each
+     *                  JVM, its simple name or the path of its jar
+     * @return The process ids of the JVMs on this machine, other than this one, whose main class
+     * matches, in the order they were started as far as their process ids show it.
+     */
+    static List<String> find(String mainClass) {
+        Pattern pattern = ThreadFilter.glob(mainClass);
+        String self = FaultyTowers.currentPid();
+        List<String> pids = new ArrayList<>();
+        for (VirtualMachineDescriptor vm : VirtualMachine.list()) {
+            if (!vm.id().equals(self) && matches(pattern, vm.displayName()))
+                pids.add(vm.id());
+        }
+        pids.sort(Comparator.comparingLong(Long::parseLong));
+        return pids;
+    }
+
+    // The display name of a JVM is its main class or jar followed by its arguments
+    static boolean matches(Pattern pattern, String displayName) {
+        int space = displayName.indexOf(' ');
+        String main = space < 0 ? displayName : displayName.substring(0, space);
+        return pattern.matcher(main).matches()
+                || pattern.matcher(main.substring(main.lastIndexOf('.') + 1)).matches();
+    }
+
+    List<String> getPids() {
+        return pids;
+    }
+
+    /**
+     * Install the agent in every node.
+     * @param agentArgs The options to pass to the agent of each node, by index in the cluster
+     * @return The number of nodes the agent was installed in.
+     */
+    int install(IntFunction<String> agentArgs, PrintStream out) {
+        Map<String, Boolean> installed = run(pid ->
+                FaultyTowers.installAgent(pid, agentArgs.apply(pids.indexOf(pid)), out), out);
+        return (int) installed.values().stream().filter(Boolean.TRUE::equals).count();
+    }
+
+    /**
+     * Send the commands to the agent of every node.
+     */
+    void control(ControlCommands commands, PrintStream out) {
+        run(pid -> {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            FaultyTowers.control(pid, commands, new PrintStream(buffer, true, StandardCharsets.UTF_8));
+            return buffer.toString(StandardCharsets.UTF_8);
+        }, out).forEach((pid, output) -> {
+            if (output != null)
+                output.lines().forEach(line -> out.println("[" + pid + "] " + line));
+        });
+    }
+
+    /**
+     * Read the counters of every node that still has the agent installed.
+     */
+    ClusterReport report(PrintStream out) {
+        ClusterReport report = new ClusterReport();
+        run(pid -> {
+            try (ControlClient client = ControlClient.connect(pid)) {
+                FaultyTowersMXBean control = client.getControl();
+                report.add(pid, control.getTotalHits(), control.getTotalThrows(), control.getHitCounts(),
+                        control.getThrowCounts());
+            } catch (AttachNotSupportedException | IOException e) {
+                out.println("[" + pid + "] Cannot read counters: " + e);
+            }
+            return null;
+        }, out);
+        return report;
+    }
+
+    /**
+     * Remove the agent from every node.
+     */
+    void remove(PrintStream out) {
+        run(pid -> FaultyTowers.removeAgent(pid, out), out);
+    }
+
+    // Run action on every node at once and wait for all of them. A node whose action fails has a null result.
+    private <T> Map<String, T> run(Function<String, T> action, PrintStream out) {
+        ExecutorService executor = Executors.newFixedThreadPool(pids.size(), r -> {
+            Thread thread = new Thread(r, "faulty-towers-cluster");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            Map<String, Future<T>> futures = new LinkedHashMap<>();
+            for (String pid : pids)
+                futures.put(pid, executor.submit(() -> action.apply(pid)));
+
+            Map<String, T> results = new LinkedHashMap<>();
+            for (Map.Entry<String, Future<T>> entry : futures.entrySet()) {
+                T result = null;
+                try {
+                    result = entry.getValue().get();
+                } catch (ExecutionException e) {
+                    out.println("[" + entry.getKey() + "] Failed: " + e.getCause());
+                }
+                results.put(entry.getKey(), result);
+            }
+            return results;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new LinkedHashMap<>();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package com.datastax.faultytowers;
+
+import java.io.PrintStream;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The counters of every JVM in a {@link Cluster} added up, so that a run against a local cluster
+ * ends with one report rather than one per node. Each site shows how many nodes it threw on, as a
+ * fault that only ever fires on one node tests something different to one that fires on all of them.
+ */
+final class ClusterReport {
+    private final Map<String, long[]> nodes = new TreeMap<>();
+    // Hits, throws and the number of nodes that threw, by site name
+    private final Map<String, long[]> sites = new TreeMap<>();
+
+    /**
+     * Add the counters of one node, as read from its {@link FaultyTowersMXBean}. Nodes may be added
+     * from several threads at once.
+     */
+    synchronized void add(String pid, long totalHits, long totalThrows, Map<String, Long> hitCounts, Map<String, Long> throwCounts) {
+        nodes.put(pid, new long[] {totalHits, totalThrows});
+        hitCounts.forEach((site, hits) -> sites.computeIfAbsent(site, s -> new long[3])[0] += hits);
+        throwCounts.forEach((site, throwCount) -> {
+            long[] counts = sites.computeIfAbsent(site, s -> new long[3]);
+            counts[1] += throwCount;
+            if (throwCount > 0)
+                counts[2]++;
+        });
+    }
+
+    synchronized long getTotalHits() {
+        return nodes.values().stream().mapToLong(counts -> counts[0]).sum();
+    }
+
+    synchronized long getTotalThrows() {
+        return nodes.values().stream().mapToLong(counts -> counts[1]).sum();
+    }
+
+    /**
+     * @return The hits, throws and number of nodes that threw of the site, or null if no node has it.
+     */
+    synchronized long[] getSite(String site) {
+        return sites.get(site);
+    }
+
+    synchronized void print(PrintStream out) {
+        out.println("Nodes: " + nodes.size() + " sites: " + sites.size() + " hits: " + getTotalHits()
+                + " throws: " + getTotalThrows());
+        nodes.forEach((pid, counts) -> out.println("  " + pid + " hits=" + counts[0] + " throws=" + counts[1]));
+        sites.forEach((site, counts) ->
+                out.println("  " + site + " hits=" + counts[0] + " throws=" + counts[1] + " nodes=" + counts[2]));
+    }
+}
@@ -0,0 +1,61 @@
+package com.datastax.faultytowers;
+
+import com.sun.tools.attach.AttachNotSupportedException;
+import com.sun.tools.attach.VirtualMachine;
+
+import javax.management.JMX;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import javax.management.remote.JMXConnector;
+import javax.management.remote.JMXConnectorFactory;
+import javax.management.remote.JMXServiceURL;
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * A connection to the {@link FaultyTowersMXBean} of an agent installed in another JVM.
+ *
+ * The target's local management agent is started through the Attach API, so the target does not
+ * need to have been started with any JMX options.
+ */
+final class ControlClient implements Closeable {
+    private final JMXConnector connector;
+    private final FaultyTowersMXBean control;
+
+    private ControlClient(JMXConnector connector, FaultyTowersMXBean control) {
+        this.connector = connector;
+        this.control = control;
+    }
+
+    /**
+     * Connect to the agent in the JVM with process id {@code pid}.
+     */
+    static ControlClient connect(String pid) throws IOException, AttachNotSupportedException {
+        String address;
+        VirtualMachine vm = VirtualMachine.attach(pid);
+        try {
+            address = vm.startLocalManagementAgent();
+        } finally {
+            vm.detach();
+        }
+
+        JMXConnector connector = JMXConnectorFactory.connect(new JMXServiceURL(address));
+        try {
+            FaultyTowersMXBean control = JMX.newMXBeanProxy(connector.getMBeanServerConnection(),
+                    new ObjectName(FaultyTowersMXBean.OBJECT_NAME), FaultyTowersMXBean.class);
+            return new ControlClient(connector, control);
+        } catch (MalformedObjectNameException e) {
+            connector.close();
+            throw new IllegalStateException(e);
+        }
+    }
+
+    FaultyTowersMXBean getControl() {
+        return control;
+    }
+
+    @Override
+    public void close() throws IOException {
+        connector.close();
+    }
+}
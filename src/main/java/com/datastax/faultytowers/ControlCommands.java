@@ -0,0 +1,141 @@
+package com.datastax.faultytowers;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The commands given on the command line to send to a running agent through its
+ * {@link FaultyTowersMXBean}. Commands are applied in a fixed order: class and thread filters, throw limit, site
+ * probabilities, exception policies, latencies, disarm and then arm, so that a narrower arm can follow a broad disarm.
+ */
+final class ControlCommands {
+    private List<String> includes;
+    private List<String> excludes;
+    private String threads;
+    private Long throwLimit;
+    private final Map<String, Double> probabilities = new LinkedHashMap<>();
+    private final Map<String, ExceptionPolicy> exceptionPolicies = new LinkedHashMap<>();
+    private final Map<String, String> latencies = new LinkedHashMap<>();
+    private final List<String> disarm = new ArrayList<>();
+    private final List<String> arm = new ArrayList<>();
+    private boolean printStats;
+
+    void setClassFilter(List<String> includes, List<String> excludes) {
+        this.includes = new ArrayList<>(includes);
+        this.excludes = new ArrayList<>(excludes);
+    }
+
+    /**
+     * @param threads A {@link ThreadFilter}, or {@link ThreadFilter#ALL} to throw on every thread again
+     */
+    void setThreadFilter(String threads) {
+        this.threads = threads;
+    }
+
+    String getThreadFilter() {
+        return threads;
+    }
+
+    void setThrowLimit(long throwLimit) {
+        this.throwLimit = throwLimit;
+    }
+
+    Long getThrowLimit() {
+        return throwLimit;
+    }
+
+    void setProbability(String prefix, double probability) {
+        probabilities.put(prefix, probability);
+    }
+
+    Map<String, Double> getProbabilities() {
+        return probabilities;
+    }
+
+    void setExceptionPolicy(String prefix, ExceptionPolicy policy) {
+        exceptionPolicies.put(prefix, policy);
+    }
+
+    Map<String, ExceptionPolicy> getExceptionPolicies() {
+        return exceptionPolicies;
+    }
+
+    /**
+     * @param latency A {@link LatencyFault}, or {@link FaultyTowersControl#NO_LATENCY} to throw again
+     */
+    void setLatency(String prefix, String latency) {
+        latencies.put(prefix, latency);
+    }
+
+    Map<String, String> getLatencies() {
+        return latencies;
+    }
+
+    void disarm(String prefix) {
+        disarm.add(prefix);
+    }
+
+    void arm(String prefix) {
+        arm.add(prefix);
+    }
+
+    void printStats() {
+        printStats = true;
+    }
+
+    boolean isPrintingStats() {
+        return printStats;
+    }
+
+    boolean isEmpty() {
+        return includes == null && threads == null && throwLimit == null && probabilities.isEmpty()
+                && exceptionPolicies.isEmpty() && latencies.isEmpty() && disarm.isEmpty()
+                && arm.isEmpty() && !printStats;
+    }
+
+    void apply(FaultyTowersMXBean control, PrintStream out) {
+        if (includes != null) {
+            control.setClassFilter(includes.toArray(new String[0]), excludes.toArray(new String[0]));
+            out.println("Class filter set to include " + includes + " exclude " + excludes);
+        }
+        if (threads != null) {
+            control.setThreadFilter(threads);
+            out.println("Thread filter set to " + control.getThreadFilter());
+        }
+        if (throwLimit != null) {
+            control.setThrowLimit(throwLimit);
+            out.println("Throw limit set to " + throwLimit);
+        }
+        probabilities.forEach((prefix, probability) ->
+                out.println("Probability set to " + probability + " for "
+                        + control.setProbability(prefix, probability) + " sites matching '" + prefix + "'"));
+        exceptionPolicies.forEach((prefix, policy) ->
+                out.println("Exception policy set to " + policy + " for "
+                        + control.setExceptionPolicy(prefix, policy.toString()) + " sites matching '" + prefix + "'"));
+        latencies.forEach((prefix, latency) ->
+                out.println("Latency set to " + latency + " for "
+                        + control.setLatency(prefix, latency) + " sites matching '" + prefix + "'"));
+        disarm.forEach(prefix ->
+                out.println("Disarmed " + control.disarm(prefix) + " sites matching '" + prefix + "'"));
+        arm.forEach(prefix ->
+                out.println("Armed " + control.arm(prefix) + " sites matching '" + prefix + "'"));
+
+        if (printStats) {
+            out.println("Sites: " + control.getSiteCount() + " hits: " + control.getTotalHits()
+                    + " throws: " + control.getTotalThrows());
+            out.println("Transformer: " + control.getTransformStats());
+            out.println("Threads: " + control.getThreadFilter());
+            Map<String, Long> throwCounts = control.getThrowCounts();
+            control.getHitCounts().forEach((site, hits) ->
+                    out.println("  " + site + " hits=" + hits + " throws=" + throwCounts.getOrDefault(site, 0L)));
+            control.getInvocationCounts().forEach((site, invocations) ->
+                    out.println("  " + site + " invocations=" + invocations));
+            control.getDelays().forEach((site, delays) -> out.println("  " + site + " delays: " + delays));
+            control.getRecoveryTimes().forEach((site, recoveries) ->
+                    out.println("  " + site + " recoveries: " + recoveries));
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.datastax.faultytowers;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A table of {@code long} counters indexed by a dense integer id.
+ *
+ * Each counter occupies its own cache line so that threads updating different sites never bounce
+ * the same line between cores. Counters are stored in fixed-size chunks which are only ever added,
+ * never copied, so a counter never moves once it has been allocated and updates need no locking.
+ * {@link #ensureCapacity(int)} must be called for an id before the id is used.
+ */
+final class CounterTable {
+    // 8 longs = 64 bytes, i.e. one cache line per counter
+    private static final int STRIDE = 8;
+    private static final int CHUNK_SHIFT = 10;
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    private volatile AtomicLongArray[] chunks = new AtomicLongArray[0];
+
+    /**
+     * Make sure that there is a counter for {@code id}.
+     */
+    void ensureCapacity(int id) {
+        if (id >>> CHUNK_SHIFT < chunks.length)
+            return;
+        grow(id);
+    }
+
+    private synchronized void grow(int id) {
+        int chunk = id >>> CHUNK_SHIFT;
+        AtomicLongArray[] current = chunks;
+        if (chunk < current.length)
+            return;
+
+        AtomicLongArray[] grown = Arrays.copyOf(current, chunk + 1);
+        for (int i = current.length; i < grown.length; i++)
+            grown[i] = new AtomicLongArray(CHUNK_SIZE * STRIDE);
+        chunks = grown;
+    }
+
+    private AtomicLongArray chunk(int id) {
+        return chunks[id >>> CHUNK_SHIFT];
+    }
+
+    private static int index(int id) {
+        return (id & CHUNK_MASK) * STRIDE;
+    }
+
+    long get(int id) {
+        return chunk(id).get(index(id));
+    }
+
+    void set(int id, long value) {
+        chunk(id).set(index(id), value);
+    }
+
+    long incrementAndGet(int id) {
+        return chunk(id).incrementAndGet(index(id));
+    }
+
+    long addAndGet(int id, long delta) {
+        return chunk(id).addAndGet(index(id), delta);
+    }
+
+    boolean compareAndSet(int id, long expected, long value) {
+        return chunk(id).compareAndSet(index(id), expected, value);
+    }
+
+    /**
+     * Increment the counter for {@code id} unless it has already reached {@code limit}.
+     * @return The new value of the counter, or -1 if the counter was not incremented.
+     */
+    long incrementIfBelow(int id, long limit) {
+        AtomicLongArray chunk = chunk(id);
+        int index = index(id);
+        long current;
+        do {
+            current = chunk.get(index);
+            if (current >= limit)
+                return -1;
+        } while (!chunk.compareAndSet(index, current, current + 1));
+        return current + 1;
+    }
+}
@@ -0,0 +1,69 @@
+package com.datastax.faultytowers;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The methods that scope injection, see {@link CallScope}.
+ *
+ * Entry points are package, class or method prefixes in the same form as the control commands, e.g.
+ * {@code org.apache.cassandra.service.StorageProxy.read}, separated by {@code |}. A method is an entry
+ * point if its name and descriptor start with any of them. Constructors and static initialisers never
+ * are.
+ */
+final class EntryPoints {
+    static final String SEPARATOR = "|";
+
+    private final List<String> prefixes;
+    private final String spec;
+
+    private EntryPoints(List<String> prefixes, String spec) {
+        this.prefixes = prefixes;
+        this.spec = spec;
+    }
+
+    /**
+     * @throws IllegalArgumentException if {@code spec} holds no prefixes.
+     */
+    static EntryPoints parse(String spec) {
+        List<String> prefixes = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        for (String prefix : spec.split("\\|")) {
+            if (prefix.trim().isEmpty())
+                continue;
+            names.add(prefix.trim());
+            prefixes.add(InjectionSite.prefixName(prefix.trim()));
+        }
+        if (prefixes.isEmpty())
+            throw new IllegalArgumentException("No entry points in '" + spec + "'");
+        return new EntryPoints(List.copyOf(prefixes), String.join(SEPARATOR, names));
+    }
+
+    /**
+     * @return false if no method of the class can be an entry point, so that the class need not be parsed.
+     */
+    boolean mayContain(String className) {
+        String name = InjectionSite.prefixName(className) + "/";
+        for (String prefix : prefixes) {
+            if (name.startsWith(prefix) || prefix.startsWith(name))
+                return true;
+        }
+        return false;
+    }
+
+    boolean contains(String className, String methodName, String descriptor) {
+        if (methodName.startsWith("<"))
+            return false;
+        String name = InjectionSite.prefixName(InjectionSite.name(className, methodName, descriptor));
+        for (String prefix : prefixes) {
+            if (name.startsWith(prefix))
+                return true;
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return spec;
+    }
+}
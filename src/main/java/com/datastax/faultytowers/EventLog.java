@@ -0,0 +1,319 @@
+package com.datastax.faultytowers;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An audit log of what the agent did, written without ever blocking the thread that records an
+ * event.
+ *
+ * Events are published into a bounded, lock-free ring buffer (a multi-producer, single-consumer
+ * queue in which every slot carries a sequence number). A daemon writer thread drains the ring in
+ * batches and appends the records to a file through a {@link FileChannel}. If the ring is full the
+ * event is dropped and counted rather than making the producer wait, so class loading and throw
+ * sites never wait for disk I/O. The writer reports drops with a {@link #DROPPED} event of its own,
+ * so the file and every sink know that they are missing events, and prints the total when it stops.
+ *
+ * The file starts with a header of {@link #MAGIC} followed by a {@code short} version, and then
+ * holds one record per event:
+ * <pre>
+ *   byte   type
+ *   long   time (milliseconds since the epoch)
+ *   long   thread id
+ *   int    site id, or -1
+ *   long   hit ordinal of a throw or delay, or 0
+ *   long   value
+ *   short  length of text in bytes, or -1 if there is no text
+ *   byte[] UTF-8 text
+ * </pre>
+ * {@link EventLogDump} prints a file in this format as text. Additional {@link EventSink}s, such as
+ * {@link ReplayRecorder}, can be attached to receive every event on the writer thread.
+ */
+final class EventLog {
+    static final int MAGIC = 0x46544556; // "FTEV"
+    static final short VERSION = 2;
+
+    // A class was transformed. text: the class name
+    static final byte TRANSFORM = 1;
+    // An exception was injected into a method. text: the site name and exception class
+    static final byte INJECT = 2;
+    // An injected exception was thrown. ordinal: the hit ordinal of the call that threw
+    static final byte THROW = 3;
+    // A delay was injected in place of an exception. ordinal: the hit ordinal of the call that was
+    // delayed, value: the delay in nanoseconds
+    static final byte DELAY = 4;
+    // Events were dropped because the ring was full. value: the number dropped since the last such event
+    static final byte DROPPED = 5;
+
+    private static final int DEFAULT_CAPACITY = 1 << 16;
+    private static final int BATCH_BYTES = 64 * 1024;
+    private static final int MAX_TEXT_BYTES = Short.MAX_VALUE;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private static final EventLog GLOBAL = new EventLog(DEFAULT_CAPACITY);
+
+    private final int mask;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    private final LongAdder dropped = new LongAdder();
+    private final List<EventSink> sinks = new CopyOnWriteArrayList<>();
+    private final byte[] types;
+    private final long[] times;
+    private final long[] threadIds;
+    private final int[] siteIds;
+    private final long[] ordinals;
+    private final long[] values;
+    private final String[] texts;
+
+    // Only touched by the writer thread
+    private long head;
+    private long reportedDropped;
+    private long droppedAtStart;
+    private final ByteBuffer batch = ByteBuffer.allocate(BATCH_BYTES);
+
+    private volatile Thread writer;
+    private volatile boolean running;
+    private boolean shutdownHookAdded;
+
+    EventLog(int capacity) {
+        if (Integer.bitCount(capacity) != 1)
+            throw new IllegalArgumentException("capacity must be a power of two: " + capacity);
+
+        mask = capacity - 1;
+        sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++)
+            sequences.set(i, i);
+        types = new byte[capacity];
+        times = new long[capacity];
+        threadIds = new long[capacity];
+        siteIds = new int[capacity];
+        ordinals = new long[capacity];
+        values = new long[capacity];
+        texts = new String[capacity];
+    }
+
+    /**
+     * @return The log shared by the agent. Events recorded before it is started are buffered until the
+     * ring is full.
+     */
+    static EventLog global() {
+        return GLOBAL;
+    }
+
+    /**
+     * Record an event. Never blocks.
+     * @return false if the ring buffer was full and the event was dropped.
+     */
+    boolean record(byte type, int siteId, long ordinal, long value, String text) {
+        long position = tail.get();
+        int index;
+        while (true) {
+            index = (int) position & mask;
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1))
+                    break;
+                position = tail.get();
+            } else if (difference < 0) {
+                // The writer has not yet drained this slot
+                dropped.increment();
+                return false;
+            } else {
+                position = tail.get();
+            }
+        }
+
+        types[index] = type;
+        times[index] = System.currentTimeMillis();
+        threadIds[index] = Thread.currentThread().getId();
+        siteIds[index] = siteId;
+        ordinals[index] = ordinal;
+        values[index] = value;
+        texts[index] = text;
+        // Publish the slot to the writer
+        sequences.set(index, position + 1);
+        return true;
+    }
+
+    /**
+     * Pass every event drained from now on to {@code sink} as well as writing it to the log file.
+     */
+    void addSink(EventSink sink) {
+        sinks.add(sink);
+    }
+
+    long getDropped() {
+        return dropped.sum();
+    }
+
+    boolean isStarted() {
+        return writer != null;
+    }
+
+    /**
+     * Start a daemon thread which appends events to {@code path}. A log that has been stopped can be
+     * started again, with a new file and new sinks.
+     */
+    synchronized void start(Path path) throws IOException {
+        if (writer != null)
+            throw new IllegalStateException("Event log already started");
+
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        batch.clear();
+        batch.putInt(MAGIC).putShort(VERSION);
+
+        droppedAtStart = reportedDropped;
+        running = true;
+        Thread thread = new Thread(() -> writeLoop(channel), "faulty-towers-event-log");
+        thread.setDaemon(true);
+        writer = thread;
+        thread.start();
+        if (!shutdownHookAdded) {
+            Runtime.getRuntime().addShutdownHook(new Thread(this::stop));
+            shutdownHookAdded = true;
+        }
+    }
+
+    /**
+     * Stop the writer thread once it has written every event recorded so far, and close and remove
+     * every sink. Events recorded after this are buffered until the log is started again.
+     */
+    synchronized void stop() {
+        Thread thread = writer;
+        if (thread == null)
+            return;
+
+        running = false;
+        LockSupport.unpark(thread);
+        try {
+            thread.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (thread.isAlive()) {
+            System.out.println("Faulty Towers event log writer did not stop");
+            return;
+        }
+        sinks.clear();
+        writer = null;
+    }
+
+    private void writeLoop(FileChannel channel) {
+        try (channel) {
+            while (running) {
+                if (!drain(channel))
+                    LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+            }
+            drain(channel);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if (reportedDropped > droppedAtStart)
+            System.out.println("Faulty Towers event log dropped " + (reportedDropped - droppedAtStart)
+                    + " events as its ring was full");
+
+        for (EventSink sink : sinks) {
+            try {
+                sink.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Write every published event to {@code channel}.
+     * @return true if any events were written.
+     */
+    private boolean drain(FileChannel channel) throws IOException {
+        boolean drained = false;
+        while (true) {
+            int index = (int) head & mask;
+            if (sequences.get(index) != head + 1)
+                break;
+
+            write(channel, types[index], times[index], threadIds[index], siteIds[index], ordinals[index], values[index],
+                    texts[index]);
+            texts[index] = null;
+            // Hand the slot back to the producers
+            sequences.set(index, head + mask + 1);
+            head++;
+            drained = true;
+        }
+
+        long droppedNow = dropped.sum();
+        if (droppedNow > reportedDropped) {
+            write(channel, DROPPED, System.currentTimeMillis(), Thread.currentThread().getId(), -1, 0,
+                    droppedNow - reportedDropped, null);
+            reportedDropped = droppedNow;
+            drained = true;
+        }
+
+        if (batch.position() > 0)
+            flush(channel);
+
+        if (drained) {
+            for (EventSink sink : sinks) {
+                try {
+                    sink.flush();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    sinks.remove(sink);
+                }
+            }
+        }
+        return drained;
+    }
+
+    // Append one record to the batch and pass it to every sink
+    private void write(FileChannel channel, byte type, long time, long threadId, int siteId, long ordinal,
+                       long value, String text) throws IOException {
+        byte[] textBytes = text == null ? null : text.getBytes(StandardCharsets.UTF_8);
+        int textLength = textBytes == null ? 0 : Math.min(textBytes.length, MAX_TEXT_BYTES);
+        // Cut long text at the start of a character rather than part way through its UTF-8 encoding
+        if (textBytes != null && textLength < textBytes.length) {
+            while (textLength > 0 && (textBytes[textLength] & 0xC0) == 0x80)
+                textLength--;
+        }
+        if (batch.remaining() < 39 + textLength)
+            flush(channel);
+
+        batch.put(type)
+                .putLong(time)
+                .putLong(threadId)
+                .putInt(siteId)
+                .putLong(ordinal)
+                .putLong(value)
+                .putShort((short) (textBytes == null ? -1 : textLength));
+        if (textBytes != null)
+            batch.put(textBytes, 0, textLength);
+
+        for (EventSink sink : sinks) {
+            try {
+                sink.accept(type, time, threadId, siteId, ordinal, value, text);
+            } catch (IOException e) {
+                e.printStackTrace();
+                sinks.remove(sink);
+            }
+        }
+    }
+
+    private void flush(FileChannel channel) throws IOException {
+        batch.flip();
+        while (batch.hasRemaining())
+            channel.write(batch);
+        batch.clear();
+    }
+}
@@ -0,0 +1,86 @@
+package com.datastax.faultytowers;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Instant;
+
+/**
+ * Prints an {@link EventLog} file as text, one event per line:
+ * <pre>
+ *   time thread type site ordinal value text
+ * </pre>
+ *
+ * Usage: {@code java -cp faulty-towers.jar com.datastax.faultytowers.EventLogDump <file>}
+ */
+public class EventLogDump {
+    public static void main(String[] args) {
+        if (args.length != 1) {
+            System.out.println("Usage: EventLogDump <event log file>");
+            return;
+        }
+
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(Paths.get(args[0])))) {
+            dump(in, System.out);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    static void dump(InputStream input, PrintStream out) throws IOException {
+        DataInputStream in = new DataInputStream(input);
+        if (in.readInt() != EventLog.MAGIC)
+            throw new IOException("Not a faulty-towers event log");
+        short version = in.readShort();
+        if (version != EventLog.VERSION)
+            throw new IOException("Unsupported event log version " + version);
+
+        while (true) {
+            byte type;
+            try {
+                type = in.readByte();
+            } catch (EOFException e) {
+                return;
+            }
+
+            long time = in.readLong();
+            long threadId = in.readLong();
+            int siteId = in.readInt();
+            long ordinal = in.readLong();
+            long value = in.readLong();
+            short textLength = in.readShort();
+            String text = "";
+            if (textLength >= 0) {
+                byte[] bytes = new byte[textLength];
+                in.readFully(bytes);
+                text = new String(bytes, StandardCharsets.UTF_8);
+            }
+
+            out.println(Instant.ofEpochMilli(time) + " " + threadId + " " + typeName(type) + " " + siteId
+                    + " " + ordinal + " " + value + " " + text);
+        }
+    }
+
+    private static String typeName(byte type) {
+        switch (type) {
+            case EventLog.TRANSFORM:
+                return "transform";
+            case EventLog.INJECT:
+                return "inject";
+            case EventLog.THROW:
+                return "throw";
+            case EventLog.DELAY:
+                return "delay";
+            case EventLog.DROPPED:
+                return "dropped";
+            default:
+                return "unknown(" + type + ")";
+        }
+    }
+}
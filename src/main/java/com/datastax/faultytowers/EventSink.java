@@ -0,0 +1,27 @@
+package com.datastax.faultytowers;
+
+import java.io.IOException;
+
+/**
+ * Receives every event drained from an {@link EventLog}, in addition to the binary log file.
+ *
+ * Sinks are only ever called from the event log's writer thread, so they may do blocking I/O and
+ * need no synchronisation of their own.
+ */
+interface EventSink {
+    /**
+     * Called once for each event, in the order the events were recorded.
+     */
+    void accept(byte type, long time, long threadId, int siteId, long ordinal, long value, String text)
+            throws IOException;
+
+    /**
+     * Called after each batch of events has been passed to {@link #accept}.
+     */
+    void flush() throws IOException;
+
+    /**
+     * Called once when the event log stops.
+     */
+    void close() throws IOException;
+}
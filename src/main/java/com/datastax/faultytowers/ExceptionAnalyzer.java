@@ -0,0 +1,323 @@
+package com.datastax.faultytowers;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TryCatchBlockNode;
+import org.objectweb.asm.tree.analysis.Analyzer;
+import org.objectweb.asm.tree.analysis.AnalyzerException;
+import org.objectweb.asm.tree.analysis.BasicInterpreter;
+import org.objectweb.asm.tree.analysis.BasicValue;
+import org.objectweb.asm.tree.analysis.Frame;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Works out which exception to inject into a method that has no {@code throws} clause, from the
+ * exceptions it can actually throw.
+ *
+ * Each method with an {@code ATHROW} is run through a dataflow analysis that tracks the static types
+ * a reference may have, so the type of the thrown value is known however it got onto the stack: a
+ * new exception, a local, a field, a method's result or a caught exception. Calls through
+ * {@code invokestatic} or {@code invokespecial} to other methods of the same class, e.g. private
+ * helpers that build and throw an exception, are followed, as their exceptions escape to the caller.
+ * An exception only escapes from an {@code ATHROW} or a call that no handler of its type covers.
+ * Handlers without a type are {@code finally} blocks, which rethrow what they catch, so they do not
+ * stop anything escaping.
+ *
+ * Only a {@link RuntimeException} or an {@link Error} is ever chosen, as a method without a
+ * {@code throws} clause cannot throw a checked exception that its callers expect. Super classes are
+ * found by reading class files through the class loader rather than by loading classes, and a type
+ * whose super classes cannot be found is treated as checked and as caught by any handler that might
+ * catch it.
+ *
+ * {@link Throwable} and {@link Exception} are never chosen, as they are what a {@code finally} block
+ * or a precise rethrow leaves in the bytecode rather than what is really thrown.
+ *
+ * Each method is analysed at most once per class, and the results for a class are kept by the hash
+ * of its class file, so the same class defined by several class loaders is only analysed once.
+ */
+final class ExceptionAnalyzer {
+    // Enough for the classes shared between the class loaders of a few in-JVM test clusters
+    private static final int MAX_CACHED_CLASSES = 4096;
+    private static final Map<ClassKey, Map<String, List<String>>> CACHE = new ConcurrentHashMap<>();
+
+    // A reference merged from more types than this is treated as unknown
+    private static final int MAX_TYPES = 8;
+    private static final String NULL = "null";
+    private static final Set<String> TOO_GENERAL = Set.of("java/lang/Throwable", "java/lang/Exception",
+            "java/lang/Object", NULL);
+    private static final String OBJECT = "java/lang/Object";
+    // The super class of each JDK class looked up so far, which is the same for every class loader
+    private static final Map<String, String> JDK_SUPER_NAMES = new ConcurrentHashMap<>();
+    // The super class of a class whose class file cannot be found
+    private static final String UNKNOWN = "";
+
+    private final ClassNode node;
+    private final ClassLoader loader;
+    private final Map<String, MethodNode> methods = new HashMap<>();
+    // The inferred exceptions of every method analysed so far, by name and descriptor
+    private final Map<String, List<String>> thrown;
+    // The super class of each non-JDK class looked up so far
+    private final Map<String, String> superNames = new HashMap<>();
+
+    private ExceptionAnalyzer(ClassNode node, ClassLoader loader, Map<String, List<String>> thrown) {
+        this.node = node;
+        this.loader = loader;
+        this.thrown = thrown;
+        for (MethodNode method : node.methods)
+            methods.put(method.name + method.desc, method);
+    }
+
+    /**
+     * @param classFile The class file that {@code node} was read from, used to share results between
+     *                  class loaders
+     * @param node The class, read with code
+     * @param selected The name and descriptor of each method to choose an exception for
+     * @param loader The class loader defining the class, or null for the bootstrap loader, used to find
+     *               the super classes of exceptions
+     * @return The internal name of the exception to inject into each selected method that can throw
+     * one, keyed by name and descriptor. A declared exception is preferred to an inferred one.
+     */
+    static Map<String, String> exceptionClassNames(byte[] classFile, ClassNode node, Set<String> selected,
+                                                   ClassLoader loader) {
+        ClassKey key = new ClassKey(ClassCache.hash(classFile, 0));
+        Map<String, List<String>> cached = CACHE.get(key);
+        // Work on a copy, so that other threads only ever see finished results
+        Map<String, List<String>> thrown = cached == null ? new HashMap<>() : new HashMap<>(cached);
+        ExceptionAnalyzer analyzer = new ExceptionAnalyzer(node, loader, thrown);
+        Map<String, String> exceptions = new HashMap<>();
+        for (MethodNode method : node.methods) {
+            String methodKey = method.name + method.desc;
+            if (!selected.contains(methodKey))
+                continue;
+            if (!method.exceptions.isEmpty()) {
+                exceptions.put(methodKey, method.exceptions.get(0));
+                continue;
+            }
+            for (String inferred : analyzer.thrownBy(methodKey)) {
+                if (analyzer.isUnchecked(inferred)) {
+                    exceptions.put(methodKey, inferred);
+                    break;
+                }
+            }
+        }
+
+        if (cached == null || thrown.size() > cached.size()) {
+            if (CACHE.size() >= MAX_CACHED_CLASSES)
+                CACHE.clear();
+            CACHE.put(key, Map.copyOf(thrown));
+        }
+        return exceptions;
+    }
+
+    /**
+     * @return The exception types that can escape the method, in the order they were found: the
+     * exceptions it declares, then those of its {@code ATHROW}s and calls in the order they appear.
+     */
+    private List<String> thrownBy(String methodKey) {
+        List<String> result = thrown.get(methodKey);
+        if (result != null)
+            return result;
+        MethodNode method = methods.get(methodKey);
+        if (method == null || method.instructions.size() == 0)
+            return Collections.emptyList();
+
+        // Recursive calls see nothing rather than looping
+        thrown.put(methodKey, Collections.emptyList());
+        Set<String> types = new LinkedHashSet<>(method.exceptions);
+        AbstractInsnNode[] instructions = method.instructions.toArray();
+        Frame<BasicValue>[] frames = null;
+        for (int i = 0; i < instructions.length; i++) {
+            int opcode = instructions[i].getOpcode();
+            if (opcode == Opcodes.ATHROW) {
+                if (frames == null)
+                    frames = analyze(method);
+                for (String type : thrownType(frames[i])) {
+                    if (!isCaught(method, i, type))
+                        types.add(type);
+                }
+            } else if (opcode == Opcodes.INVOKESTATIC || opcode == Opcodes.INVOKESPECIAL) {
+                MethodInsnNode call = (MethodInsnNode) instructions[i];
+                if (!call.owner.equals(node.name))
+                    continue;
+                for (String type : thrownBy(call.name + call.desc)) {
+                    if (!isCaught(method, i, type))
+                        types.add(type);
+                }
+            }
+        }
+
+        result = types.isEmpty() ? Collections.emptyList() : List.copyOf(types);
+        thrown.put(methodKey, result);
+        return result;
+    }
+
+    // The frame before each instruction, with no frames at all if the method cannot be analysed
+    @SuppressWarnings("unchecked")
+    private Frame<BasicValue>[] analyze(MethodNode method) {
+        try {
+            return new Analyzer<>(new TypeInterpreter()).analyze(node.name, method);
+        } catch (AnalyzerException | RuntimeException e) {
+            // Leave a method that cannot be analysed alone rather than fail the whole class
+            return (Frame<BasicValue>[]) new Frame<?>[method.instructions.size()];
+        }
+    }
+
+    // The types of the value on top of the stack at an ATHROW, if it is reachable
+    private static Set<String> thrownType(Frame<BasicValue> frame) {
+        if (frame == null)
+            return Collections.emptySet();
+        BasicValue value = frame.getStack(frame.getStackSize() - 1);
+        if (!(value instanceof TypesValue))
+            return Collections.emptySet();
+        Set<String> types = new LinkedHashSet<>(((TypesValue) value).types);
+        types.removeAll(TOO_GENERAL);
+        return types;
+    }
+
+    // Whether a handler covering the instruction at index catches exceptions of type
+    private boolean isCaught(MethodNode method, int index, String type) {
+        for (TryCatchBlockNode block : method.tryCatchBlocks) {
+            if (block.type == null)
+                continue;
+            if (method.instructions.indexOf(block.start) <= index && index < method.instructions.indexOf(block.end)
+                    && isSubclass(type, block.type) != Boolean.FALSE)
+                return true;
+        }
+        return false;
+    }
+
+    private boolean isUnchecked(String type) {
+        return isSubclass(type, "java/lang/RuntimeException") == Boolean.TRUE
+                || isSubclass(type, "java/lang/Error") == Boolean.TRUE;
+    }
+
+    /**
+     * @return Whether {@code type} is {@code superType} or one of its subclasses, or null if a super
+     * class of {@code type} cannot be found.
+     */
+    private Boolean isSubclass(String type, String superType) {
+        for (String name = type; !name.equals(OBJECT); name = superName(name)) {
+            if (name.equals(superType))
+                return Boolean.TRUE;
+            if (name.equals(UNKNOWN))
+                return null;
+        }
+        return superType.equals(OBJECT);
+    }
+
+    private String superName(String type) {
+        boolean jdk = type.startsWith("java/");
+        Map<String, String> names = jdk ? JDK_SUPER_NAMES : superNames;
+        String superName = names.get(type);
+        if (superName != null)
+            return superName;
+        superName = readSuperName(jdk || loader == null ? ClassLoader.getPlatformClassLoader() : loader, type);
+        names.put(type, superName);
+        return superName;
+    }
+
+    private static String readSuperName(ClassLoader loader, String type) {
+        try (InputStream in = loader.getResourceAsStream(type + ".class")) {
+            if (in == null)
+                return UNKNOWN;
+            String superName = new ClassReader(in).getSuperName();
+            return superName == null ? OBJECT : superName;
+        } catch (IOException | RuntimeException e) {
+            return UNKNOWN;
+        }
+    }
+
+    /**
+     * A reference that may hold a value of any of a set of static types.
+     */
+    private static final class TypesValue extends BasicValue {
+        final Set<String> types;
+
+        TypesValue(Set<String> types) {
+            super(types.size() == 1 ? Type.getObjectType(types.iterator().next()) : BasicValue.REFERENCE_VALUE.getType());
+            this.types = types;
+        }
+
+        @Override
+        public boolean equals(Object value) {
+            return value instanceof TypesValue && types.equals(((TypesValue) value).types);
+        }
+
+        @Override
+        public int hashCode() {
+            return types.hashCode();
+        }
+    }
+
+    /**
+     * {@link BasicInterpreter} keeps only whether a value is a reference. This keeps the static types a
+     * reference may have, which is all the analysis needs, without loading any classes to find common
+     * super types.
+     */
+    private static final class TypeInterpreter extends BasicInterpreter {
+        TypeInterpreter() {
+            super(Opcodes.ASM9);
+        }
+
+        @Override
+        public BasicValue newValue(Type type) {
+            if (type != null && (type.getSort() == Type.OBJECT || type.getSort() == Type.ARRAY))
+                return new TypesValue(Set.of(type.getInternalName()));
+            return super.newValue(type);
+        }
+
+        @Override
+        public BasicValue merge(BasicValue value1, BasicValue value2) {
+            if (!(value1 instanceof TypesValue) || !(value2 instanceof TypesValue))
+                return super.merge(value1, value2);
+            Set<String> types1 = ((TypesValue) value1).types;
+            Set<String> types2 = ((TypesValue) value2).types;
+            if (types1.containsAll(types2))
+                return value1;
+            Set<String> union = new LinkedHashSet<>(types1);
+            union.addAll(types2);
+            // Merges only ever grow the set, so capping it keeps the analysis finite
+            if (union.size() > MAX_TYPES)
+                return BasicValue.REFERENCE_VALUE;
+            return new TypesValue(union);
+        }
+    }
+
+    private static final class ClassKey {
+        private final long key0;
+        private final long key1;
+
+        ClassKey(long[] hash) {
+            this.key0 = hash[0];
+            this.key1 = hash[1];
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof ClassKey))
+                return false;
+            ClassKey other = (ClassKey) o;
+            return key0 == other.key0 && key1 == other.key1;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(key0, key1);
+        }
+    }
+}
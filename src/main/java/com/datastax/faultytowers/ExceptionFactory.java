@@ -0,0 +1,154 @@
+package com.datastax.faultytowers;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Modifier;
+
+/**
+ * Creates instances of a single exception class. The exception class and the constructor used to
+ * build it are resolved once, when the factory is created, into a {@link MethodHandle} so that
+ * every subsequent {@link #newInstance()} is a plain constructor invocation.
+ *
+ * Constructors are preferred in the following order: one that takes a {@code String} message, one
+ * that takes a {@code Throwable} cause, one that takes an {@code int}, and finally the no-arg
+ * constructor.
+ *
+ * If the class also has a {@code (String, Throwable, boolean, boolean)} constructor that can be
+ * called, as {@link RuntimeException} subclasses often do, {@link #newStackless()} uses it to build
+ * instances without a stack trace or suppression.
+ */
+final class ExceptionFactory {
+    private static final String MESSAGE = "injected exception";
+
+    private static final StackTraceElement[] NO_STACK_TRACE = new StackTraceElement[0];
+
+    private final String className;
+    private final MethodHandle constructor;
+    // Builds an instance without a stack trace, or null if the class does not allow it
+    private final MethodHandle stacklessConstructor;
+
+    private ExceptionFactory(String className, MethodHandle constructor, MethodHandle stacklessConstructor) {
+        this.className = className;
+        this.constructor = constructor;
+        this.stacklessConstructor = stacklessConstructor;
+    }
+
+    /**
+     * Resolve a factory for {@code exceptionClassName}.
+     * @param exceptionClassName The internal name of the exception class, e.g. {@code java/io/IOException}
+     * @param loader The class loader used to look up the exception class
+     * @throws RuntimeException if the class is not a {@link Throwable} or has no usable constructor
+     */
+    static ExceptionFactory forClassName(String exceptionClassName, ClassLoader loader) {
+        String fullyQualifiedClassName = exceptionClassName.replace("/", ".");
+        try {
+            Class<?> p = Class.forName(fullyQualifiedClassName, false, loader);
+            if (!Throwable.class.isAssignableFrom(p))
+                throw new RuntimeException("Class " + fullyQualifiedClassName + " is not a Throwable");
+
+            if (Modifier.isAbstract(p.getModifiers()))
+                throw new RuntimeException("Class " + fullyQualifiedClassName + " is abstract");
+
+            Constructor<?>[] constructors = p.getConstructors();
+            if (constructors.length == 0)
+                throw new RuntimeException("Failed to throw " + fullyQualifiedClassName + ": no constructors found");
+
+            return new ExceptionFactory(fullyQualifiedClassName, resolveConstructor(constructors),
+                    resolveStacklessConstructor(p));
+        } catch (ReflectiveOperationException e) {
+            throw new RuntimeException("Failed to throw " + fullyQualifiedClassName + ": " + e.getMessage(), e);
+        }
+    }
+
+    private static MethodHandle resolveConstructor(Constructor<?>[] constructors) throws ReflectiveOperationException {
+        Constructor<?> messageConstructor = null;
+        Constructor<?> causeConstructor = null;
+        Constructor<?> intConstructor = null;
+        Constructor<?> noArgConstructor = null;
+
+        for (Constructor<?> constructor : constructors) {
+            Class<?>[] parameterTypes = constructor.getParameterTypes();
+            if (parameterTypes.length == 0) {
+                noArgConstructor = constructor;
+            } else if (parameterTypes.length == 1) {
+                Class<?> parameterType = parameterTypes[0];
+                if (parameterType.equals(String.class))
+                    messageConstructor = constructor;
+                else if (Throwable.class.isAssignableFrom(parameterType) && parameterType.isAssignableFrom(RuntimeException.class))
+                    causeConstructor = constructor;
+                else if (parameterType.equals(int.class))
+                    intConstructor = constructor;
+            }
+        }
+
+        MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+        MethodHandle handle;
+        if (messageConstructor != null) {
+            handle = MethodHandles.insertArguments(lookup.unreflectConstructor(messageConstructor), 0, MESSAGE);
+        } else if (causeConstructor != null) {
+            // Build a fresh cause for every instance rather than sharing one between throws
+            MethodHandle newCause = MethodHandles.insertArguments(
+                    lookup.findConstructor(RuntimeException.class, MethodType.methodType(void.class, String.class)),
+                    0, MESSAGE);
+            MethodHandle constructor = lookup.unreflectConstructor(causeConstructor);
+            handle = MethodHandles.collectArguments(constructor, 0,
+                    newCause.asType(MethodType.methodType(constructor.type().parameterType(0))));
+        } else if (intConstructor != null) {
+            handle = MethodHandles.insertArguments(lookup.unreflectConstructor(intConstructor), 0, 1);
+        } else if (noArgConstructor != null) {
+            handle = lookup.unreflectConstructor(noArgConstructor);
+        } else {
+            throw new NoSuchMethodException("no zero or one argument constructor found");
+        }
+
+        return handle.asType(MethodType.methodType(Throwable.class));
+    }
+
+    // The constructor is often protected, so it is looked up with private access when the class's
+    // module allows it, as it does for every class on the class path
+    private static MethodHandle resolveStacklessConstructor(Class<?> c) {
+        MethodType type = MethodType.methodType(void.class, String.class, Throwable.class, boolean.class, boolean.class);
+        try {
+            Constructor<?> constructor = c.getDeclaredConstructor(type.parameterArray());
+            MethodHandles.Lookup lookup = Modifier.isPublic(constructor.getModifiers())
+                    ? MethodHandles.publicLookup()
+                    : MethodHandles.privateLookupIn(c, MethodHandles.lookup());
+            return MethodHandles.insertArguments(lookup.findConstructor(c, type), 0, MESSAGE, null, false, false)
+                    .asType(MethodType.methodType(Throwable.class));
+        } catch (ReflectiveOperationException | SecurityException e) {
+            return null;
+        }
+    }
+
+    String getClassName() {
+        return className;
+    }
+
+    /**
+     * Build a new instance of the exception.
+     */
+    Throwable newInstance() throws Throwable {
+        return (Throwable) constructor.invokeExact();
+    }
+
+    /**
+     * @return true if {@link #newStackless()} can build an instance without walking the stack.
+     */
+    boolean isStacklessSupported() {
+        return stacklessConstructor != null;
+    }
+
+    /**
+     * Build a new instance of the exception without a stack trace or suppression if the class allows
+     * it. Otherwise build a normal instance and clear its stack trace, which still pays for the walk.
+     */
+    Throwable newStackless() throws Throwable {
+        if (stacklessConstructor != null)
+            return (Throwable) stacklessConstructor.invokeExact();
+        Throwable t = newInstance();
+        t.setStackTrace(NO_STACK_TRACE);
+        return t;
+    }
+}
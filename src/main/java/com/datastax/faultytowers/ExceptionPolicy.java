@@ -0,0 +1,50 @@
+package com.datastax.faultytowers;
+
+import java.util.Locale;
+
+/**
+ * How a site builds the exception it throws. Building a new exception walks the whole stack, so at
+ * high injection rates the cost of the fault itself can swamp what is being measured; the cheaper
+ * policies trade away the stack trace, or the identity of each exception, to avoid that.
+ *
+ * A stack trace can only be left out when the exception class has a
+ * {@code (String, Throwable, boolean, boolean)} constructor that this agent can call, as
+ * {@link Throwable} fills in the trace in its constructor otherwise.
+ */
+enum ExceptionPolicy {
+    /**
+     * A new exception with a full stack trace for every throw.
+     */
+    FULL,
+    /**
+     * A new exception for every throw, built without a stack trace where the class allows it.
+     */
+    STACKLESS,
+    /**
+     * One exception per site, built on the first throw without a stack trace or suppression where the
+     * class allows it, and with its stack trace cleared otherwise. Every throw rethrows it.
+     */
+    CACHED,
+    /**
+     * One exception per site, built with a full stack trace on the first throw and rethrown on every
+     * later throw, so the trace is only captured once.
+     */
+    ONCE;
+
+    /**
+     * @throws IllegalArgumentException if {@code name} is not a policy, ignoring case.
+     */
+    static ExceptionPolicy parse(String name) {
+        try {
+            return valueOf(name.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown exception policy '" + name
+                    + "', expected full, stackless, cached or once");
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name().toLowerCase(Locale.ROOT);
+    }
+}
@@ -1,218 +1,874 @@
 package com.datastax.faultytowers;
 
 import com.google.common.annotations.VisibleForTesting;
-import jdk.internal.org.objectweb.asm.ClassReader;
-import jdk.internal.org.objectweb.asm.ClassWriter;
-import jdk.internal.org.objectweb.asm.Opcodes;
-import jdk.internal.org.objectweb.asm.tree.*;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.analysis.Analyzer;
 
-import java.io.FileOutputStream;
+import java.io.Closeable;
 import java.io.IOException;
 import java.lang.instrument.ClassFileTransformer;
-import java.lang.reflect.Constructor;
-import java.nio.charset.StandardCharsets;
+import java.lang.invoke.CallSite;
+import java.lang.invoke.ConstantCallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
 import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.stream.Stream;
 
 /**
  * A {@link ClassFileTransformer} that injects a throw statement at the beginning of each method
  * that either has a {@code throws} clause or throws an unchecked exception somewhere in its body.
  *
  * Injection can be controlled by specifying the {@code throwProbability} parameter that gets
- * passed to the {@link ExceptionThrower} constructor.
+ * passed to the {@link ExceptionThrower} constructor. Whether a method is chosen is decided by a
+ * {@link SiteRandom} derived from the run's seed and the method's name, so the same seed always
+ * chooses the same methods. Alternatively, a {@link ReplayPlan} recorded by a previous run chooses
+ * exactly the methods, and the hits on them, that threw before. A {@link MethodProfile} narrows the
+ * candidates down to the methods that a profile or coverage file says are most, or least, executed.
+ *
+ * In runtime mode every candidate method is instrumented and {@code throwProbability} is instead
+ * sampled on every hit with a per-thread {@link FastRandom}. The probability of each site can be
+ * changed at any time with {@link #setProbability(String, double)}, which is a volatile write and does
+ * not redefine any classes.
  *
  * Instead of actually injecting a {@code Opcode.ATHROW} instruction into the body of the method,
- * we inject a call to {@link ExceptionThrower#throwException()} which will throw an exception
- * provided that the {@code THROW_LIMIT} has not been exceeded.
+ * we inject an {@code invokedynamic} instruction that is linked by {@link #bootstrap} to an
+ * {@link InjectionCallSite}. While the site is armed it calls {@link #throwException} which will
+ * throw an exception provided that the throw limit has not been exceeded. Once the limit has been
+ * reached the call site is relinked to a no-op so that the method runs at full speed. Classes older
+ * than Java 7 cannot contain {@code invokedynamic} and get a plain static call instead.
+ *
+ * Transformed classes can be shared between JVMs through a {@link ClassCache} on disk.
  *
  * If a class has both a throws clause (checked exception) and throws an unchecked exception, the
  * checked exception takes precendence and will be thrown. There's no real reason this needs to be
  * true it's just an assumption to simplify the code.
  */
-public class ExceptionThrower implements ClassFileTransformer {
-    // Count how many times an exception has been throw for a method
-    private static final ConcurrentHashMap<String, AtomicInteger> throwCounter = new ConcurrentHashMap<>();
+public class ExceptionThrower implements ClassFileTransformer, Closeable {
+    private static final EventLog events = EventLog.global();
+    // The agent and ASM, which are one jar once ASM is shaded into the agent but several when running
+    // from a build tree
+    private static final List<ProtectionDomain> AGENT_DOMAINS = List.of(ExceptionThrower.class.getProtectionDomain(),
+            ClassReader.class.getProtectionDomain(), ClassNode.class.getProtectionDomain(),
+            Analyzer.class.getProtectionDomain());
+    private static final ClassLoader PLATFORM_LOADER = ClassLoader.getPlatformClassLoader();
     private final double throwProbability;
+    private final long seed;
+    private final ReplayPlan replayPlan;
+    private final boolean runtimeMode;
+    private final MethodProfile profile;
+    // Set before the transformer is registered, if at all
+    private ClassCache cache;
+    private ExceptionPolicy defaultExceptionPolicy = ExceptionPolicy.FULL;
+    private LatencyFault defaultLatencyFault;
+    private EntryPoints entryPoints;
+    private FaultPlan faultPlan;
+    // Replaced by the control MBean; only affects classes loaded afterwards
+    private volatile ClassNameFilter classFilter = ClassNameFilter.defaults();
+    private final TransformStats stats = new TransformStats();
+    // The names of the classes this transformer has changed, so that they can be restored
+    private final Set<String> transformedClasses = ConcurrentHashMap.newKeySet();
+
+    private static final String THROWER_CLASS_NAME = "com/datastax/faultytowers/ExceptionThrower";
+    private static final String CALL_SCOPE_CLASS_NAME = "com/datastax/faultytowers/CallScope";
+    private static final MethodHandle THROW_EXCEPTION;
+    private static final MethodHandle COUNT_INVOCATION;
+    private static final MethodHandle RETURNED;
+    private static final Handle BOOTSTRAP = new Handle(
+            Opcodes.H_INVOKESTATIC,
+            THROWER_CLASS_NAME,
+            "bootstrap",
+            MethodType.methodType(CallSite.class, MethodHandles.Lookup.class, String.class,
+                    MethodType.class, String.class, String.class, String.class, String.class).toMethodDescriptorString(),
+            false);
+    private static final Handle RETURNED_BOOTSTRAP = new Handle(
+            Opcodes.H_INVOKESTATIC,
+            THROWER_CLASS_NAME,
+            "bootstrapReturned",
+            MethodType.methodType(CallSite.class, MethodHandles.Lookup.class, String.class,
+                    MethodType.class, String.class, String.class, String.class, String.class).toMethodDescriptorString(),
+            false);
+
+    static {
+        try {
+            MethodType siteIdType = MethodType.methodType(void.class, int.class);
+            THROW_EXCEPTION = MethodHandles.lookup().findStatic(ExceptionThrower.class, "throwException", siteIdType);
+            COUNT_INVOCATION = MethodHandles.lookup().findStatic(ExceptionThrower.class, "countInvocation", siteIdType);
+            RETURNED = MethodHandles.lookup().findStatic(ExceptionThrower.class, "returned", siteIdType);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
 
     // By default we want to limit the number of times an exception is thrown to 1. This is to give
     // the app a chance to continue functioning after a failure.
-    @VisibleForTesting
-    public static long THROW_LIMIT = 1;
+    private static final long DEFAULT_THROW_LIMIT = 1;
+    private static volatile long throwLimit = DEFAULT_THROW_LIMIT;
+
+    // Probabilities set at runtime by class or package prefix, applied to sites registered later
+    private static final ConcurrentHashMap<String, Double> probabilityOverrides = new ConcurrentHashMap<>();
+
+    // Exception policies set at runtime by class or package prefix, applied to sites registered later
+    private static final ConcurrentHashMap<String, ExceptionPolicy> policyOverrides = new ConcurrentHashMap<>();
+
+    // Latency faults set at runtime by class or package prefix, applied to sites registered later.
+    // LatencyFault.NONE means throw rather than delay.
+    private static final ConcurrentHashMap<String, LatencyFault> latencyOverrides = new ConcurrentHashMap<>();
+
+    // Whether every hit, rather than just the sampled ones, must be counted to give exact hit ordinals
+    private static volatile boolean countEveryHit = true;
+
+    // Whether disarmed sites still count their invocations
+    private static volatile boolean countInvocations = false;
+
+    // Whether exit probes are injected to time the recovery from each throw
+    private static volatile boolean probeRecovery = false;
+
+    // Whether every fault is also emitted as a JFR event
+    private static volatile boolean emitFaultEvents = false;
 
     public ExceptionThrower(double throwProbability) {
+        this(throwProbability, SiteRandom.newSeed(), null, false);
+    }
+
+    /**
+     * @param throwProbability The probability of injecting an exception into each candidate method,
+     *                         or in runtime mode the probability of each hit throwing
+     * @param seed The seed for choosing methods
+     * @param replayPlan If not null, ignore {@code throwProbability} and re-throw the exceptions in this plan
+     * @param runtimeMode Whether to sample {@code throwProbability} on every hit
+     */
+    public ExceptionThrower(double throwProbability, long seed, ReplayPlan replayPlan, boolean runtimeMode) {
+        this(throwProbability, seed, replayPlan, runtimeMode, null);
+    }
+
+    /**
+     * @param profile If not null, only inject exceptions into the methods selected by this profile
+     */
+    ExceptionThrower(double throwProbability, long seed, ReplayPlan replayPlan, boolean runtimeMode,
+                     MethodProfile profile) {
         this.throwProbability = throwProbability;
+        this.seed = seed;
+        this.replayPlan = replayPlan;
+        this.runtimeMode = runtimeMode;
+        this.profile = profile;
+        FastRandom.setSeed(seed);
+    }
+
+    /**
+     * Choose whether every hit is counted in runtime mode, or only the hits that are sampled. Hit
+     * ordinals are only exact when every hit is counted, so this must be true while recording.
+     */
+    static void setCountEveryHit(boolean everyHit) {
+        countEveryHit = everyHit;
+    }
+
+    /**
+     * Turn on the optional per-site metrics. Must be called before the transformer is registered.
+     * @param invocations Count every invocation of an instrumented method, even while its site is
+     *                    disarmed, at the cost of a striped counter increment per call
+     * @param recovery Inject exit probes that time the recovery from each throw, see {@link RecoveryProbe}
+     */
+    static void enableMetrics(boolean invocations, boolean recovery) {
+        countInvocations = invocations;
+        probeRecovery = recovery;
+    }
+
+    /**
+     * Emit a {@link FaultEvent} for every fault injected from now on, for JFR recordings to pick up.
+     */
+    static void enableFaultEvents(boolean enabled) {
+        emitFaultEvents = enabled;
+    }
+
+    /**
+     * Set the probability of each hit throwing for every site whose name starts with {@code prefix},
+     * and for sites registered later. The prefix may be a package, a class or a single method, using
+     * {@code .} or {@code /} as the package separator. A probability of 0 disarms the sites.
+     *
+     * @return The number of existing sites that were changed.
+     */
+    public static int setProbability(String prefix, double probability) {
+        String internalPrefix = InjectionSite.prefixName(prefix);
+        probabilityOverrides.put(internalPrefix, probability);
+
+        List<InjectionCallSite> changed = new ArrayList<>();
+        int[] sites = {0};
+        InjectionSites.forEach(site -> {
+            if (!site.matches(internalPrefix))
+                return;
+            sites[0]++;
+            site.setProbability(probability);
+            if (shouldBeArmed(site, throwLimit))
+                site.arm();
+            else
+                site.disarm();
+            changed.addAll(site.getCallSites());
+        });
+        MutableCallSite.syncAll(changed.toArray(new MutableCallSite[0]));
+        return sites[0];
+    }
+
+    /**
+     * Set how every site whose name starts with {@code prefix}, and sites registered later, build the
+     * exceptions they throw. The prefix is matched as in {@link #setProbability(String, double)}.
+     *
+     * @return The number of existing sites that were changed.
+     */
+    public static int setExceptionPolicy(String prefix, ExceptionPolicy policy) {
+        String internalPrefix = InjectionSite.prefixName(prefix);
+        policyOverrides.put(internalPrefix, policy);
+
+        int[] sites = {0};
+        InjectionSites.forEach(site -> {
+            if (site.matches(internalPrefix)) {
+                sites[0]++;
+                site.setExceptionPolicy(policy);
+            }
+        });
+        return sites[0];
+    }
+
+    /**
+     * Set how sites without an override build their exceptions. Must be called before the transformer
+     * is registered.
+     */
+    void setDefaultExceptionPolicy(ExceptionPolicy policy) {
+        this.defaultExceptionPolicy = policy;
+    }
+
+    /**
+     * Make every site whose name starts with {@code prefix}, and sites registered later, inject a delay
+     * rather than throw when they fire, or throw again if {@code fault} is null. The prefix is matched
+     * as in {@link #setProbability(String, double)}, and the probability and throw limit still decide
+     * when a site fires.
+     *
+     * @return The number of existing sites that were changed.
+     */
+    public static int setLatencyFault(String prefix, LatencyFault fault) {
+        String internalPrefix = InjectionSite.prefixName(prefix);
+        latencyOverrides.put(internalPrefix, fault == null ? LatencyFault.NONE : fault);
+
+        int[] sites = {0};
+        InjectionSites.forEach(site -> {
+            if (site.matches(internalPrefix)) {
+                sites[0]++;
+                site.setLatencyFault(fault);
+            }
+        });
+        return sites[0];
+    }
+
+    /**
+     * Make sites without an override inject {@code fault} rather than throw, or throw if null. Must be
+     * called before the transformer is registered.
+     */
+    void setDefaultLatencyFault(LatencyFault fault) {
+        this.defaultLatencyFault = fault;
+    }
+
+    /**
+     * Only let sites throw while the thread is inside one of {@code entryPoints}, see {@link CallScope},
+     * or anywhere if null. Must be called before the transformer is registered.
+     */
+    void setEntryPoints(EntryPoints entryPoints) {
+        this.entryPoints = entryPoints;
+        CallScope.setScoped(entryPoints != null);
+    }
+
+    /**
+     * Give the sites matching the rules of {@code plan} their settings, see {@link FaultPlan}, unless
+     * they are changed at runtime. Must be called before the transformer is registered.
+     */
+    void setFaultPlan(FaultPlan plan) {
+        this.faultPlan = plan;
+    }
+
+    private SiteRule ruleFor(String siteName) {
+        return faultPlan == null ? SiteRule.NONE : faultPlan.ruleFor(siteName);
+    }
+
+    /**
+     * @return The probability of each hit throwing for a site that has no override. In load mode the
+     * probability has already been applied when choosing methods, so every hit throws.
+     */
+    double getDefaultProbability() {
+        return runtimeMode ? throwProbability : 1.0;
+    }
+
+    /**
+     * Only inject exceptions into classes accepted by {@code filter}. Classes that have already been
+     * transformed are not affected.
+     */
+    void setClassFilter(ClassNameFilter filter) {
+        classFilter = filter;
+    }
+
+    /**
+     * Look classes up in {@code cache} before transforming them, and add the ones that are not there.
+     * Must be called before the transformer is registered.
+     */
+    void setCache(ClassCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Close the class cache, if there is one, once the transformer has been removed.
+     */
+    @Override
+    public void close() throws IOException {
+        if (cache != null)
+            cache.close();
+    }
+
+    // The value set by the longest override matching a new site, or the default if none match
+    private static <T> T longestMatch(Map<String, T> overrides, InjectionSite site, T defaultValue) {
+        T value = defaultValue;
+        int longest = -1;
+        for (Map.Entry<String, T> override : overrides.entrySet()) {
+            String prefix = override.getKey();
+            if (prefix.length() > longest && site.matches(prefix)) {
+                longest = prefix.length();
+                value = override.getValue();
+            }
+        }
+        return value;
+    }
+
+    public static long getThrowLimit() {
+        return throwLimit;
+    }
+
+    /**
+     * Change the maximum number of times an exception is thrown from the same method. Call sites
+     * that have already thrown {@code limit} times are disarmed and all others are re-armed. Sites
+     * being replayed ignore the limit, and sites given a limit of their own by the {@link FaultPlan} keep it.
+     */
+    @VisibleForTesting
+    public static void setThrowLimit(long limit) {
+        throwLimit = limit;
+
+        List<InjectionCallSite> changed = new ArrayList<>();
+        InjectionSites.forEach(site -> {
+            if (shouldBeArmed(site, limit))
+                site.arm();
+            else
+                site.disarm();
+            changed.addAll(site.getCallSites());
+        });
+        MutableCallSite.syncAll(changed.toArray(new MutableCallSite[0]));
     }
 
     public byte[] transform(ClassLoader loader, String className,
                             Class<?> classBeingRedefined,
                             ProtectionDomain protectionDomain,
                             byte[] classFileBuffer) {
-        writeDebugLog("transforming: " + className);
-        return injectThrow(classFileBuffer);
+        long start = System.nanoTime();
+        try {
+            return injectThrow(loader, className, protectionDomain, classFileBuffer);
+        } finally {
+            stats.classSeen(System.nanoTime() - start);
+        }
+    }
+
+    TransformStats getTransformStats() {
+        return stats;
+    }
+
+    /**
+     * @return The internal names of every class this transformer has changed.
+     */
+    Set<String> getTransformedClasses() {
+        return transformedClasses;
     }
 
-    // Do not transform bytecode for JDK classes other transformers.
-    private boolean shouldIgnoreClassName(String className) {
-        if (Stream.of(
-                "java/",
-                "sun/",
-                "jdk/",
-                "org/junit/",
-                "org/jacoco/",
-                "org/apache/tools",
-                "org/slf4j",
-                "ch/qos").anyMatch(className::startsWith))
-            return true;
+    /**
+     * Disarm every site in the JVM, e.g. before the agent is removed.
+     */
+    static void disarmAll() {
+        List<InjectionCallSite> changed = new ArrayList<>();
+        InjectionSites.forEach(site -> {
+            site.disarm();
+            changed.addAll(site.getCallSites());
+        });
+        MutableCallSite.syncAll(changed.toArray(new MutableCallSite[0]));
+    }
 
-        return className.contains("$");
+    /**
+     * Drop every setting changed at runtime and every site's counters once the agent has been
+     * removed, so that the next agent installed in this JVM starts from its own options alone.
+     */
+    static void reset() {
+        probabilityOverrides.clear();
+        policyOverrides.clear();
+        latencyOverrides.clear();
+        throwLimit = DEFAULT_THROW_LIMIT;
+        InjectionSites.reset();
     }
 
     /**
-     * Given a {@code method}, inject a throw statement with the first exception specified in the
-     * {@code throws} clause. All subsequent executions of this method will trigger the injected
-     * throw statement.
+     * Given a class, inject a throw statement into the methods chosen by {@code selectMethods()}.
+     *
+     * Classes are rejected as cheaply as possible: first on their name alone, then by a streaming
+     * scan for candidate methods. Only classes that will actually be changed are parsed into a tree.
+     *
+     * @return The transformed class, or null if the class was not changed.
      */
-    private byte[] injectThrow(byte[] classFileBuffer) {
+    private byte[] injectThrow(ClassLoader loader, String className, ProtectionDomain protectionDomain,
+                               byte[] classFileBuffer) {
+        if (!accepts(loader, className, protectionDomain)) {
+            stats.classRejectedByName();
+            return null;
+        }
+
+        if (cache != null) {
+            ClassCache.Entry cached = cache.get(classFileBuffer);
+            if (cached != null) {
+                stats.classFromCache();
+                return cached.getBytes() == null ? null : injectCached(className, cached);
+            }
+        }
+
+        Set<String> selected = selectMethods(className, classFileBuffer);
+        if (selected.isEmpty() && !mayContainEntryPoints(className))
+            return withoutCandidates(classFileBuffer);
+
+        events.record(EventLog.TRANSFORM, -1, 0, 0, className);
+        // The tree is only analysed, never written, so it needs neither debug information nor frames
         ClassNode node = new ClassNode();
-        new ClassReader(classFileBuffer).accept(node, 0);
+        new ClassReader(classFileBuffer).accept(node, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+
+        List<String[]> sites = new ArrayList<>();
+        byte[] transformed = injectException(classFileBuffer, node, selected, sites, loader);
+        if (transformed == null)
+            return withoutCandidates(classFileBuffer);
+        // Without invokedynamic the site ids of this JVM are baked into the class, so it cannot be shared
+        if (cache != null && supportsInvokeDynamic(node))
+            cache.put(classFileBuffer, new ClassCache.Entry(sites, transformed));
+        transformedClasses.add(className);
+        stats.classTransformed();
+        return transformed;
+    }
+
+    private byte[] withoutCandidates(byte[] classFileBuffer) {
+        stats.classWithoutCandidates();
+        if (cache != null)
+            cache.put(classFileBuffer, new ClassCache.Entry(Collections.emptyList(), null));
+        return null;
+    }
 
-        if (shouldIgnoreClassName(node.name))
-            return classFileBuffer;
+    private boolean mayContainEntryPoints(String className) {
+        return entryPoints != null && entryPoints.mayContain(className);
+    }
+
+    // Register the sites of a class found in the cache exactly as injectException() would have done
+    private byte[] injectCached(String className, ClassCache.Entry cached) {
+        events.record(EventLog.TRANSFORM, -1, 0, 0, className);
+        for (String[] site : cached.getSites())
+            registerSite(className, site[0], site[1], site[2]);
+        transformedClasses.add(className);
+        stats.classTransformed();
+        return cached.getBytes();
+    }
 
-        return injectException(node);
+    // Never instrument the agent's own classes or ASM, otherwise throwException() ends up calling itself
+    // and the transformer throws the exceptions it injects. Classes from the bootstrap and platform
+    // loaders cannot see the agent's classes at all.
+    private boolean accepts(ClassLoader loader, String className, ProtectionDomain protectionDomain) {
+        return classFilter.accepts(className)
+                && (protectionDomain == null || !AGENT_DOMAINS.contains(protectionDomain))
+                && loader != null && loader != PLATFORM_LOADER;
     }
 
     /**
-     * Inject a throw statement at the beginning of each method that has a {@code throws} clause.
-     * @param node The class to inject the throw statements into.
-     * @return The transformed class.
+     * Decide whether {@link #transform} would change a class that has already been loaded, without
+     * recording anything, so that only those classes need to be retransformed.
+     *
+     * @param classFileBuffer The class file as found by the class's loader
      */
-    private byte[] injectException(ClassNode node) {
-        int size = node.methods.size();
-        node.methods.forEach(method -> {
-            // Choose whether to inject an exception with throwProbability
-            if (Math.random() > throwProbability)
-                return;
+    boolean wouldTransform(Class<?> c, byte[] classFileBuffer) {
+        String className = c.getName().replace('.', '/');
+        return !transformedClasses.contains(className)
+                && accepts(c.getClassLoader(), className, c.getProtectionDomain())
+                && (mayContainEntryPoints(className) || !selectMethods(className, classFileBuffer).isEmpty());
+    }
 
-            writeDebugLog("Injecting exception for method " + method.name + " in class " + node.name);
+    private Set<String> selectMethods(String className, byte[] classFileBuffer) {
+        if (profile != null && profile.needsLineNumbers()) {
+            CandidateScanner scanner = CandidateScanner.scanWithLines(classFileBuffer);
+            return selectMethods(className, scanner.getCandidates(), scanner);
+        }
+        return selectMethods(className, CandidateScanner.scan(classFileBuffer), null);
+    }
 
-            String exceptionClassName;
-            if (!method.exceptions.isEmpty())
-                exceptionClassName = method.exceptions.get(0);
-            else
-                exceptionClassName = getThrowInsnUncheckedExceptionClassName(method);
+    /**
+     * Choose which of the candidate methods to inject an exception into.
+     * @param candidates The name and descriptor of each method found by {@link CandidateScanner}
+     * @param lines The scanner that found the candidates if the profile needs their line numbers, or null
+     */
+    private Set<String> selectMethods(String className, List<String> candidates, CandidateScanner lines) {
+        Set<String> selected = new HashSet<>();
+        for (int i = 0; i < candidates.size(); i++) {
+            String candidate = candidates.get(i);
+            String siteName = className + "." + candidate;
+            if (replayPlan == null && profile != null && !(lines == null
+                    ? profile.contains(className, candidate, null, -1, -1)
+                    : profile.contains(className, candidate, lines.getSourceFile(), lines.getFirstLine(i), lines.getLastLine(i))))
+                continue;
 
-            if (exceptionClassName == null)
-                return;
+            if (replayPlan != null) {
+                if (replayPlan.contains(siteName))
+                    selected.add(candidate);
+            } else if (runtimeMode) {
+                selected.add(candidate);
+            } else if (SiteRandom.uniform(seed, siteName) < ruleFor(siteName).getProbability(throwProbability)) {
+                // Choose whether to inject an exception with the site's probability
+                selected.add(candidate);
+            }
+        }
+        return selected;
+    }
 
-            InsnList newInstructions = new InsnList();
-            newInstructions.add(new LdcInsnNode(node.name + "." + method.name));
-            newInstructions.add(new LdcInsnNode(exceptionClassName));
-            newInstructions.add(new MethodInsnNode(
-                    Opcodes.INVOKESTATIC,
-                    "com/datastax/faultytowers/ExceptionThrower",
-                    "throwException",
-                    "(Ljava/lang/String;Ljava/lang/String;)V",
-                    false
-                    ));
-
-            method.maxStack += newInstructions.size();
-            method.instructions.insertBefore(method.instructions.getFirst(), newInstructions);
-        });
-        ClassWriter writer = new ClassWriter(0);
-        node.accept(writer);
-        return writer.toByteArray();
+    /**
+     * Inject a throw statement at the beginning of each selected method that can throw an exception,
+     * as found by {@link ExceptionAnalyzer}, and mark the entry and exit of every entry point.
+     *
+     * The class is rewritten in a single streaming pass. Because the writer shares the original class
+     * file, methods that are not changed are copied as they are without being parsed again, and only the
+     * changed methods have their maximum stack size computed. The injected code never branches and
+     * leaves the stack as it found it, and the handler that marks the exit of an entry point by an
+     * exception needs no locals, so a frame for the handler is all the stack map ever gains. Frames are
+     * never recomputed, which would mean loading classes to find their common super classes.
+     *
+     * @param classFile The original class file
+     * @param node The class, used to find the exception for each method
+     * @param selected The name and descriptor of each method to inject into
+     * @param loader The class loader defining the class
+     * @return The transformed class, or null if no method was changed.
+     */
+    private byte[] injectException(byte[] classFile, ClassNode node, Set<String> selected, List<String[]> sites,
+                                   ClassLoader loader) {
+        Map<String, String> exceptions = ExceptionAnalyzer.exceptionClassNames(classFile, node, selected, loader);
+        boolean invokeDynamic = supportsInvokeDynamic(node);
+        boolean frames = (node.version & 0xFFFF) >= Opcodes.V1_6;
+        boolean[] changed = {false};
+        ClassReader reader = new ClassReader(classFile);
+        ClassWriter writer = new ClassWriter(reader, ClassWriter.COMPUTE_MAXS);
+        reader.accept(new ClassVisitor(Opcodes.ASM9, writer) {
+            @Override
+            public MethodVisitor visitMethod(int access, String name, String descriptor, String signature,
+                                             String[] exceptionNames) {
+                MethodVisitor methodVisitor = super.visitMethod(access, name, descriptor, signature, exceptionNames);
+                if ((access & (Opcodes.ACC_ABSTRACT | Opcodes.ACC_NATIVE)) != 0)
+                    return methodVisitor;
+
+                if (entryPoints != null && entryPoints.contains(node.name, name, descriptor)) {
+                    methodVisitor = new ScopingMethodVisitor(methodVisitor, frames);
+                    changed[0] = true;
+                }
+                String exceptionClassName = exceptions.get(name + descriptor);
+                if (exceptionClassName != null) {
+                    InjectionSite site = registerSite(node.name, name, descriptor, exceptionClassName);
+                    sites.add(new String[] {name, descriptor, exceptionClassName});
+                    methodVisitor = new InjectingMethodVisitor(methodVisitor, node.name, site, exceptionClassName,
+                            invokeDynamic);
+                    changed[0] = true;
+                }
+                return methodVisitor;
+            }
+        }, 0);
+        return changed[0] ? writer.toByteArray() : null;
     }
 
     /**
-     * If a method does not have a {@code throws} clause, then search the instructions to see if it
-     * throws an unchecked exception.
-     * @param method The method to search
-     * @return The name of the first unchecked exception that is thrown, or null if none is found.
+     * Calls {@link CallScope#enter()} on entry to an entry point and {@link CallScope#exit()} on every
+     * return, and on the way out of a catch all handler, covering the whole method, that rethrows. The
+     * handler comes last in the exception table, so it only sees what the method itself does not catch.
      */
-    private String getThrowInsnUncheckedExceptionClassName(MethodNode method) {
-        assert method.exceptions.isEmpty();
+    private static final class ScopingMethodVisitor extends MethodVisitor {
+        private static final Object[] NO_LOCALS = {};
+        private static final Object[] THROWABLE = {"java/lang/Throwable"};
+
+        private final boolean frames;
+        private final Label start = new Label();
+
+        ScopingMethodVisitor(MethodVisitor methodVisitor, boolean frames) {
+            super(Opcodes.ASM9, methodVisitor);
+            this.frames = frames;
+        }
+
+        @Override
+        public void visitCode() {
+            super.visitCode();
+            super.visitMethodInsn(Opcodes.INVOKESTATIC, CALL_SCOPE_CLASS_NAME, "enter", "()V", false);
+            super.visitLabel(start);
+        }
+
+        @Override
+        public void visitInsn(int opcode) {
+            if (opcode >= Opcodes.IRETURN && opcode <= Opcodes.RETURN)
+                super.visitMethodInsn(Opcodes.INVOKESTATIC, CALL_SCOPE_CLASS_NAME, "exit", "()V", false);
+            super.visitInsn(opcode);
+        }
 
-        // Return the first unchecked exception class name that we find
-        InsnList instructions = method.instructions;
-        for (AbstractInsnNode instruction : instructions.toArray()) {
-            if (instruction.getOpcode() == Opcodes.ATHROW) {
-                MethodInsnNode methodInsnNode = (MethodInsnNode) instruction.getPrevious();
-                return methodInsnNode.owner;
+        @Override
+        public void visitMaxs(int maxStack, int maxLocals) {
+            Label handler = new Label();
+            super.visitTryCatchBlock(start, handler, handler, null);
+            super.visitLabel(handler);
+            if (frames)
+                super.visitFrame(Opcodes.F_FULL, 0, NO_LOCALS, 1, THROWABLE);
+            super.visitMethodInsn(Opcodes.INVOKESTATIC, CALL_SCOPE_CLASS_NAME, "exit", "()V", false);
+            super.visitInsn(Opcodes.ATHROW);
+            super.visitMaxs(maxStack, maxLocals);
+        }
+    }
+
+    /**
+     * Calls {@code throwException} on method entry and, when recovery is probed, {@code returned} before
+     * every normal return.
+     */
+    private static final class InjectingMethodVisitor extends MethodVisitor {
+        private final String className;
+        private final InjectionSite site;
+        private final String exceptionClassName;
+        private final boolean invokeDynamic;
+        private final boolean probeReturns = probeRecovery;
+
+        InjectingMethodVisitor(MethodVisitor methodVisitor, String className, InjectionSite site,
+                               String exceptionClassName, boolean invokeDynamic) {
+            super(Opcodes.ASM9, methodVisitor);
+            this.className = className;
+            this.site = site;
+            this.exceptionClassName = exceptionClassName;
+            this.invokeDynamic = invokeDynamic;
+        }
+
+        @Override
+        public void visitCode() {
+            super.visitCode();
+            // The bootstrap looks the site up by name rather than id so that the rewritten class
+            // does not depend on the order in which this JVM happened to register sites.
+            callThrower("throwException", BOOTSTRAP);
+        }
+
+        @Override
+        public void visitInsn(int opcode) {
+            if (probeReturns && opcode >= Opcodes.IRETURN && opcode <= Opcodes.RETURN)
+                callThrower("returned", RETURNED_BOOTSTRAP);
+            super.visitInsn(opcode);
+        }
+
+        private void callThrower(String name, Handle bootstrap) {
+            if (invokeDynamic) {
+                super.visitInvokeDynamicInsn(name, InjectionCallSite.TYPE.toMethodDescriptorString(), bootstrap,
+                        className, site.getMethodName(), site.getDescriptor(), exceptionClassName);
+            } else {
+                super.visitLdcInsn(site.getId());
+                super.visitMethodInsn(Opcodes.INVOKESTATIC, THROWER_CLASS_NAME, name, "(I)V", false);
             }
         }
+    }
 
-        return null;
+    private InjectionSite registerSite(String className, String methodName, String descriptor,
+                                      String exceptionClassName) {
+        InjectionSite site = InjectionSites.register(className, methodName, descriptor, exceptionClassName);
+        // Settings changed at runtime win over the plan's
+        SiteRule rule = ruleFor(site.getName());
+        site.setThrowLimit(rule.getThrowLimit());
+        if (replayPlan != null)
+            site.setReplayOrdinals(replayPlan.getOrdinals(site.getName()));
+        else
+            site.setProbability(longestMatch(probabilityOverrides, site,
+                    runtimeMode ? rule.getProbability(throwProbability) : getDefaultProbability()));
+        site.setExceptionPolicy(longestMatch(policyOverrides, site, rule.getExceptionPolicy(defaultExceptionPolicy)));
+        LatencyFault latencyFault = longestMatch(latencyOverrides, site, rule.getLatencyFault(defaultLatencyFault));
+        site.setLatencyFault(latencyFault == LatencyFault.NONE ? null : latencyFault);
+        events.record(EventLog.INJECT, site.getId(), 0, 0, site.getName() + " " + exceptionClassName);
+        return site;
     }
 
-    private void writeDebugLog(String s) {
-        try (FileOutputStream fos = new FileOutputStream("/tmp/faulty.log", true)) {
-            String line = System.currentTimeMillis() + " " + s + "\n";
-            fos.write(line.getBytes(StandardCharsets.UTF_8));
-        } catch (IOException e) {
+    // invokedynamic is only valid in class files from Java 7 onwards
+    private static boolean supportsInvokeDynamic(ClassNode node) {
+        return (node.version & 0xFFFF) >= Opcodes.V1_7;
+    }
+
+    /**
+     * Bootstrap method for the {@code invokedynamic} prologue injected by {@code injectException()}.
+     * Links the instruction to a new {@link InjectionCallSite}, which starts out disarmed if the
+     * site has already reached the throw limit.
+     *
+     * @param className The internal name of the class containing the {@code invokedynamic}
+     * @param methodName The name of the method containing the {@code invokedynamic}
+     * @param descriptor The descriptor of the method containing the {@code invokedynamic}
+     * @param exceptionClassName The name of the exception to throw
+     */
+    @SuppressWarnings("unused")
+    public static CallSite bootstrap(MethodHandles.Lookup caller, String name, MethodType type,
+                                     String className, String methodName, String descriptor,
+                                     String exceptionClassName) {
+        InjectionSite site = InjectionSites.register(className, methodName, descriptor, exceptionClassName);
+
+        // Resolve the exception through the caller's loader now so the first throw is cheap. If that
+        // fails, leave it to throwException() to report the error when the site actually fires.
+        try {
+            site.resolveExceptionFactory(caller.lookupClass().getClassLoader());
+        } catch (RuntimeException e) {
             e.printStackTrace();
         }
+
+        MethodHandle disarmedTarget = countInvocations
+                ? MethodHandles.insertArguments(COUNT_INVOCATION, 0, site.getId())
+                : InjectionCallSite.NO_OP;
+        InjectionCallSite callSite = site.newCallSite(MethodHandles.insertArguments(THROW_EXCEPTION, 0, site.getId()),
+                disarmedTarget);
+        if (shouldBeArmed(site, throwLimit))
+            callSite.arm();
+        else
+            callSite.disarm();
+        return callSite;
+    }
+
+    /**
+     * Bootstrap method for the exit probes injected when recovery is being timed. The probe never
+     * changes, so the call site is constant.
+     */
+    @SuppressWarnings("unused")
+    public static CallSite bootstrapReturned(MethodHandles.Lookup caller, String name, MethodType type,
+                                             String className, String methodName, String descriptor,
+                                             String exceptionClassName) {
+        InjectionSite site = InjectionSites.register(className, methodName, descriptor, exceptionClassName);
+        return new ConstantCallSite(MethodHandles.insertArguments(RETURNED, 0, site.getId()));
+    }
+
+    /**
+     * The target of a disarmed site while invocations are being counted.
+     */
+    @SuppressWarnings("unused")
+    public static void countInvocation(int siteId) {
+        InjectionSites.get(siteId).countInvocation();
+    }
+
+    /**
+     * Invoked by the exit probes before every normal return from an instrumented method.
+     */
+    @SuppressWarnings("unused")
+    public static void returned(int siteId) {
+        RecoveryProbe.returned(InjectionSites.get(siteId));
+    }
+
+    // A site stays armed until it has used up its own or the global throw limit, or has passed its last recorded hit.
+    // Sites with a probability of 0 are never armed.
+    private static boolean shouldBeArmed(InjectionSite site, long limit) {
+        BitSet replayOrdinals = site.getReplayOrdinals();
+        if (replayOrdinals != null)
+            return InjectionSites.getHitCount(site.getId()) < replayOrdinals.length() - 1;
+        return site.getThreshold() != FastRandom.NEVER
+                && InjectionSites.getThrowCount(site.getId()) < site.getThrowLimit(limit);
     }
 
     /**
      * Invokved by the JVM to throw an exception. This method is injected into the bytecode via
-     * {@code injectException()}. The {@code exceptionClassName} parameter is the name of the exception to
-     * throw. {@code THROW_LIMIT} places a limit on the number of times that an exception is thrown
-     * from the same method.
+     * {@code injectException()}. The {@code siteId} parameter identifies the {@link InjectionSite},
+     * which knows the name of the exception to throw. The throw limit places a limit on the number of
+     * times that an exception is thrown from the same site.
+     *
+     * The throw limit is checked before anything else, and the site's call sites are disarmed as
+     * soon as the limit is reached, so that a method which has used up its limit stops calling
+     * this method altogether. The exception class and constructor are resolved
+     * once per site into an {@link ExceptionFactory} and reused for every later throw.
+     *
+     * Every call is counted so that each thrown exception can be recorded with its hit ordinal. When
+     * replaying, the site throws at exactly the recorded hit ordinals and the throw limit is ignored.
+     * Otherwise, in runtime mode, each hit only throws with the site's probability.
+     *
+     * Outside replays, a site only fires while there is room in its {@link Budget}, which is checked
+     * after sampling and the throw limit so that only hits that would fire pay for it.
+     *
+     * A site with a {@link LatencyFault} waits out a delay and returns instead of throwing, counting the
+     * delay against the throw limit like a throw. Delays are recorded with their hit ordinals too, so
+     * a replay given the same latency faults delays at the same hits.
      *
      * NOTE: A current limitation is that this method can only throw exceptions that have a zero or
      * one argument constructor.
      *
-     * @param callingMethodName The name of the method that called this method
-     * @param exceptionClassName The name of the exception to throw
+     * @param siteId The id of the site that called this method
      */
     @SuppressWarnings("unused")
-    public static void throwException(String callingMethodName, String exceptionClassName) throws Throwable {
-        Throwable throwable = null;
-        String fullyQualifiedClassName = exceptionClassName.replace("/", ".");
-        try {
-            Class <?> p = Class.forName(fullyQualifiedClassName, false, ClassLoader.getSystemClassLoader());
-            if (!Throwable.class.isAssignableFrom(p)) {
-                throw new RuntimeException("Class " + fullyQualifiedClassName + " is not a Throwable");
-            }
+    public static void throwException(int siteId) throws Throwable {
+        InjectionSite site = InjectionSites.get(siteId);
+        if (countInvocations)
+            site.countInvocation();
+        // Calls from outside every entry point, or on threads that are not targeted, are not hits at all,
+        // so that replays see the same ordinals
+        if (!CallScope.allows() || !ThreadFilter.allows())
+            return;
+        BitSet replayOrdinals = site.getReplayOrdinals();
+        long ordinal;
+        if (replayOrdinals != null || countEveryHit) {
+            ordinal = InjectionSites.countHit(siteId);
+            if (replayOrdinals == null && !FastRandom.sample(site.getThreshold()))
+                return;
+        } else {
+            if (!FastRandom.sample(site.getThreshold()))
+                return;
+            ordinal = InjectionSites.countHit(siteId);
+        }
 
-            Constructor<?>[] constructors = p.getConstructors();
-            if (constructors.length == 0)
-                throw new RuntimeException("Failed to throw " + fullyQualifiedClassName + ": no constructors found");
-
-            // Search through all constructors to find one that takes a single argument
-            for (Constructor<?> constructor : constructors) {
-                Class<?>[] parameterTypes = constructor.getParameterTypes();
-                if (parameterTypes.length == 1) {
-                    Class<?> parameterType = parameterTypes[0];
-                    if (parameterType.equals(String.class)) {
-                        throwable = (Throwable) constructor.newInstance("injected exception");
-                    }
-                    if (Throwable.class.isAssignableFrom(parameterType)) {
-                        throwable = (Throwable) constructor.newInstance(new RuntimeException("injected exception"));
-                    }
-                    if (parameterType.equals(int.class)) {
-                        throwable = (Throwable) constructor.newInstance(1);
-                    }
-                }
+        if (replayOrdinals != null) {
+            if (ordinal >= replayOrdinals.length() - 1)
+                site.disarm();
+            if (ordinal > Integer.MAX_VALUE || !replayOrdinals.get((int) ordinal))
+                return;
+            InjectionSites.countThrow(siteId, Long.MAX_VALUE);
+        } else {
+            // A site that has used up its limit must not take permits that other sites could use
+            long limit = site.getThrowLimit(throwLimit);
+            if (InjectionSites.getThrowCount(siteId) >= limit) {
+                site.disarm();
+                return;
             }
-
-            // Failing that, try to instantiate a no-arg constructor
-            if (throwable == null) {
-                throwable = (Throwable) p.newInstance();
+            if (!Budget.tryAcquire(siteId))
+                return;
+            long count = InjectionSites.countThrow(siteId, limit);
+            if (count < 0 || count >= limit)
+                site.disarm();
+            if (count < 0) {
+                // Another thread took the last throw in the meantime
+                Budget.release(siteId);
+                return;
             }
-        } catch (Exception e) {
-            e.printStackTrace();
-            throw new RuntimeException("Failed to throw " + fullyQualifiedClassName + ": " + e.getMessage());
         }
 
-        long counter = throwCounter.computeIfAbsent(callingMethodName,
-                k -> new AtomicInteger(0)).incrementAndGet();
-        if (counter > THROW_LIMIT)
+        LatencyFault latencyFault = site.getLatencyFault();
+        if (latencyFault != null) {
+            long delayNanos = site.injectDelay(latencyFault);
+            events.record(EventLog.DELAY, siteId, ordinal, delayNanos, null);
+            if (emitFaultEvents)
+                FaultEvent.emit(site, ordinal, delayNanos);
             return;
+        }
 
-        throw throwable;
+        events.record(EventLog.THROW, siteId, ordinal, 0, null);
+        if (emitFaultEvents)
+            FaultEvent.emit(site, ordinal, -1);
+        if (probeRecovery)
+            RecoveryProbe.thrown(site);
+        throw site.newException(ClassLoader.getSystemClassLoader());
     }
 }
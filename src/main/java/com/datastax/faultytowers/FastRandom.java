@@ -0,0 +1,82 @@
+package com.datastax.faultytowers;
+
+/**
+ * A per-thread xorshift random number generator for sampling on the instrumented code path.
+ *
+ * Each thread has its own state, so sampling never contends with other threads the way
+ * {@link Math#random()} does. Thread states are derived from a global seed and the thread's id.
+ *
+ * Probabilities are converted once into a {@code long} threshold with {@link #threshold(double)}, so
+ * that a sample is a shift and a compare, with no floating point arithmetic.
+ */
+final class FastRandom {
+    private static final ThreadLocal<FastRandom> RANDOM = ThreadLocal.withInitial(FastRandom::new);
+    private static volatile long seed = SiteRandom.newSeed();
+
+    // Never fires
+    static final long NEVER = -1;
+    // Always fires
+    static final long ALWAYS = Long.MAX_VALUE;
+
+    private long state;
+
+    private FastRandom() {
+        long s = SiteRandom.mix(seed ^ SiteRandom.mix(Thread.currentThread().getId()));
+        // xorshift must never be seeded with zero
+        state = s == 0 ? 1 : s;
+    }
+
+    /**
+     * Set the seed for threads that have not sampled yet.
+     */
+    static void setSeed(long newSeed) {
+        seed = newSeed;
+    }
+
+    /**
+     * @return A threshold that {@link #sample(long)} fires below with probability {@code probability}.
+     */
+    static long threshold(double probability) {
+        if (probability <= 0)
+            return NEVER;
+        if (probability >= 1)
+            return ALWAYS;
+        return (long) (probability * 0x1p63);
+    }
+
+    /**
+     * @return The probability that a threshold represents.
+     */
+    static double probability(long threshold) {
+        if (threshold < 0)
+            return 0;
+        if (threshold == ALWAYS)
+            return 1;
+        return threshold * 0x1p-63;
+    }
+
+    /**
+     * @return true with the probability represented by {@code threshold}.
+     */
+    static boolean sample(long threshold) {
+        if (threshold == ALWAYS)
+            return true;
+        return (RANDOM.get().next() >>> 1) <= threshold;
+    }
+
+    /**
+     * @return A uniformly distributed double in {@code [0, 1)}.
+     */
+    static double nextDouble() {
+        return (RANDOM.get().next() >>> 11) * 0x1p-53;
+    }
+
+    private long next() {
+        long x = state;
+        x ^= x << 13;
+        x ^= x >>> 7;
+        x ^= x << 17;
+        state = x;
+        return x;
+    }
+}
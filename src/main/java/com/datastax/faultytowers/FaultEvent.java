@@ -0,0 +1,61 @@
+package com.datastax.faultytowers;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * A JFR event for every fault a site injects, so that faults can be lined up with the latency spikes
+ * and GC pauses of the same recording. The event is committed on the thread the fault is injected
+ * into, so JFR records that thread and, if the recording asks for it, its stack trace.
+ *
+ * Each thread keeps one event object and reuses it for every fault, so emitting events adds no
+ * allocation to the throw path. Nothing is written unless a recording has the event enabled.
+ */
+@Name(FaultEvent.NAME)
+@Label("Injected Fault")
+@Category("Faulty Towers")
+@Description("An exception thrown or a delay injected by a Faulty Towers site")
+@StackTrace(false)
+final class FaultEvent extends Event {
+    static final String NAME = "com.datastax.faultytowers.InjectedFault";
+
+    private static final ThreadLocal<FaultEvent> EVENT = ThreadLocal.withInitial(FaultEvent::new);
+
+    @Label("Site")
+    @Description("The method the fault was injected into, with its descriptor")
+    String site;
+
+    @Label("Exception")
+    @Description("The internal name of the exception class, or null for a delay")
+    String exception;
+
+    @Label("Hit Ordinal")
+    @Description("The number of hits on the site up to and including this one")
+    long ordinal;
+
+    @Label("Delay")
+    @Timespan
+    long delay;
+
+    /**
+     * Emit an event for a site that has just thrown or delayed.
+     * @param delayNanos The delay injected in place of an exception, or a negative number if the site threw
+     */
+    static void emit(InjectionSite site, long ordinal, long delayNanos) {
+        FaultEvent event = EVENT.get();
+        if (!event.isEnabled())
+            return;
+        // Restart the event, as its start time is still that of the thread's last fault
+        event.begin();
+        event.site = site.getName();
+        event.exception = delayNanos < 0 ? site.getExceptionClassName() : null;
+        event.ordinal = ordinal;
+        event.delay = Math.max(0, delayNanos);
+        event.commit();
+    }
+}
@@ -0,0 +1,196 @@
+package com.datastax.faultytowers;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A declarative description of the faults to inject, loaded from a file when the agent starts.
+ *
+ * The file holds one entry per line. Blank lines and lines starting with {@code #} are ignored.
+ * <pre>
+ *   # Any agent option, unless it is also given in the agent arguments
+ *   seed=42
+ *   mode=runtime
+ *   probability=0.01
+ *   limit=5
+ *   # Classes to inject into, as for the control commands
+ *   include org.apache.cassandra.db
+ *   exclude org.apache.cassandra.db.commitlog
+ *   # The settings of the sites matching a package, class or method prefix
+ *   site org.apache.cassandra.db.ReadCommand probability=0.5 limit=10 exceptions=stackless
+ *   site org.apache.cassandra.db.ReadCommand.execute latency=pareto:1ms:1.5
+ * </pre>
+ * A site takes each setting from the longest prefix that sets it, so a rule for a method only has to
+ * name what differs from the rule for its class. {@code latency=none} makes a site throw again.
+ *
+ * The site rules are compiled once into a {@link PrefixTrie} holding, for every prefix, the settings
+ * merged from all of the shorter prefixes, so finding a site's settings is a single walk of its name.
+ * Rules for a whole method, with its descriptor, are also kept in a hash table, so looking one up
+ * costs a single hash. Sites are given their settings when they are registered, so the hot path only
+ * ever reads fields of the site.
+ */
+final class FaultPlan {
+    static final String INCLUDE = "include";
+    static final String EXCLUDE = "exclude";
+    static final String SITE = "site";
+    static final String PROBABILITY = "probability";
+    static final String LIMIT = "limit";
+    static final String EXCEPTIONS = "exceptions";
+    static final String LATENCY = "latency";
+
+    private final Map<String, String> options;
+    private final List<String> includes;
+    private final List<String> excludes;
+    private final PrefixTrie<SiteRule> rules;
+    // The rules for whole methods, keyed by the prefix name of the site
+    private final Map<String, SiteRule> methodRules;
+    private final int ruleCount;
+
+    private FaultPlan(Map<String, String> options, List<String> includes, List<String> excludes,
+                      Map<String, SiteRule> siteRules) {
+        this.options = Collections.unmodifiableMap(options);
+        this.includes = List.copyOf(includes);
+        this.excludes = List.copyOf(excludes);
+
+        // Sorting by length means every prefix is merged after all of its own prefixes
+        List<String> prefixes = new ArrayList<>(siteRules.keySet());
+        prefixes.sort((a, b) -> Integer.compare(a.length(), b.length()));
+        Map<String, SiteRule> merged = new HashMap<>();
+        Map<String, SiteRule> methodRules = new HashMap<>();
+        for (String prefix : prefixes) {
+            String longest = null;
+            for (String shorter : merged.keySet()) {
+                if (prefix.startsWith(shorter) && (longest == null || shorter.length() > longest.length()))
+                    longest = shorter;
+            }
+            SiteRule rule = (longest == null ? SiteRule.NONE : merged.get(longest))
+                    .overriddenBy(siteRules.get(prefix));
+            merged.put(prefix, rule);
+            if (prefix.indexOf(')') >= 0)
+                methodRules.put(prefix, rule);
+        }
+        this.rules = PrefixTrie.of(merged);
+        this.methodRules = Map.copyOf(methodRules);
+        this.ruleCount = siteRules.size();
+    }
+
+    /**
+     * @throws IOException if the file cannot be read or is malformed.
+     */
+    static FaultPlan load(Path path) throws IOException {
+        Map<String, String> options = new LinkedHashMap<>();
+        List<String> includes = new ArrayList<>();
+        List<String> excludes = new ArrayList<>();
+        Map<String, SiteRule> siteRules = new HashMap<>();
+        List<String> lines = Files.readAllLines(path, StandardCharsets.UTF_8);
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i).trim();
+            if (line.isEmpty() || line.startsWith("#"))
+                continue;
+
+            String[] fields = line.split("\\s+");
+            try {
+                switch (fields[0]) {
+                    case INCLUDE:
+                    case EXCLUDE:
+                        if (fields.length != 2)
+                            throw new IllegalArgumentException("expected " + fields[0] + " <prefix>");
+                        (fields[0].equals(INCLUDE) ? includes : excludes).add(fields[1]);
+                        break;
+                    case SITE:
+                        if (fields.length < 3)
+                            throw new IllegalArgumentException("expected site <prefix> <setting>=<value>...");
+                        String prefix = InjectionSite.prefixName(fields[1]);
+                        SiteRule rule = parseRule(fields);
+                        siteRules.merge(prefix, rule, SiteRule::overriddenBy);
+                        break;
+                    default:
+                        int equals = line.indexOf('=');
+                        if (equals <= 0)
+                            throw new IllegalArgumentException("expected key=value, include, exclude or site");
+                        options.put(line.substring(0, equals).trim(), line.substring(equals + 1).trim());
+                }
+            } catch (IllegalArgumentException e) {
+                throw new IOException(path + ":" + (i + 1) + ": " + e.getMessage());
+            }
+        }
+        return new FaultPlan(options, includes, excludes, siteRules);
+    }
+
+    private static SiteRule parseRule(String[] fields) {
+        Double probability = null;
+        Long throwLimit = null;
+        ExceptionPolicy policy = null;
+        LatencyFault latency = null;
+        for (int i = 2; i < fields.length; i++) {
+            int equals = fields[i].indexOf('=');
+            if (equals <= 0)
+                throw new IllegalArgumentException("expected <setting>=<value> but got '" + fields[i] + "'");
+            String key = fields[i].substring(0, equals);
+            String value = fields[i].substring(equals + 1);
+            switch (key) {
+                case PROBABILITY:
+                    probability = Double.parseDouble(value);
+                    if (probability < 0 || probability > 1)
+                        throw new IllegalArgumentException("probability must be between 0 and 1 but was " + value);
+                    break;
+                case LIMIT:
+                    throwLimit = Long.parseLong(value);
+                    if (throwLimit < 0)
+                        throw new IllegalArgumentException("limit must not be negative but was " + value);
+                    break;
+                case EXCEPTIONS:
+                    policy = ExceptionPolicy.parse(value);
+                    break;
+                case LATENCY:
+                    latency = value.equalsIgnoreCase(FaultyTowersControl.NO_LATENCY)
+                            ? LatencyFault.NONE : LatencyFault.parse(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown site setting '" + key + "'");
+            }
+        }
+        return new SiteRule(probability, throwLimit, policy, latency);
+    }
+
+    /**
+     * @return The agent options set by the plan, by key.
+     */
+    Map<String, String> getOptions() {
+        return options;
+    }
+
+    /**
+     * @return The classes to inject into, or null if the plan does not say.
+     */
+    ClassNameFilter getClassFilter() {
+        return includes.isEmpty() && excludes.isEmpty() ? null : ClassNameFilter.of(includes, excludes);
+    }
+
+    /**
+     * @param siteName The name of a site, see {@link InjectionSite#name(String, String, String)}
+     * @return The settings of the site, with null for those the plan leaves alone.
+     */
+    SiteRule ruleFor(String siteName) {
+        String name = InjectionSite.prefixName(siteName);
+        SiteRule rule = methodRules.get(name);
+        if (rule == null)
+            rule = rules.longestMatch(name);
+        return rule == null ? SiteRule.NONE : rule;
+    }
+
+    /**
+     * @return The number of prefixes with site rules.
+     */
+    int size() {
+        return ruleCount;
+    }
+}
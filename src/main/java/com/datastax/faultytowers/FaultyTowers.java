@@ -12,82 +12,278 @@ import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 
 import java.io.IOException;
+import java.io.PrintStream;
 import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * A Java Agent that injects exceptions into the JVM.
  */
 public class FaultyTowers {
-    private final String pid;
+    private final List<String> pids;
+    // A glob matching the main class of the JVMs to attach to, or null to only attach to pids
+    private final String mainClass;
     private final double throwProbability;
+    // Other agent options, see AgentOptions
+    private final Map<String, String> agentOptions;
+    // Whether to only send commands to an agent that is already installed
+    private final boolean controlOnly;
+    private final ControlCommands controlCommands;
 
     public FaultyTowers(String pid, double throwProbability) {
-        this.pid = pid;
+        this(pid, throwProbability, Collections.emptyMap());
+    }
+
+    public FaultyTowers(String pid, double throwProbability, Map<String, String> agentOptions) {
+        this(List.of(pid), null, throwProbability, agentOptions, false, new ControlCommands());
+    }
+
+    FaultyTowers(List<String> pids, String mainClass, double throwProbability, Map<String, String> agentOptions,
+                 boolean controlOnly, ControlCommands controlCommands) {
+        this.pids = List.copyOf(pids);
+        this.mainClass = mainClass;
         this.throwProbability = throwProbability;
+        this.agentOptions = new LinkedHashMap<>(agentOptions);
+        this.controlOnly = controlOnly;
+        this.controlCommands = controlCommands;
     }
 
+    /**
+     * @return The first of the JVMs given by process id, or null if there are none.
+     */
     public String getPid() {
-        return pid;
+        return pids.isEmpty() ? null : pids.get(0);
+    }
+
+    public List<String> getPids() {
+        return pids;
+    }
+
+    public String getMainClass() {
+        return mainClass;
+    }
+
+    /**
+     * @return Whether to drive several JVMs at once, see {@link Cluster}.
+     */
+    public boolean isCluster() {
+        return mainClass != null || pids.size() > 1;
     }
 
     public double getThrowProbability() {
         return throwProbability;
     }
 
+    public boolean isControlOnly() {
+        return controlOnly;
+    }
+
+    ControlCommands getControlCommands() {
+        return controlCommands;
+    }
+
+    public String getEventLogPath() {
+        return agentOptions.get(AgentOptions.LOG);
+    }
+
+    /**
+     * @return The argument string passed to the agent in the target JVM.
+     */
+    public String getAgentArgs() {
+        StringBuilder args = new StringBuilder(AgentOptions.PROBABILITY + "=" + throwProbability);
+        agentOptions.forEach((key, value) -> args.append(',').append(key).append('=').append(value));
+        return args.toString();
+    }
+
+    /**
+     * @return The argument string passed to the agent in the JVM at index {@code node} of the
+     * cluster. The agent of each JVM of a cluster is told its index, and adds {@code .<node>} to the
+     * path of every file it reads or writes for itself, see {@link AgentOptions}.
+     */
+    public String getAgentArgs(int node) {
+        if (!isCluster())
+            return getAgentArgs();
+        return getAgentArgs() + "," + AgentOptions.NODE + "=" + node;
+    }
+
     /**
      * Install the Java Agent into the current JVM and return the FaultyTowers object.
      */
     @VisibleForTesting
     public static void installAgent(double throwProbability) {
-        String pid = null;
+        installAgent(currentPid(), String.valueOf(throwProbability));
+    }
+
+    /**
+     * Install the Java Agent into the current JVM with the given agent options.
+     */
+    @VisibleForTesting
+    public static void installAgent(String agentArgs) {
+        installAgent(currentPid(), agentArgs);
+    }
+
+    static String currentPid() {
         String runtimeName = ManagementFactory.getRuntimeMXBean().getName();
         int processIdIndex = runtimeName.indexOf('@');
-        if (processIdIndex == -1) {
+        if (processIdIndex == -1)
             throw new IllegalStateException("Cannot extract process id from runtime management bean");
-        } else {
-            pid = runtimeName.substring(0, processIdIndex);
-        }
-        installAgent(pid, throwProbability);
+        return runtimeName.substring(0, processIdIndex);
+    }
+
+    private static void installAgent(String pid, String agentArgs) {
+        installAgent(pid, agentArgs, System.out);
     }
 
     /**
-     * Install the Java Agent into the JVM specified by pid and return the FaultyTowers object.
+     * Install the Java Agent into the JVM specified by pid.
      *
      * @param pid The target JVM process id.
+     * @param agentArgs The options to pass to the agent.
+     * @return Whether the agent was loaded.
      */
-    private static void installAgent(String pid, double throwProbability) {
+    static boolean installAgent(String pid, String agentArgs, PrintStream out) {
         assert pid != null;
 
         try {
-            System.out.println("Attaching to " + pid);
+            out.println("Attaching to " + pid);
             VirtualMachine vm = VirtualMachine.attach(pid);
-            String agentPath = System.getProperty("user.dir") + "/target/faulty-towers-1.0-SNAPSHOT.jar";
-
-            vm.loadAgent(agentPath, String.valueOf(throwProbability));
-            System.out.println("Agent loaded");
-//            return (FaultyTowers) Class.forName(Agent.class.getName(), true, ClassLoader.getSystemClassLoader())
-//                    .getMethod("getFaultyTowers")
-//                    .invoke(null);
-
+            vm.loadAgent(agentPath(), agentArgs);
+            vm.detach();
+            out.println("Agent loaded into " + pid);
+            return true;
         } catch (AttachNotSupportedException e) {
-            System.out.println("Attach not supported");
-            e.printStackTrace();
+            out.println("Attach not supported");
+            e.printStackTrace(out);
         } catch (AgentLoadException |AgentInitializationException | IOException e) {
-            e.printStackTrace();
+            e.printStackTrace(out);
         }
+        return false;
+    }
+
+    private static String agentPath() {
+        return System.getProperty("user.dir") + "/target/faulty-towers-1.0-SNAPSHOT.jar";
     }
 
     /**
-     * Remove the Java Agent from the target VM.
+     * Remove the Java Agent from the current JVM.
      */
     public static void removeAgent() {
-        // TODO
+        removeAgent(currentPid());
+    }
+
+    /**
+     * Remove the Java Agent from the target VM. The agent stops injecting exceptions and restores the
+     * original bytecode of every class that it changed.
+     *
+     * @param pid The target JVM process id.
+     */
+    public static void removeAgent(String pid) {
+        removeAgent(pid, System.out);
+    }
+
+    /**
+     * @return Whether the agent was removed.
+     */
+    static boolean removeAgent(String pid, PrintStream out) {
+        try {
+            out.println("Removing agent from " + pid);
+            VirtualMachine vm = VirtualMachine.attach(pid);
+            vm.loadAgent(agentPath(), Agent.UNLOAD);
+            vm.detach();
+            out.println("Agent removed from " + pid);
+            return true;
+        } catch (AttachNotSupportedException e) {
+            out.println("Attach not supported");
+            e.printStackTrace(out);
+        } catch (AgentLoadException | AgentInitializationException | IOException e) {
+            e.printStackTrace(out);
+        }
+        return false;
+    }
+
+    /**
+     * Send commands to the agent installed in the target VM.
+     *
+     * @param pid The target JVM process id.
+     */
+    static void control(String pid, ControlCommands commands, PrintStream out) {
+        try (ControlClient client = ControlClient.connect(pid)) {
+            commands.apply(client.getControl(), out);
+        } catch (AttachNotSupportedException e) {
+            out.println("Attach not supported");
+            e.printStackTrace(out);
+        } catch (IOException e) {
+            e.printStackTrace(out);
+        }
     }
 
     public static void main(String[] args) {
         FaultyTowers faultyTowers = buildFaultyTowers(args);
-        installAgent(faultyTowers.getPid(), faultyTowers.getThrowProbability());
+        if (faultyTowers == null)
+            return;
+
+        if (faultyTowers.isCluster()) {
+            runCluster(faultyTowers);
+            return;
+        }
+
+        if (faultyTowers.isControlOnly()) {
+            control(faultyTowers.getPid(), faultyTowers.getControlCommands(), System.out);
+            return;
+        }
+
+        installAgent(faultyTowers.getPid(), faultyTowers.getAgentArgs());
+        if (!faultyTowers.getControlCommands().isEmpty())
+            control(faultyTowers.getPid(), faultyTowers.getControlCommands(), System.out);
+        // Ctrl-C runs shutdown hooks rather than interrupting the sleep below
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> removeAgent(faultyTowers.getPid())));
+        waitForExit();
+    }
+
+    private static void runCluster(FaultyTowers faultyTowers) {
+        List<String> pids = new ArrayList<>(faultyTowers.getPids());
+        if (faultyTowers.getMainClass() != null) {
+            for (String pid : Cluster.find(faultyTowers.getMainClass())) {
+                if (!pids.contains(pid))
+                    pids.add(pid);
+            }
+        }
+        if (pids.isEmpty()) {
+            System.out.println("No JVMs match '" + faultyTowers.getMainClass() + "'");
+            return;
+        }
+        Cluster cluster = new Cluster(pids);
+        System.out.println("Cluster of " + pids.size() + " JVMs: " + pids);
 
+        ControlCommands commands = faultyTowers.getControlCommands();
+        if (faultyTowers.isControlOnly()) {
+            cluster.control(commands, System.out);
+            if (commands.isPrintingStats())
+                cluster.report(System.out).print(System.out);
+            return;
+        }
+
+        int installed = cluster.install(faultyTowers::getAgentArgs, System.out);
+        System.out.println("Agent loaded into " + installed + " of " + pids.size() + " JVMs with "
+                + faultyTowers.getAgentArgs());
+        if (!commands.isEmpty())
+            cluster.control(commands, System.out);
+        // Gather the counters before the agents, and their counters, are removed
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            cluster.report(System.out).print(System.out);
+            cluster.remove(System.out);
+        }));
+        waitForExit();
+    }
+
+    private static void waitForExit() {
         // Wait for Ctrl-C
         System.out.println("Press Ctrl-C to exit");
         try {
@@ -98,7 +294,6 @@ public class FaultyTowers {
         } catch (InterruptedException e) {
             // Ignore
         }
-        FaultyTowers.removeAgent();
     }
 
     @VisibleForTesting
@@ -110,28 +305,196 @@ public class FaultyTowers {
     public static FaultyTowers buildFaultyTowers(String[] args) {
         Options options = new Options();
         options.addOption("p", "prob", true, "Probability of throwing an exception");
-        options.addOption("P", "pid", true, "Process ID of target JVM");
+        options.addOption("P", "pid", true, "Process ID of target JVM, or comma separated IDs of several JVMs to drive at once");
+        options.addOption(null, "main", true, "Drive every JVM whose main class or jar matches this glob at once, e.g. *CassandraDaemon");
+        options.addOption("l", "log", true, "Path of the event log written by the agent");
+        options.addOption("s", "seed", true, "Seed for the agent's random choices");
+        options.addOption("r", "record", true, "Path of a replay file to record thrown exceptions and delays to");
+        options.addOption("R", "replay", true, "Path of a replay file to re-throw exactly the recorded exceptions");
+        options.addOption(null, "profile", true, "JFR recording, JaCoCo .exec or file:line coverage file choosing the methods to inject into");
+        options.addOption(null, "select", true, "Inject into the hot (most) or cold (least) executed methods of the profile");
+        options.addOption(null, "fraction", true, "Fraction of the executed methods in the profile to inject into");
+        options.addOption(null, "loaded", true, "Whether to also inject into classes that are already loaded (default true)");
+        options.addOption(null, "cache", true, "Directory of a transformed class cache shared by JVMs with the same seed");
+        options.addOption(null, "plan", true, "Fault plan file giving agent options, classes to inject into and the settings of individual sites");
+        options.addOption("c", "control", false, "Send commands to an agent that is already installed, then exit");
+        options.addOption(null, "limit", true, "Maximum number of throws from each site");
+        options.addOption(null, "site", true, "Set the probability of matching sites, as prefix=probability");
+        options.addOption(null, "exceptions", true, "How sites build exceptions: full, stackless, cached or once, optionally as prefix=policy");
+        options.addOption(null, "latency", true, "Inject a delay instead of an exception, e.g. fixed:5ms, exponential:2ms or pareto:1ms:1.5:spin, optionally as prefix=latency or prefix=none");
+        options.addOption(null, "metrics", false, "Count every invocation of an instrumented method, even while its site is disarmed");
+        options.addOption(null, "recovery", false, "Time how long the application takes to recover from each throw");
+        options.addOption(null, "jfr", false, "Emit a JFR event for every injected fault");
+        options.addOption(null, "ndjson", true, "Path of a file to stream every event to as JSON lines");
+        options.addOption(null, "snapshot-file", true, "Path of a file to write the site metrics to periodically");
+        options.addOption(null, "snapshot-interval", true, "Time between metrics snapshots, e.g. 10s (default)");
+        options.addOption(null, "budget", true, "Most faults injected across the JVM, as permits/period, e.g. 100/1s");
+        options.addOption(null, "per-site-budget", true, "Most faults injected by each site, as permits/period, e.g. 1/10m");
+        options.addOption(null, "delay", true, "Time after the agent starts before any fault is injected, e.g. 30s");
+        options.addOption(null, "entry", true, "Only throw while a thread is inside a method matching this package, class or method prefix");
+        options.addOption(null, "threads", true, "Only throw on threads whose name matches this pattern, e.g. ReadStage-*, or group:<name> for a thread group, or all");
+        options.addOption(null, "arm", true, "Arm the sites matching a package, class or method prefix");
+        options.addOption(null, "disarm", true, "Disarm the sites matching a package, class or method prefix");
+        options.addOption(null, "include", true, "Comma separated class prefixes to inject into from now on");
+        options.addOption(null, "exclude", true, "Comma separated class prefixes not to inject into from now on");
+        options.addOption(null, "stats", false, "Print the agent's live counters");
 
-        String pid = null;
+        List<String> pids;
+        String mainClass;
         double throwProbability = 1.0;
+        Map<String, String> agentOptions = new LinkedHashMap<>();
+        ControlCommands controlCommands = new ControlCommands();
+        boolean controlOnly;
         CommandLineParser parser = new DefaultParser();
         try {
             CommandLine cmd = parser.parse(options, args);
-            if (!cmd.hasOption("pid") || cmd.getOptionValue("pid").isEmpty()) {
-                System.out.println("Missing --pid (-P) param");
+            pids = prefixes(cmd, "pid");
+            mainClass = cmd.getOptionValue("main");
+            if (pids.isEmpty() && (mainClass == null || mainClass.isEmpty())) {
+                System.out.println("Missing --pid (-P) or --main param");
                 return null;
             }
-            pid = cmd.getOptionValue("pid");
 
             if (cmd.hasOption("prob"))
                 throwProbability = Double.parseDouble(cmd.getOptionValue("prob"));
 
-        } catch (ParseException e) {
+            if (cmd.hasOption("seed"))
+                agentOptions.put(AgentOptions.SEED, String.valueOf(Long.parseLong(cmd.getOptionValue("seed"))));
+
+            for (String option : new String[] {AgentOptions.LOG, AgentOptions.RECORD, AgentOptions.REPLAY,
+                    AgentOptions.PROFILE, AgentOptions.SELECT, AgentOptions.FRACTION, AgentOptions.LOADED,
+                    AgentOptions.CACHE, AgentOptions.PLAN, AgentOptions.NDJSON}) {
+                if (cmd.hasOption(option))
+                    agentOptions.put(option, cmd.getOptionValue(option));
+            }
+            if (cmd.hasOption("snapshot-file"))
+                agentOptions.put(AgentOptions.SNAPSHOT, cmd.getOptionValue("snapshot-file"));
+            if (cmd.hasOption("snapshot-interval"))
+                agentOptions.put(AgentOptions.SNAPSHOT_INTERVAL, cmd.getOptionValue("snapshot-interval"));
+            if (cmd.hasOption("budget"))
+                agentOptions.put(AgentOptions.BUDGET, RateLimit.parse(cmd.getOptionValue("budget")).toString());
+            if (cmd.hasOption("per-site-budget"))
+                agentOptions.put(AgentOptions.SITE_BUDGET,
+                        RateLimit.parse(cmd.getOptionValue("per-site-budget")).toString());
+            if (cmd.hasOption("delay"))
+                agentOptions.put(AgentOptions.DELAY, LatencyFault.parseDuration(cmd.getOptionValue("delay")) + "ns");
+            if (cmd.hasOption("entry"))
+                agentOptions.put(AgentOptions.ENTRY, EntryPoints.parse(String.join(EntryPoints.SEPARATOR,
+                        optionValues(cmd, "entry"))).toString());
+            for (String flag : new String[] {AgentOptions.METRICS, AgentOptions.RECOVERY, AgentOptions.JFR}) {
+                if (cmd.hasOption(flag))
+                    agentOptions.put(flag, "true");
+            }
+
+            controlOnly = cmd.hasOption("control");
+            // An installed agent has already chosen its methods, so the probability applies to every site
+            if (controlOnly && cmd.hasOption("prob"))
+                controlCommands.setProbability("", throwProbability);
+            // A latency without a prefix is the agent's default, or applies to every site of an installed agent
+            for (String latency : optionValues(cmd, "latency")) {
+                if (latency.indexOf('=') >= 0)
+                    continue;
+                if (controlOnly)
+                    controlCommands.setLatency("", latency);
+                else
+                    agentOptions.put(AgentOptions.LATENCY, LatencyFault.parse(latency).toString());
+            }
+            // The threads of a new agent, or of an installed one
+            if (cmd.hasOption("threads")) {
+                String threads = String.join(ThreadFilter.SEPARATOR, optionValues(cmd, "threads"));
+                if (controlOnly)
+                    controlCommands.setThreadFilter(threads.trim().equalsIgnoreCase(ThreadFilter.ALL)
+                            ? ThreadFilter.ALL : ThreadFilter.parse(threads).toString());
+                else
+                    agentOptions.put(AgentOptions.THREADS, ThreadFilter.parse(threads).toString());
+            }
+            // A policy without a prefix is the agent's default, or applies to every site of an installed agent
+            for (String policy : optionValues(cmd, "exceptions")) {
+                if (policy.indexOf('=') >= 0)
+                    continue;
+                if (controlOnly)
+                    controlCommands.setExceptionPolicy("", ExceptionPolicy.parse(policy));
+                else
+                    agentOptions.put(AgentOptions.EXCEPTIONS, ExceptionPolicy.parse(policy).toString());
+            }
+            if (!parseControlCommands(cmd, controlCommands))
+                return null;
+
+            // Every JVM of a cluster gets the same seed, so that a run can be repeated and they can share a class cache
+            if ((mainClass != null || pids.size() > 1) && !controlOnly && !agentOptions.containsKey(AgentOptions.SEED)
+                    && !planSetsSeed(agentOptions.get(AgentOptions.PLAN)))
+                agentOptions.put(AgentOptions.SEED, String.valueOf(SiteRandom.newSeed()));
+
+        } catch (ParseException | IllegalArgumentException | IOException e) {
             e.printStackTrace();
             return null;
         }
 
-        return new FaultyTowers(pid, throwProbability);
+        return new FaultyTowers(pids, mainClass, throwProbability, agentOptions, controlOnly, controlCommands);
+    }
+
+    // A plan that is not readable from here is left to the agents to load
+    private static boolean planSetsSeed(String plan) throws IOException {
+        if (plan == null || !Files.isReadable(Paths.get(plan)))
+            return false;
+        return FaultPlan.load(Paths.get(plan)).getOptions().containsKey(AgentOptions.SEED);
+    }
+
+    // Returns false if a command is malformed
+    private static boolean parseControlCommands(CommandLine cmd, ControlCommands commands) {
+        if (cmd.hasOption("limit"))
+            commands.setThrowLimit(Long.parseLong(cmd.getOptionValue("limit")));
+
+        for (String site : optionValues(cmd, "site")) {
+            int equals = site.lastIndexOf('=');
+            if (equals < 0) {
+                System.out.println("Expected --site prefix=probability but got '" + site + "'");
+                return false;
+            }
+            commands.setProbability(site.substring(0, equals), Double.parseDouble(site.substring(equals + 1)));
+        }
+
+        for (String policy : optionValues(cmd, "exceptions")) {
+            int equals = policy.lastIndexOf('=');
+            if (equals >= 0)
+                commands.setExceptionPolicy(policy.substring(0, equals), ExceptionPolicy.parse(policy.substring(equals + 1)));
+        }
+
+        for (String latency : optionValues(cmd, "latency")) {
+            int equals = latency.lastIndexOf('=');
+            if (equals < 0)
+                continue;
+            String value = latency.substring(equals + 1);
+            if (!value.trim().equalsIgnoreCase(FaultyTowersControl.NO_LATENCY))
+                LatencyFault.parse(value);
+            commands.setLatency(latency.substring(0, equals), value);
+        }
+
+        optionValues(cmd, "disarm").forEach(commands::disarm);
+        optionValues(cmd, "arm").forEach(commands::arm);
+
+        if (cmd.hasOption("include") || cmd.hasOption("exclude"))
+            commands.setClassFilter(prefixes(cmd, "include"), prefixes(cmd, "exclude"));
+
+        if (cmd.hasOption("stats"))
+            commands.printStats();
+        return true;
+    }
+
+    private static List<String> optionValues(CommandLine cmd, String option) {
+        String[] values = cmd.getOptionValues(option);
+        return values == null ? Collections.emptyList() : Arrays.asList(values);
+    }
+
+    private static List<String> prefixes(CommandLine cmd, String option) {
+        List<String> prefixes = new ArrayList<>();
+        for (String value : optionValues(cmd, option)) {
+            for (String prefix : value.split(",")) {
+                if (!prefix.trim().isEmpty())
+                    prefixes.add(prefix.trim());
+            }
+        }
+        return prefixes;
     }
 
 }
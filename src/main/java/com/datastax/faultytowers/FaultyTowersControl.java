@@ -0,0 +1,156 @@
+package com.datastax.faultytowers;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.IntToLongFunction;
+
+/**
+ * The {@link FaultyTowersMXBean} registered by the agent for a single {@link ExceptionThrower}.
+ */
+final class FaultyTowersControl implements FaultyTowersMXBean {
+    // The latency that makes sites throw again
+    static final String NO_LATENCY = "none";
+
+    private final ExceptionThrower thrower;
+
+    FaultyTowersControl(ExceptionThrower thrower) {
+        this.thrower = thrower;
+    }
+
+    @Override
+    public int setProbability(String prefix, double probability) {
+        if (probability < 0 || probability > 1)
+            throw new IllegalArgumentException("Probability must be between 0 and 1 but was " + probability);
+        return ExceptionThrower.setProbability(prefix, probability);
+    }
+
+    @Override
+    public int arm(String prefix) {
+        return ExceptionThrower.setProbability(prefix, thrower.getDefaultProbability());
+    }
+
+    @Override
+    public int disarm(String prefix) {
+        return ExceptionThrower.setProbability(prefix, 0.0);
+    }
+
+    @Override
+    public int setExceptionPolicy(String prefix, String policy) {
+        return ExceptionThrower.setExceptionPolicy(prefix, ExceptionPolicy.parse(policy));
+    }
+
+    @Override
+    public int setLatency(String prefix, String latency) {
+        LatencyFault fault = latency.trim().equalsIgnoreCase(NO_LATENCY) ? null : LatencyFault.parse(latency);
+        return ExceptionThrower.setLatencyFault(prefix, fault);
+    }
+
+    @Override
+    public long getThrowLimit() {
+        return ExceptionThrower.getThrowLimit();
+    }
+
+    @Override
+    public void setThrowLimit(long limit) {
+        if (limit < 0)
+            throw new IllegalArgumentException("Throw limit must not be negative but was " + limit);
+        ExceptionThrower.setThrowLimit(limit);
+    }
+
+    @Override
+    public void setClassFilter(String[] includes, String[] excludes) {
+        thrower.setClassFilter(ClassNameFilter.of(Arrays.asList(includes), Arrays.asList(excludes)));
+    }
+
+    @Override
+    public void setThreadFilter(String threads) {
+        ThreadFilter.setCurrent(threads.trim().equalsIgnoreCase(ThreadFilter.ALL) ? null : ThreadFilter.parse(threads));
+    }
+
+    @Override
+    public String getThreadFilter() {
+        ThreadFilter filter = ThreadFilter.getCurrent();
+        return filter == null ? ThreadFilter.ALL : filter.toString();
+    }
+
+    @Override
+    public int getSiteCount() {
+        return InjectionSites.size();
+    }
+
+    @Override
+    public long getTotalHits() {
+        return total(InjectionSites::getHitCount);
+    }
+
+    @Override
+    public long getTotalThrows() {
+        return total(InjectionSites::getThrowCount);
+    }
+
+    @Override
+    public Map<String, Long> getHitCounts() {
+        return counts(InjectionSites::getHitCount);
+    }
+
+    @Override
+    public Map<String, Long> getThrowCounts() {
+        return counts(InjectionSites::getThrowCount);
+    }
+
+    @Override
+    public Map<String, String> getDelays() {
+        Map<String, String> delays = new TreeMap<>();
+        InjectionSites.forEach(site -> {
+            LatencyHistogram histogram = site.getDelays();
+            if (histogram != null)
+                delays.put(site.getName(), histogram.toString());
+        });
+        return delays;
+    }
+
+    @Override
+    public Map<String, Long> getInvocationCounts() {
+        Map<String, Long> counts = new TreeMap<>();
+        InjectionSites.forEach(site -> {
+            long count = site.getInvocations();
+            if (count > 0)
+                counts.put(site.getName(), count);
+        });
+        return counts;
+    }
+
+    @Override
+    public Map<String, String> getRecoveryTimes() {
+        Map<String, String> recoveries = new TreeMap<>();
+        InjectionSites.forEach(site -> {
+            LatencyHistogram histogram = site.getRecoveries();
+            if (histogram != null)
+                recoveries.put(site.getName(), histogram.toString());
+        });
+        return recoveries;
+    }
+
+    @Override
+    public String getTransformStats() {
+        return thrower.getTransformStats().toString();
+    }
+
+    private static long total(IntToLongFunction counter) {
+        long[] total = {0};
+        InjectionSites.forEach(site -> total[0] += counter.applyAsLong(site.getId()));
+        return total[0];
+    }
+
+    // Sites that have never been counted are left out, as most sites in a large application are never hit
+    private static Map<String, Long> counts(IntToLongFunction counter) {
+        Map<String, Long> counts = new TreeMap<>();
+        InjectionSites.forEach(site -> {
+            long count = counter.applyAsLong(site.getId());
+            if (count > 0)
+                counts.put(site.getName(), count);
+        });
+        return counts;
+    }
+}
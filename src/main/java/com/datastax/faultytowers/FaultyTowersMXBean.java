@@ -0,0 +1,104 @@
+package com.datastax.faultytowers;
+
+import java.util.Map;
+
+/**
+ * Controls an installed agent while the target JVM is running. The agent registers itself under
+ * {@link #OBJECT_NAME} in the platform MBean server, and the CLI talks to it through
+ * {@link ControlClient}.
+ *
+ * Every command takes effect through volatile writes and call site relinking, so no classes are
+ * redefined. Site prefixes are package, class or method names using {@code .} or {@code /} as the
+ * package separator.
+ */
+public interface FaultyTowersMXBean {
+    String OBJECT_NAME = "com.datastax.faultytowers:type=FaultyTowers";
+
+    /**
+     * Set the probability of each hit throwing for the sites matching {@code prefix}.
+     * @return The number of existing sites that were changed.
+     */
+    int setProbability(String prefix, double probability);
+
+    /**
+     * Arm the sites matching {@code prefix} with the agent's default probability.
+     * @return The number of existing sites that were changed.
+     */
+    int arm(String prefix);
+
+    /**
+     * Stop the sites matching {@code prefix} from throwing.
+     * @return The number of existing sites that were changed.
+     */
+    int disarm(String prefix);
+
+    /**
+     * Set how the sites matching {@code prefix} build their exceptions: {@code full}, {@code stackless},
+     * {@code cached} or {@code once}, see {@link ExceptionPolicy}.
+     * @return The number of existing sites that were changed.
+     */
+    int setExceptionPolicy(String prefix, String policy);
+
+    /**
+     * Make the sites matching {@code prefix} inject a delay rather than throw, written as in
+     * {@link LatencyFault}, e.g. {@code pareto:1ms:1.5}. {@code none} makes them throw again.
+     * @return The number of existing sites that were changed.
+     */
+    int setLatency(String prefix, String latency);
+
+    long getThrowLimit();
+
+    void setThrowLimit(long limit);
+
+    /**
+     * Only inject exceptions into classes loaded from now on whose names match {@code includes} and
+     * not {@code excludes}. An empty {@code includes} accepts every class that is not excluded.
+     */
+    void setClassFilter(String[] includes, String[] excludes);
+
+    /**
+     * Only let sites throw on the threads matching {@code threads}, written as in {@link ThreadFilter},
+     * e.g. {@code ReadStage-*|group:compaction}. {@code all} lets them throw on every thread again.
+     */
+    void setThreadFilter(String threads);
+
+    /**
+     * @return The threads that sites may throw on, or {@code all}.
+     */
+    String getThreadFilter();
+
+    int getSiteCount();
+
+    long getTotalHits();
+
+    long getTotalThrows();
+
+    /**
+     * @return The hit count of each site that has been hit, keyed by site name.
+     */
+    Map<String, Long> getHitCounts();
+
+    /**
+     * @return The throw count of each site that has thrown, keyed by site name.
+     */
+    Map<String, Long> getThrowCounts();
+
+    /**
+     * @return A summary of the delays injected by each site that has delayed, keyed by site name.
+     */
+    Map<String, String> getDelays();
+
+    /**
+     * @return The invocation count of each site that has been invoked, keyed by site name. Only
+     * counted while the agent's {@code metrics} option is on.
+     */
+    Map<String, Long> getInvocationCounts();
+
+    /**
+     * @return A summary of the time from each site throwing to its method next returning normally on
+     * the same thread, keyed by site name. Only measured while the agent's {@code recovery} option is on.
+     */
+    Map<String, String> getRecoveryTimes();
+
+    String getTransformStats();
+}
@@ -0,0 +1,43 @@
+package com.datastax.faultytowers;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+
+/**
+ * The call site behind an injected {@code invokedynamic} prologue.
+ *
+ * While armed the call site targets {@link ExceptionThrower#throwException(int)}. Once a
+ * site is disarmed, e.g. because it has reached its throw limit, the target is relinked to a no-op,
+ * or to a counter when invocations are being counted. The JIT treats the target of a
+ * {@link MutableCallSite} as a constant, so a disarmed no-op prologue is inlined away entirely and
+ * costs nothing until the site is armed again.
+ */
+final class InjectionCallSite extends MutableCallSite {
+    static final MethodType TYPE = MethodType.methodType(void.class);
+    static final MethodHandle NO_OP = MethodHandles.empty(TYPE);
+
+    private final MethodHandle armedTarget;
+    private final MethodHandle disarmedTarget;
+
+    InjectionCallSite(MethodHandle armedTarget, MethodHandle disarmedTarget) {
+        super(TYPE);
+        this.armedTarget = armedTarget;
+        this.disarmedTarget = disarmedTarget;
+    }
+
+    boolean isArmed() {
+        return getTarget() == armedTarget;
+    }
+
+    void arm() {
+        if (getTarget() != armedTarget)
+            setTarget(armedTarget);
+    }
+
+    void disarm() {
+        if (getTarget() != disarmedTarget)
+            setTarget(disarmedTarget);
+    }
+}
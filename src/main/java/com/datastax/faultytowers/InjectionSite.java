@@ -0,0 +1,327 @@
+package com.datastax.faultytowers;
+
+import java.lang.invoke.MethodHandle;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A single method that has had an exception injected into it.
+ *
+ * Sites are identified by a dense integer id which is handed out by {@link InjectionSites} when the
+ * transformer instruments the method. The id indexes every per-site table so that the injected
+ * code never has to hash a string. The method descriptor is part of the site's name so that
+ * overloaded methods are counted separately.
+ */
+final class InjectionSite {
+    // The throw limit of a site that uses the global one
+    static final long GLOBAL_THROW_LIMIT = -1;
+
+    private final int id;
+    private final String className;
+    private final String methodName;
+    private final String descriptor;
+    private final String exceptionClassName;
+    // Built once, as event sinks look it up for every fault
+    private final String name;
+    // The name with '/' in place of '.', so prefixes can be matched whichever separator they use
+    private final String prefixName;
+    private final List<InjectionCallSite> callSites = new CopyOnWriteArrayList<>();
+    private volatile ExceptionFactory exceptionFactory;
+    private volatile ExceptionPolicy exceptionPolicy = ExceptionPolicy.FULL;
+    // The exception rethrown by the CACHED and ONCE policies, built on the first throw
+    private volatile Throwable cachedException;
+    // The delay to inject in place of the exception, or null to throw
+    private volatile LatencyFault latencyFault;
+    // Created on the first delay, as most sites never fire
+    private volatile LatencyHistogram delays;
+    // Striped, as a hot site is invoked from many threads at once
+    private final LongAdder invocations = new LongAdder();
+    // Throws whose recovery has not been seen yet, see RecoveryProbe
+    private final AtomicInteger pendingRecoveries = new AtomicInteger();
+    // Created on the first recovery
+    private volatile LatencyHistogram recoveries;
+    // The hit ordinals to throw at when replaying a recorded run, or null
+    private volatile BitSet replayOrdinals;
+    // The probability of an armed hit throwing, see FastRandom.threshold()
+    private volatile long threshold = FastRandom.ALWAYS;
+    // The maximum number of throws, or GLOBAL_THROW_LIMIT
+    private volatile long throwLimit = GLOBAL_THROW_LIMIT;
+
+    InjectionSite(int id, String className, String methodName, String descriptor, String exceptionClassName) {
+        this.id = id;
+        this.className = className;
+        this.methodName = methodName;
+        this.descriptor = descriptor;
+        this.exceptionClassName = exceptionClassName;
+        this.name = name(className, methodName, descriptor);
+        this.prefixName = prefixName(name);
+    }
+
+    /**
+     * Convert a package, class or method name into the form matched by {@link #matches(String)}.
+     */
+    static String prefixName(String name) {
+        return name.replace('.', '/');
+    }
+
+    /**
+     * @param prefix A package, class or method name converted by {@link #prefixName(String)}
+     * @return true if this site's name starts with {@code prefix}.
+     */
+    boolean matches(String prefix) {
+        return prefixName.startsWith(prefix);
+    }
+
+    static String name(String className, String methodName, String descriptor) {
+        return className + "." + methodName + descriptor;
+    }
+
+    int getId() {
+        return id;
+    }
+
+    String getClassName() {
+        return className;
+    }
+
+    String getMethodName() {
+        return methodName;
+    }
+
+    String getDescriptor() {
+        return descriptor;
+    }
+
+    String getExceptionClassName() {
+        return exceptionClassName;
+    }
+
+    /**
+     * @return The fully qualified name of the method, including its descriptor.
+     */
+    String getName() {
+        return name;
+    }
+
+    BitSet getReplayOrdinals() {
+        return replayOrdinals;
+    }
+
+    void setReplayOrdinals(BitSet replayOrdinals) {
+        this.replayOrdinals = replayOrdinals;
+    }
+
+    long getThreshold() {
+        return threshold;
+    }
+
+    double getProbability() {
+        return FastRandom.probability(threshold);
+    }
+
+    /**
+     * Set the probability that each hit on this site throws. This is a volatile write so it takes
+     * effect on the next hit without redefining any classes.
+     */
+    void setProbability(double probability) {
+        this.threshold = FastRandom.threshold(probability);
+    }
+
+    /**
+     * @return The maximum number of throws from this site, which is {@code globalLimit} unless the site
+     * has a limit of its own.
+     */
+    long getThrowLimit(long globalLimit) {
+        long limit = throwLimit;
+        return limit == GLOBAL_THROW_LIMIT ? globalLimit : limit;
+    }
+
+    /**
+     * @param limit The maximum number of throws from this site, or {@link #GLOBAL_THROW_LIMIT}
+     */
+    void setThrowLimit(long limit) {
+        this.throwLimit = limit;
+    }
+
+    /**
+     * Resolve the exception factory through {@code loader} unless it has already been resolved.
+     */
+    ExceptionFactory resolveExceptionFactory(ClassLoader loader) {
+        ExceptionFactory factory = exceptionFactory;
+        if (factory == null) {
+            factory = ExceptionFactory.forClassName(exceptionClassName, loader);
+            exceptionFactory = factory;
+        }
+        return factory;
+    }
+
+    ExceptionPolicy getExceptionPolicy() {
+        return exceptionPolicy;
+    }
+
+    /**
+     * Change how this site builds its exceptions. An exception cached under the old policy is dropped.
+     */
+    void setExceptionPolicy(ExceptionPolicy exceptionPolicy) {
+        this.exceptionPolicy = exceptionPolicy;
+        this.cachedException = null;
+    }
+
+    /**
+     * Build or reuse the exception to throw according to the site's {@link ExceptionPolicy}. Threads
+     * that race on the first throw of a caching policy may each build one, which is harmless.
+     */
+    Throwable newException(ClassLoader loader) throws Throwable {
+        ExceptionFactory factory = resolveExceptionFactory(loader);
+        switch (exceptionPolicy) {
+            case STACKLESS:
+                // Clearing the trace after the walk would save nothing, so keep it if it has to be walked
+                return factory.isStacklessSupported() ? factory.newStackless() : factory.newInstance();
+            case CACHED: {
+                Throwable t = cachedException;
+                if (t == null) {
+                    t = factory.newStackless();
+                    cachedException = t;
+                }
+                return t;
+            }
+            case ONCE: {
+                Throwable t = cachedException;
+                if (t == null) {
+                    t = factory.newInstance();
+                    cachedException = t;
+                }
+                return t;
+            }
+            default:
+                return factory.newInstance();
+        }
+    }
+
+    LatencyFault getLatencyFault() {
+        return latencyFault;
+    }
+
+    /**
+     * Inject {@code latencyFault} in place of the exception from the next hit, or throw again if null.
+     */
+    void setLatencyFault(LatencyFault latencyFault) {
+        this.latencyFault = latencyFault;
+    }
+
+    /**
+     * Wait out a delay drawn from {@code fault} and add it to this site's histogram.
+     * @return The time actually spent waiting, in nanoseconds.
+     */
+    long injectDelay(LatencyFault fault) {
+        long nanos = fault.inject();
+        LatencyHistogram histogram = delays;
+        if (histogram == null) {
+            synchronized (this) {
+                histogram = delays;
+                if (histogram == null) {
+                    histogram = new LatencyHistogram();
+                    delays = histogram;
+                }
+            }
+        }
+        histogram.record(nanos);
+        return nanos;
+    }
+
+    void countInvocation() {
+        invocations.increment();
+    }
+
+    /**
+     * @return The number of times the method has been entered, if invocations are being counted.
+     */
+    long getInvocations() {
+        return invocations.sum();
+    }
+
+    AtomicInteger getPendingRecoveries() {
+        return pendingRecoveries;
+    }
+
+    /**
+     * Add the time from a throw to the method next completing on the same thread.
+     */
+    void recordRecovery(long nanos) {
+        LatencyHistogram histogram = recoveries;
+        if (histogram == null) {
+            synchronized (this) {
+                histogram = recoveries;
+                if (histogram == null) {
+                    histogram = new LatencyHistogram();
+                    recoveries = histogram;
+                }
+            }
+        }
+        histogram.record(nanos);
+    }
+
+    /**
+     * @return The recovery times of this site, or null if it has never recovered.
+     */
+    LatencyHistogram getRecoveries() {
+        return recoveries;
+    }
+
+    /**
+     * @return The delays injected by this site, or null if it has never delayed.
+     */
+    LatencyHistogram getDelays() {
+        return delays;
+    }
+
+    /**
+     * Create a call site for an {@code invokedynamic} instruction in this method.
+     * @param armedTarget The target to call while the site is armed
+     * @param disarmedTarget The target to call while the site is disarmed
+     */
+    InjectionCallSite newCallSite(MethodHandle armedTarget, MethodHandle disarmedTarget) {
+        InjectionCallSite callSite = new InjectionCallSite(armedTarget, disarmedTarget);
+        callSites.add(callSite);
+        return callSite;
+    }
+
+    List<InjectionCallSite> getCallSites() {
+        return callSites;
+    }
+
+    void arm() {
+        callSites.forEach(InjectionCallSite::arm);
+    }
+
+    // Other threads may still take the old target for a short while; the armed target copes with that.
+    void disarm() {
+        callSites.forEach(InjectionCallSite::disarm);
+    }
+
+    /**
+     * Forget everything set or recorded since the site was registered, e.g. when the agent is
+     * removed. The call sites of the old bytecode are dropped along with the rest, and stay disarmed.
+     */
+    void reset() {
+        callSites.clear();
+        exceptionPolicy = ExceptionPolicy.FULL;
+        cachedException = null;
+        latencyFault = null;
+        delays = null;
+        invocations.reset();
+        pendingRecoveries.set(0);
+        recoveries = null;
+        replayOrdinals = null;
+        threshold = FastRandom.ALWAYS;
+        throwLimit = GLOBAL_THROW_LIMIT;
+    }
+
+    @Override
+    public String toString() {
+        return id + ":" + getName();
+    }
+}
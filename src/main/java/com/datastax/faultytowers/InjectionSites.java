@@ -0,0 +1,117 @@
+package com.datastax.faultytowers;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Registry of every {@link InjectionSite} in the JVM.
+ *
+ * Registration happens while a class is being transformed or linked, and is allowed to be slow.
+ * Lookups by id and counter updates happen on the instrumented code path and are lock-free.
+ */
+final class InjectionSites {
+    private static final ConcurrentHashMap<String, InjectionSite> byName = new ConcurrentHashMap<>();
+    private static volatile InjectionSite[] byId = new InjectionSite[64];
+    private static int size = 0;
+
+    // Count how many times an exception has been thrown for each site
+    private static final CounterTable throwCounts = new CounterTable();
+    // Count how many times each armed site has been hit
+    private static final CounterTable hitCounts = new CounterTable();
+
+    private InjectionSites() {
+    }
+
+    /**
+     * Look up the site for a method, registering it with the next free id if this is the first time
+     * the method has been seen. Registering the same method twice returns the same site.
+     */
+    static InjectionSite register(String className, String methodName, String descriptor, String exceptionClassName) {
+        InjectionSite site = byName.get(InjectionSite.name(className, methodName, descriptor));
+        if (site != null)
+            return site;
+
+        synchronized (InjectionSites.class) {
+            String name = InjectionSite.name(className, methodName, descriptor);
+            site = byName.get(name);
+            if (site != null)
+                return site;
+
+            int id = size;
+            throwCounts.ensureCapacity(id);
+            hitCounts.ensureCapacity(id);
+            InjectionSite[] sites = byId;
+            if (id == sites.length)
+                sites = Arrays.copyOf(sites, sites.length * 2);
+            site = new InjectionSite(id, className, methodName, descriptor, exceptionClassName);
+            sites[id] = site;
+            size = id + 1;
+            byId = sites;
+            byName.put(name, site);
+            return site;
+        }
+    }
+
+    static InjectionSite get(int id) {
+        return byId[id];
+    }
+
+    static InjectionSite get(String name) {
+        return byName.get(name);
+    }
+
+    static int size() {
+        synchronized (InjectionSites.class) {
+            return size;
+        }
+    }
+
+    static void forEach(Consumer<InjectionSite> action) {
+        InjectionSite[] sites;
+        int count;
+        synchronized (InjectionSites.class) {
+            sites = byId;
+            count = size;
+        }
+        for (int i = 0; i < count; i++)
+            action.accept(sites[i]);
+    }
+
+    /**
+     * Zero the counters of every site and {@link InjectionSite#reset()} it, so that an agent
+     * installed later starts afresh. Sites stay registered, so a method that is instrumented again
+     * keeps its id.
+     */
+    static void reset() {
+        forEach(site -> {
+            hitCounts.set(site.getId(), 0);
+            throwCounts.set(site.getId(), 0);
+            site.reset();
+        });
+    }
+
+    /**
+     * Count a hit on site {@code id}.
+     * @return The hit ordinal, starting from 1.
+     */
+    static long countHit(int id) {
+        return hitCounts.incrementAndGet(id);
+    }
+
+    static long getHitCount(int id) {
+        return hitCounts.get(id);
+    }
+
+    static long getThrowCount(int id) {
+        return throwCounts.get(id);
+    }
+
+    /**
+     * Count a throw for site {@code id} provided it has thrown fewer than {@code limit} times.
+     * @return The new throw count, or -1 if the site has already reached the limit.
+     */
+    static long countThrow(int id, long limit) {
+        return throwCounts.incrementIfBelow(id, limit);
+    }
+}
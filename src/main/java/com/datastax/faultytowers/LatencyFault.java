@@ -0,0 +1,170 @@
+package com.datastax.faultytowers;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A delay injected at method entry in place of an exception.
+ *
+ * A fault is written as {@code distribution:duration[:shape][:wait]}, e.g. {@code fixed:5ms},
+ * {@code exponential:2ms:park} or {@code pareto:1ms:1.5:spin}:
+ * <ul>
+ *   <li>{@code fixed}: always {@code duration}.</li>
+ *   <li>{@code exponential}: exponentially distributed with a mean of {@code duration}.</li>
+ *   <li>{@code pareto}: Pareto distributed with a minimum of {@code duration} and a shape, which
+ *   defaults to 1.5. Smaller shapes give longer tails.</li>
+ * </ul>
+ * Durations take a unit of {@code ns}, {@code us}, {@code ms}, {@code s}, {@code m} or {@code h}, or
+ * are milliseconds without one. The delay is waited out by parking the thread, which lets other
+ * threads run, or by spinning, which keeps the CPU busy like slow code would and is accurate for
+ * delays shorter than the scheduler's resolution.
+ */
+final class LatencyFault {
+    // A Pareto tail is unbounded, so cap single delays well beyond any sensible timeout
+    static final long MAX_DELAY_NANOS = TimeUnit.MINUTES.toNanos(1);
+    private static final double DEFAULT_PARETO_SHAPE = 1.5;
+
+    /**
+     * Stands for throwing rather than delaying wherever that must be told apart from a setting that
+     * is not given at all, as null is. Compared by identity and never injected.
+     */
+    static final LatencyFault NONE = new LatencyFault(Distribution.FIXED, 1, DEFAULT_PARETO_SHAPE, false);
+
+    enum Distribution {
+        FIXED, EXPONENTIAL, PARETO
+    }
+
+    private final Distribution distribution;
+    private final long nanos;
+    private final double shape;
+    private final boolean spin;
+    private final String spec;
+
+    LatencyFault(Distribution distribution, long nanos, double shape, boolean spin) {
+        if (nanos <= 0)
+            throw new IllegalArgumentException("Delay must be positive but was " + nanos + "ns");
+        if (!(shape > 0))
+            throw new IllegalArgumentException("Pareto shape must be positive but was " + shape);
+        this.distribution = distribution;
+        this.nanos = nanos;
+        this.shape = shape;
+        this.spin = spin;
+        this.spec = distribution.name().toLowerCase(Locale.ROOT) + ":" + nanos + "ns"
+                + (distribution == Distribution.PARETO ? ":" + shape : "") + (spin ? ":spin" : ":park");
+    }
+
+    /**
+     * @throws IllegalArgumentException if {@code spec} is malformed.
+     */
+    static LatencyFault parse(String spec) {
+        String[] fields = spec.trim().split(":");
+        if (fields.length < 2 || fields.length > 4)
+            throw new IllegalArgumentException("Expected distribution:duration[:shape][:wait] but got '" + spec + "'");
+
+        Distribution distribution;
+        try {
+            distribution = Distribution.valueOf(fields[0].toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown delay distribution '" + fields[0]
+                    + "', expected fixed, exponential or pareto");
+        }
+
+        long nanos = parseDuration(fields[1]);
+        double shape = DEFAULT_PARETO_SHAPE;
+        boolean spin = false;
+        for (int i = 2; i < fields.length; i++) {
+            String field = fields[i].toLowerCase(Locale.ROOT);
+            if (field.equals("spin")) {
+                spin = true;
+            } else if (field.equals("park")) {
+                spin = false;
+            } else if (distribution == Distribution.PARETO && i == 2) {
+                try {
+                    shape = Double.parseDouble(field);
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Bad Pareto shape '" + fields[i] + "' in '" + spec + "'");
+                }
+            } else {
+                throw new IllegalArgumentException("Unexpected '" + fields[i] + "' in '" + spec + "'");
+            }
+        }
+        return new LatencyFault(distribution, nanos, shape, spin);
+    }
+
+    static long parseDuration(String duration) {
+        String value = duration.trim().toLowerCase(Locale.ROOT);
+        TimeUnit unit = TimeUnit.MILLISECONDS;
+        for (String[] suffix : new String[][] {{"ns", "NANOSECONDS"}, {"us", "MICROSECONDS"}, {"ms", "MILLISECONDS"},
+                {"s", "SECONDS"}, {"m", "MINUTES"}, {"h", "HOURS"}}) {
+            if (value.endsWith(suffix[0])) {
+                unit = TimeUnit.valueOf(suffix[1]);
+                value = value.substring(0, value.length() - suffix[0].length());
+                break;
+            }
+        }
+        try {
+            return unit.toNanos(Long.parseLong(value));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Bad duration '" + duration + "'");
+        }
+    }
+
+    /**
+     * @return The next delay in nanoseconds, drawn from this thread's {@link FastRandom}.
+     */
+    long sampleNanos() {
+        switch (distribution) {
+            case EXPONENTIAL:
+                return cap(-nanos * Math.log(1 - FastRandom.nextDouble()));
+            case PARETO:
+                return cap(nanos / Math.pow(1 - FastRandom.nextDouble(), 1 / shape));
+            default:
+                return nanos;
+        }
+    }
+
+    private static long cap(double nanos) {
+        return (long) Math.min(nanos, MAX_DELAY_NANOS);
+    }
+
+    /**
+     * Delay the calling thread by the next sampled delay.
+     * @return The time actually spent waiting, in nanoseconds.
+     */
+    long inject() {
+        long start = System.nanoTime();
+        long deadline = start + sampleNanos();
+        long now = start;
+        if (spin) {
+            while (now - deadline < 0) {
+                Thread.onSpinWait();
+                now = System.nanoTime();
+            }
+        } else {
+            // Stop early if interrupted, as parkNanos() would otherwise return straight away in a busy loop
+            while (now - deadline < 0 && !Thread.currentThread().isInterrupted()) {
+                LockSupport.parkNanos(deadline - now);
+                now = System.nanoTime();
+            }
+        }
+        return now - start;
+    }
+
+    Distribution getDistribution() {
+        return distribution;
+    }
+
+    long getNanos() {
+        return nanos;
+    }
+
+    boolean isSpin() {
+        return spin;
+    }
+
+    @Override
+    public String toString() {
+        return spec;
+    }
+}
@@ -0,0 +1,83 @@
+package com.datastax.faultytowers;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.instrument.Instrumentation;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Injects exceptions into the classes that were already loaded when the agent was attached to a
+ * running JVM. Without this only classes loaded after the attach would ever be instrumented.
+ *
+ * The loaded classes are first narrowed down in parallel on a {@link ForkJoinPool}: each class's
+ * bytecode is read from its loader and scanned exactly as {@link ExceptionThrower#transform} would,
+ * so that only classes that will actually change are retransformed. Those are then retransformed in
+ * bounded batches by {@link Retransformer}.
+ */
+final class LoadedClasses {
+    private LoadedClasses() {
+    }
+
+    /**
+     * Instrument the loaded classes that {@code thrower} would have changed had it seen them load.
+     * @param attachNanos The {@link System#nanoTime()} at which the agent started attaching
+     */
+    static void instrument(Instrumentation inst, ExceptionThrower thrower, long attachNanos) {
+        int parallelism = Runtime.getRuntime().availableProcessors();
+        long start = System.nanoTime();
+        Class<?>[] loaded = inst.getAllLoadedClasses();
+
+        List<Class<?>> eligible;
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            eligible = pool.submit(() -> Arrays.stream(loaded)
+                    .parallel()
+                    .filter(c -> inst.isModifiableClass(c) && wouldTransform(thrower, c))
+                    .collect(Collectors.toList())).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        } catch (ExecutionException e) {
+            e.getCause().printStackTrace();
+            return;
+        } finally {
+            pool.shutdown();
+        }
+        long scanNanos = System.nanoTime() - start;
+
+        long transformNanos = thrower.getTransformStats().getTransformNanos();
+        Retransformer.Result result = Retransformer.retransform(inst, eligible, Retransformer.DEFAULT_BATCH_SIZE,
+                parallelism);
+        // Time inside retransformClasses that was not spent in our transformer is mostly spent in the
+        // JVM redefining classes at a safepoint
+        long pauseNanos = Math.max(0, result.getRetransformNanos()
+                - (thrower.getTransformStats().getTransformNanos() - transformNanos));
+
+        System.out.println("Faulty Towers instrumented " + eligible.size() + " of " + loaded.length
+                + " loaded classes: scan " + TimeUnit.NANOSECONDS.toMillis(scanNanos) + "ms, retransformed "
+                + result + ", about " + TimeUnit.NANOSECONDS.toMillis(pauseNanos) + "ms stopped, armed "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - attachNanos) + "ms after attach");
+    }
+
+    private static boolean wouldTransform(ExceptionThrower thrower, Class<?> c) {
+        ClassLoader loader = c.getClassLoader();
+        if (loader == null || c.isArray() || c.isPrimitive())
+            return false;
+        // JDK modules defined to the application loader, such as jdk.attach
+        if (c.getModule().isNamed() && c.getModule().getLayer() == ModuleLayer.boot())
+            return false;
+
+        String resource = c.getName().replace('.', '/') + ".class";
+        try (InputStream in = loader.getResourceAsStream(resource)) {
+            // Generated classes have no class file to read and are left alone
+            return in != null && thrower.wouldTransform(c, in.readAllBytes());
+        } catch (IOException | RuntimeException | LinkageError e) {
+            return false;
+        }
+    }
+}
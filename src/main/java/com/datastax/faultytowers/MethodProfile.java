@@ -0,0 +1,320 @@
+package com.datastax.faultytowers;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordedMethod;
+import jdk.jfr.consumer.RecordedStackTrace;
+import jdk.jfr.consumer.RecordingFile;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The methods that a profile or coverage file says were executed, narrowed down to the most or least
+ * executed ones, so that exceptions are only injected where they are likely to be hit.
+ *
+ * Three kinds of file are understood, told apart by their first bytes:
+ * <ul>
+ *   <li>A JFR recording. Every method on the stack of an {@code jdk.ExecutionSample} event is counted
+ *   once per sample.</li>
+ *   <li>A JaCoCo {@code .exec} file. Probes cannot be mapped back to methods without JaCoCo's own
+ *   analysis of the class, so every method of a class is counted with the number of the class's
+ *   probes that were hit.</li>
+ *   <li>A plain text coverage file: one {@code file:line} per executed line, optionally
+ *   followed by {@code :count}. A method is counted by the lines between its first and last line
+ *   number.</li>
+ * </ul>
+ *
+ * All the work of ranking is done once, when the file is loaded, and the result is kept in hash
+ * tables so that checking a method while its class is being transformed is a single lookup.
+ */
+final class MethodProfile {
+    private static final int JACOCO_BLOCK_HEADER = 0x01;
+    private static final int JACOCO_MAGIC = 0xC0C0;
+    private static final int JACOCO_BLOCK_SESSION_INFO = 0x10;
+    private static final int JACOCO_BLOCK_EXECUTION_DATA = 0x11;
+    private static final byte[] JFR_MAGIC = {'F', 'L', 'R', 0};
+
+    // Selected methods by site name, e.g. org/foo/Bar.read(I)V
+    private final Set<String> methods;
+    // Selected classes by internal name
+    private final Set<String> classes;
+    // Selected lines by source file name, e.g. Bar.java, as several files may share a name
+    private final Map<String, List<SourceLines>> linesByFileName;
+    private final int size;
+
+    private static final class SourceLines {
+        final String path;
+        final BitSet lines;
+
+        SourceLines(String path, BitSet lines) {
+            this.path = path;
+            this.lines = lines;
+        }
+    }
+
+    private MethodProfile(Set<String> methods, Set<String> classes, Map<String, List<SourceLines>> linesByFileName,
+                          int size) {
+        this.methods = methods;
+        this.classes = classes;
+        this.linesByFileName = linesByFileName;
+        this.size = size;
+    }
+
+    /**
+     * Load a profile and keep only the {@code fraction} of executed entries with the highest counts,
+     * or with {@code hot} false, the lowest. Entries that were never executed are never kept.
+     */
+    static MethodProfile load(Path path, boolean hot, double fraction) throws IOException {
+        if (fraction <= 0 || fraction > 1)
+            throw new IllegalArgumentException("Profile fraction must be in (0, 1] but was " + fraction);
+
+        byte[] magic = new byte[4];
+        try (InputStream in = Files.newInputStream(path)) {
+            int read = in.readNBytes(magic, 0, magic.length);
+            if (read == magic.length && Arrays.equals(magic, JFR_MAGIC))
+                return fromCounts(readJfr(path), Collections.emptyMap(), Collections.emptyMap(), hot, fraction);
+            if (read >= 3 && magic[0] == JACOCO_BLOCK_HEADER && ((magic[1] & 0xFF) << 8 | (magic[2] & 0xFF)) == JACOCO_MAGIC)
+                return fromCounts(Collections.emptyMap(), readJacoco(path), Collections.emptyMap(), hot, fraction);
+        }
+        return fromCounts(Collections.emptyMap(), Collections.emptyMap(), readLines(path), hot, fraction);
+    }
+
+    private static MethodProfile fromCounts(Map<String, Long> methodCounts, Map<String, Long> classCounts,
+                                            Map<String, Map<Integer, Long>> lineCounts, boolean hot, double fraction) {
+        long threshold = threshold(methodCounts, classCounts, lineCounts, hot, fraction);
+
+        Set<String> methods = new HashSet<>();
+        methodCounts.forEach((method, count) -> {
+            if (selected(count, threshold, hot))
+                methods.add(method);
+        });
+
+        Set<String> classes = new HashSet<>();
+        classCounts.forEach((className, count) -> {
+            if (selected(count, threshold, hot))
+                classes.add(className);
+        });
+
+        Map<String, List<SourceLines>> linesByFileName = new HashMap<>();
+        int[] lines = {0};
+        lineCounts.forEach((file, counts) -> {
+            BitSet selectedLines = new BitSet();
+            counts.forEach((line, count) -> {
+                if (selected(count, threshold, hot))
+                    selectedLines.set(line);
+            });
+            if (selectedLines.isEmpty())
+                return;
+            lines[0] += selectedLines.cardinality();
+            linesByFileName.computeIfAbsent(fileName(file), k -> new ArrayList<>())
+                    .add(new SourceLines(file, selectedLines));
+        });
+
+        return new MethodProfile(methods, classes, linesByFileName, methods.size() + classes.size() + lines[0]);
+    }
+
+    // The count that separates the selected fraction from the rest
+    private static long threshold(Map<String, Long> methodCounts, Map<String, Long> classCounts,
+                                  Map<String, Map<Integer, Long>> lineCounts, boolean hot, double fraction) {
+        int total = methodCounts.size() + classCounts.size();
+        for (Map<Integer, Long> counts : lineCounts.values())
+            total += counts.size();
+
+        long[] counts = new long[total];
+        int i = 0;
+        for (long count : methodCounts.values())
+            counts[i++] = count;
+        for (long count : classCounts.values())
+            counts[i++] = count;
+        for (Map<Integer, Long> fileCounts : lineCounts.values()) {
+            for (long count : fileCounts.values())
+                counts[i++] = count;
+        }
+        Arrays.sort(counts);
+        // Only rank the entries that were executed
+        int executed = 0;
+        while (executed < total && counts[total - executed - 1] > 0)
+            executed++;
+        if (executed == 0)
+            return 0;
+
+        int keep = Math.max(1, (int) Math.ceil(executed * fraction));
+        return hot ? counts[total - keep] : counts[total - executed + keep - 1];
+    }
+
+    private static boolean selected(long count, long threshold, boolean hot) {
+        return count > 0 && (hot ? count >= threshold : count <= threshold);
+    }
+
+    private static String fileName(String path) {
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+
+    /**
+     * @return true if {@link #contains} needs the source file and line numbers of the method.
+     */
+    boolean needsLineNumbers() {
+        return !linesByFileName.isEmpty();
+    }
+
+    /**
+     * @param className The internal name of the class
+     * @param method The name and descriptor of the method
+     * @param sourceFile The class's source file, or null if unknown
+     * @param firstLine The method's first line number, or -1 if unknown
+     * @param lastLine The method's last line number, or -1 if unknown
+     * @return true if the method is in the selected part of the profile.
+     */
+    boolean contains(String className, String method, String sourceFile, int firstLine, int lastLine) {
+        if (classes.contains(className) || methods.contains(className + "." + method))
+            return true;
+        if (sourceFile == null || firstLine < 0)
+            return false;
+
+        List<SourceLines> candidates = linesByFileName.get(sourceFile);
+        if (candidates == null)
+            return false;
+
+        int slash = className.lastIndexOf('/');
+        String sourcePath = slash < 0 ? sourceFile : className.substring(0, slash + 1) + sourceFile;
+        for (SourceLines candidate : candidates) {
+            // Coverage paths may have a source directory in front of the package, or no package at all
+            if (!candidate.path.endsWith(sourcePath) && !candidate.path.equals(sourceFile))
+                continue;
+            int line = candidate.lines.nextSetBit(firstLine);
+            if (line >= 0 && line <= lastLine)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return The number of methods, classes and lines that were selected.
+     */
+    int size() {
+        return size;
+    }
+
+    private static Map<String, Long> readJfr(Path path) throws IOException {
+        Map<String, Long> counts = new HashMap<>();
+        Set<String> seen = new HashSet<>();
+        try (RecordingFile recording = new RecordingFile(path)) {
+            while (recording.hasMoreEvents()) {
+                RecordedEvent event = recording.readEvent();
+                if (!event.getEventType().getName().equals("jdk.ExecutionSample"))
+                    continue;
+                RecordedStackTrace stackTrace = event.getStackTrace();
+                if (stackTrace == null)
+                    continue;
+
+                // Recursive methods are only counted once per sample
+                seen.clear();
+                for (RecordedFrame frame : stackTrace.getFrames()) {
+                    if (!frame.isJavaFrame())
+                        continue;
+                    RecordedMethod method = frame.getMethod();
+                    String name = InjectionSite.name(method.getType().getName().replace('.', '/'),
+                            method.getName(), method.getDescriptor());
+                    if (seen.add(name))
+                        counts.merge(name, 1L, Long::sum);
+                }
+            }
+        }
+        return counts;
+    }
+
+    private static Map<String, Long> readJacoco(Path path) throws IOException {
+        Map<String, Long> counts = new HashMap<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            int block;
+            while ((block = in.read()) != -1) {
+                switch (block) {
+                    case JACOCO_BLOCK_HEADER:
+                        in.readChar();
+                        in.readChar();
+                        break;
+                    case JACOCO_BLOCK_SESSION_INFO:
+                        in.readUTF();
+                        in.readLong();
+                        in.readLong();
+                        break;
+                    case JACOCO_BLOCK_EXECUTION_DATA:
+                        in.readLong();
+                        String className = in.readUTF();
+                        long hits = readJacocoProbeHits(in);
+                        // The same class appears once per dumped session
+                        counts.merge(className, hits, Math::max);
+                        break;
+                    default:
+                        throw new IOException(path + ": unknown JaCoCo block type " + block);
+                }
+            }
+        }
+        return counts;
+    }
+
+    // Probes are a variable length count followed by the probes packed eight to a byte, with unused bits zero
+    private static long readJacocoProbeHits(DataInputStream in) throws IOException {
+        int length = readVarInt(in);
+        long hits = 0;
+        for (int i = 0; i < length; i += 8)
+            hits += Integer.bitCount(in.readUnsignedByte());
+        return hits;
+    }
+
+    private static int readVarInt(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new EOFException("Malformed variable length integer");
+    }
+
+    private static Map<String, Map<Integer, Long>> readLines(Path path) throws IOException {
+        Map<String, Map<Integer, Long>> counts = new HashMap<>();
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#"))
+                    continue;
+
+                String[] fields = line.split(":");
+                if (fields.length != 2 && fields.length != 3)
+                    throw new IOException(path + ":" + lineNumber + ": expected file:line[:count] but found '" + line + "'");
+
+                try {
+                    int sourceLine = Integer.parseInt(fields[1]);
+                    long count = fields.length == 3 ? Long.parseLong(fields[2]) : 1;
+                    counts.computeIfAbsent(fields[0].replace('\\', '/'), k -> new HashMap<>())
+                            .merge(sourceLine, count, Long::sum);
+                } catch (NumberFormatException e) {
+                    throw new IOException(path + ":" + lineNumber + ": bad number in '" + line + "'");
+                }
+            }
+        }
+        return counts;
+    }
+}
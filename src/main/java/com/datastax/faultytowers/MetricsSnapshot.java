@@ -0,0 +1,124 @@
+package com.datastax.faultytowers;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically writes the counters of every site that has done anything to a file, so that they can
+ * be collected without a JMX connection. Each snapshot replaces the last one atomically, so a reader
+ * never sees a partly written file.
+ *
+ * The file is tab separated text with one line per site, after a comment line holding the time of
+ * the snapshot and a header line naming the columns. Latencies are in microseconds.
+ */
+final class MetricsSnapshot implements Closeable {
+    static final String HEADER = "site\tinvocations\thits\tthrows\tdelays\trecoveries"
+            + "\trecovery_p50_us\trecovery_p99_us\trecovery_max_us";
+
+    private final Path path;
+    private final ScheduledExecutorService executor;
+
+    private MetricsSnapshot(Path path, ScheduledExecutorService executor) {
+        this.path = path;
+        this.executor = executor;
+    }
+
+    /**
+     * Write a snapshot to {@code path} every {@code intervalNanos}, starting after one interval.
+     */
+    static MetricsSnapshot start(Path path, long intervalNanos) {
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "faulty-towers-metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        MetricsSnapshot snapshot = new MetricsSnapshot(path, executor);
+        executor.scheduleAtFixedRate(snapshot::writeQuietly, intervalNanos, intervalNanos, TimeUnit.NANOSECONDS);
+        return snapshot;
+    }
+
+    private void writeQuietly() {
+        try {
+            write(path);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Write a snapshot of every site that has been invoked, hit or has thrown to {@code path}.
+     */
+    static void write(Path path) throws IOException {
+        Path parent = path.toAbsolutePath().getParent();
+        Path temp = Files.createTempFile(parent, path.getFileName().toString(), ".tmp");
+        try {
+            try (BufferedWriter out = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                out.write("# " + Instant.now() + "\n");
+                out.write(HEADER + "\n");
+                StringBuilder line = new StringBuilder();
+                IOException[] failure = {null};
+                InjectionSites.forEach(site -> {
+                    if (failure[0] != null)
+                        return;
+                    line.setLength(0);
+                    if (!appendSite(line, site))
+                        return;
+                    try {
+                        out.write(line.append('\n').toString());
+                    } catch (IOException e) {
+                        failure[0] = e;
+                    }
+                });
+                if (failure[0] != null)
+                    throw failure[0];
+            }
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    // Returns false if the site has never done anything, as most sites in a large application never do
+    private static boolean appendSite(StringBuilder line, InjectionSite site) {
+        long invocations = site.getInvocations();
+        long hits = InjectionSites.getHitCount(site.getId());
+        long throwCount = InjectionSites.getThrowCount(site.getId());
+        if (invocations == 0 && hits == 0 && throwCount == 0)
+            return false;
+
+        LatencyHistogram delays = site.getDelays();
+        LatencyHistogram recoveries = site.getRecoveries();
+        line.append(site.getName())
+                .append('\t').append(invocations)
+                .append('\t').append(hits)
+                .append('\t').append(throwCount)
+                .append('\t').append(delays == null ? 0 : delays.getCount())
+                .append('\t').append(recoveries == null ? 0 : recoveries.getCount())
+                .append('\t').append(micros(recoveries, 50))
+                .append('\t').append(micros(recoveries, 99))
+                .append('\t').append(recoveries == null ? 0 : TimeUnit.NANOSECONDS.toMicros(recoveries.getMaxNanos()));
+        return true;
+    }
+
+    private static long micros(LatencyHistogram histogram, double percentile) {
+        return histogram == null ? 0 : TimeUnit.NANOSECONDS.toMicros(histogram.getValueAtPercentile(percentile));
+    }
+
+    /**
+     * Stop the periodic snapshots and write a final one.
+     */
+    @Override
+    public void close() throws IOException {
+        executor.shutdownNow();
+        write(path);
+    }
+}
@@ -0,0 +1,129 @@
+package com.datastax.faultytowers;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * An {@link EventSink} that streams every event as a line of JSON, so that faults can be lined up
+ * with application logs or loaded into other tools, e.g.
+ * <pre>
+ *   {"time":1697040000123,"type":"throw","thread":42,"site":"org/foo/Bar.read(I)V","exception":"java/io/IOException","ordinal":3}
+ *   {"time":1697040000125,"type":"delay","thread":43,"site":"org/foo/Bar.write()V","ordinal":7,"delayNanos":5000000}
+ * </pre>
+ * The time is in milliseconds since the epoch. Transform and inject events carry their text instead,
+ * and a {@code dropped} event the number of events the log lost as {@code count}.
+ *
+ * Runs on the event log's writer thread. Each line is built in the same buffers every time, so a
+ * busy run does not make the sink allocate.
+ */
+final class NdjsonSink implements EventSink {
+    private static final int BUFFER_BYTES = 64 * 1024;
+    // Indexed by event type
+    private static final String[] TYPE_NAMES = {null, "transform", "inject", "throw", "delay", "dropped"};
+
+    private final FileChannel channel;
+    private final StringBuilder line = new StringBuilder(256);
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+    private final ByteBuffer bytes = ByteBuffer.allocate(BUFFER_BYTES);
+    private char[] chars = new char[256];
+    private CharBuffer charBuffer = CharBuffer.wrap(chars);
+
+    NdjsonSink(Path path) throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    @Override
+    public void accept(byte type, long time, long threadId, int siteId, long ordinal, long value, String text)
+            throws IOException {
+        line.setLength(0);
+        line.append("{\"time\":").append(time)
+                .append(",\"type\":\"").append(type < TYPE_NAMES.length ? TYPE_NAMES[type] : "unknown")
+                .append("\",\"thread\":").append(threadId);
+        InjectionSite site = siteId >= 0 ? InjectionSites.get(siteId) : null;
+        if (site != null)
+            appendString(",\"site\":", site.getName());
+        if (type == EventLog.THROW) {
+            appendString(",\"exception\":", site == null ? null : site.getExceptionClassName());
+            line.append(",\"ordinal\":").append(ordinal);
+        } else if (type == EventLog.DELAY) {
+            line.append(",\"ordinal\":").append(ordinal).append(",\"delayNanos\":").append(value);
+        } else if (type == EventLog.DROPPED) {
+            line.append(",\"count\":").append(value);
+        }
+        if (text != null)
+            appendString(",\"text\":", text);
+        line.append("}\n");
+        write();
+    }
+
+    private void appendString(String key, String value) {
+        line.append(key);
+        if (value == null) {
+            line.append("null");
+            return;
+        }
+        line.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                line.append('\\').append(c);
+            } else if (c < 0x20) {
+                line.append("\\u00").append(Character.forDigit(c >> 4, 16)).append(Character.forDigit(c & 0xF, 16));
+            } else {
+                line.append(c);
+            }
+        }
+        line.append('"');
+    }
+
+    private void write() throws IOException {
+        int length = line.length();
+        if (length > chars.length) {
+            chars = new char[Math.max(length, chars.length * 2)];
+            charBuffer = CharBuffer.wrap(chars);
+        }
+        line.getChars(0, length, chars, 0);
+        charBuffer.clear().limit(length);
+        encoder.reset();
+        while (true) {
+            CoderResult result = encoder.encode(charBuffer, bytes, true);
+            if (result.isUnderflow())
+                result = encoder.flush(bytes);
+            if (result.isUnderflow())
+                break;
+            if (result.isOverflow())
+                flushBytes();
+            else
+                result.throwException();
+        }
+    }
+
+    private void flushBytes() throws IOException {
+        bytes.flip();
+        while (bytes.hasRemaining())
+            channel.write(bytes);
+        bytes.clear();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        flushBytes();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flushBytes();
+        } finally {
+            channel.close();
+        }
+    }
+}
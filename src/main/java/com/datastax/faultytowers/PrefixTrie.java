@@ -0,0 +1,80 @@
+package com.datastax.faultytowers;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * An immutable map from name prefixes to values, looked up by the longest prefix of a name. A lookup
+ * walks the trie once, one character at a time, so its cost depends on the length of the name and not
+ * on the number of prefixes.
+ *
+ * @param <T> The type of the values
+ */
+final class PrefixTrie<T> {
+    private static final class Node<T> {
+        char[] labels = new char[0];
+        Node<T>[] children = newArray(0);
+        T value;
+
+        Node<T> child(char c) {
+            char[] labels = this.labels;
+            for (int i = 0; i < labels.length; i++) {
+                if (labels[i] == c)
+                    return children[i];
+            }
+            return null;
+        }
+
+        Node<T> addChild(char c) {
+            Node<T> child = child(c);
+            if (child != null)
+                return child;
+
+            child = new Node<>();
+            labels = Arrays.copyOf(labels, labels.length + 1);
+            children = Arrays.copyOf(children, children.length + 1);
+            labels[labels.length - 1] = c;
+            children[children.length - 1] = child;
+            return child;
+        }
+
+        @SuppressWarnings("unchecked")
+        private static <T> Node<T>[] newArray(int length) {
+            return (Node<T>[]) new Node<?>[length];
+        }
+    }
+
+    private final Node<T> root = new Node<>();
+
+    private PrefixTrie(Map<String, T> entries) {
+        entries.forEach((prefix, value) -> {
+            Node<T> node = root;
+            for (int i = 0; i < prefix.length(); i++)
+                node = node.addChild(prefix.charAt(i));
+            node.value = value;
+        });
+    }
+
+    /**
+     * @param entries The value of each prefix. Null values are not allowed.
+     */
+    static <T> PrefixTrie<T> of(Map<String, T> entries) {
+        return new PrefixTrie<>(entries);
+    }
+
+    /**
+     * @return The value of the longest prefix of {@code name}, or null if no prefix matches.
+     */
+    T longestMatch(String name) {
+        T value = root.value;
+        Node<T> node = root;
+        for (int i = 0; i < name.length(); i++) {
+            node = node.child(name.charAt(i));
+            if (node == null)
+                break;
+            if (node.value != null)
+                value = node.value;
+        }
+        return value;
+    }
+}
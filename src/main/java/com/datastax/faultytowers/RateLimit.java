@@ -0,0 +1,66 @@
+package com.datastax.faultytowers;
+
+/**
+ * A number of faults allowed in a period of time, written as {@code <permits>/<period>}, e.g.
+ * {@code 100/1s} or {@code 1/10m}. The period is a duration as in {@link LatencyFault}, with
+ * {@code m} and {@code h} for minutes and hours.
+ *
+ * All of the permits may be used at once, after which they come back one at a time, evenly spread
+ * over the period.
+ */
+final class RateLimit {
+    private final long permits;
+    private final long periodNanos;
+
+    private RateLimit(long permits, long periodNanos) {
+        if (permits <= 0)
+            throw new IllegalArgumentException("Permits must be positive but was " + permits);
+        if (periodNanos <= 0)
+            throw new IllegalArgumentException("Period must be positive but was " + periodNanos + "ns");
+        this.permits = permits;
+        this.periodNanos = periodNanos;
+    }
+
+    /**
+     * @throws IllegalArgumentException if {@code spec} is malformed.
+     */
+    static RateLimit parse(String spec) {
+        int slash = spec.indexOf('/');
+        if (slash < 0)
+            throw new IllegalArgumentException("Expected permits/period but got '" + spec + "'");
+        long permits;
+        try {
+            permits = Long.parseLong(spec.substring(0, slash).trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Bad permits '" + spec.substring(0, slash) + "' in '" + spec + "'");
+        }
+        return new RateLimit(permits, LatencyFault.parseDuration(spec.substring(slash + 1)));
+    }
+
+    long getPermits() {
+        return permits;
+    }
+
+    long getPeriodNanos() {
+        return periodNanos;
+    }
+
+    /**
+     * @return The time for one permit to come back.
+     */
+    long intervalNanos() {
+        return intervalNanos(permits);
+    }
+
+    /**
+     * @return The time for one permit to come back to a bucket holding {@code share} of the permits.
+     */
+    long intervalNanos(long share) {
+        return Math.max(1, periodNanos / share);
+    }
+
+    @Override
+    public String toString() {
+        return permits + "/" + periodNanos + "ns";
+    }
+}
@@ -0,0 +1,48 @@
+package com.datastax.faultytowers;
+
+/**
+ * Measures how long an application takes to make forward progress after an injected exception: the
+ * time from a site throwing to the same thread next returning normally from the same method, e.g.
+ * when a retry succeeds.
+ *
+ * Every thread remembers only its most recent throw, so a throw that is never recovered from is
+ * forgotten as soon as the thread throws from another site. The exit probes injected before every
+ * return of an instrumented method check the site's count of pending throws first, so sites that
+ * have not thrown never touch the thread local.
+ */
+final class RecoveryProbe {
+    private static final ThreadLocal<RecoveryProbe> PENDING = ThreadLocal.withInitial(RecoveryProbe::new);
+
+    // The site of this thread's unrecovered throw, or null
+    private InjectionSite site;
+    private long thrownNanos;
+
+    private RecoveryProbe() {
+    }
+
+    /**
+     * Called when {@code site} throws on this thread.
+     */
+    static void thrown(InjectionSite site) {
+        RecoveryProbe probe = PENDING.get();
+        if (probe.site != null)
+            probe.site.getPendingRecoveries().decrementAndGet();
+        site.getPendingRecoveries().incrementAndGet();
+        probe.site = site;
+        probe.thrownNanos = System.nanoTime();
+    }
+
+    /**
+     * Called when the method of {@code site} returns normally on this thread.
+     */
+    static void returned(InjectionSite site) {
+        if (site.getPendingRecoveries().get() == 0)
+            return;
+        RecoveryProbe probe = PENDING.get();
+        if (probe.site != site)
+            return;
+        site.recordRecovery(System.nanoTime() - probe.thrownNanos);
+        site.getPendingRecoveries().decrementAndGet();
+        probe.site = null;
+    }
+}
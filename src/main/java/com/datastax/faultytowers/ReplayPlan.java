@@ -0,0 +1,88 @@
+package com.datastax.faultytowers;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The exceptions recorded by a previous run, loaded so that they can be thrown again.
+ *
+ * A replay file is written by {@link ReplayRecorder} and holds one line per thrown exception or
+ * injected delay:
+ * <pre>
+ *   # faulty-towers replay seed=&lt;seed&gt;
+ *   &lt;site id&gt; &lt;site name&gt; &lt;exception class&gt; &lt;hit ordinal&gt;
+ * </pre>
+ * The site name includes the method descriptor, e.g. {@code org/foo/Bar.read(I)V}, and the hit ordinal
+ * counts calls to the site starting from 1. Site ids are only meaningful within the recorded run so
+ * sites are matched by name. A site fires at each of its ordinals the way it is configured to in the
+ * replaying run, so a site given a {@link LatencyFault} delays rather than throws. A file that the
+ * recorder marked as incomplete is rejected, as replaying it would not throw the same exceptions.
+ *
+ * Each site's ordinals are held in a {@link BitSet} so that deciding whether a hit throws is a
+ * single bit test.
+ */
+final class ReplayPlan {
+    private final Map<String, BitSet> ordinalsBySite;
+
+    private ReplayPlan(Map<String, BitSet> ordinalsBySite) {
+        this.ordinalsBySite = ordinalsBySite;
+    }
+
+    static ReplayPlan load(Path path) throws IOException {
+        Map<String, BitSet> ordinalsBySite = new HashMap<>();
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.startsWith(ReplayRecorder.INCOMPLETE))
+                    throw new IOException(path + ":" + lineNumber + ": the recording is incomplete, as the event log"
+                            + " dropped events while it was written");
+                if (line.isEmpty() || line.startsWith("#"))
+                    continue;
+
+                String[] fields = line.split("\\s+");
+                if (fields.length != 4)
+                    throw new IOException(path + ":" + lineNumber + ": expected 4 fields but found " + fields.length);
+
+                int ordinal;
+                try {
+                    ordinal = Integer.parseInt(fields[3]);
+                } catch (NumberFormatException e) {
+                    throw new IOException(path + ":" + lineNumber + ": bad hit ordinal '" + fields[3] + "'");
+                }
+                // Ordinals count from 1, so anything less cannot have been recorded
+                if (ordinal < 1)
+                    throw new IOException(path + ":" + lineNumber + ": bad hit ordinal '" + fields[3] + "'");
+                ordinalsBySite.computeIfAbsent(fields[1], k -> new BitSet()).set(ordinal);
+            }
+        }
+        return new ReplayPlan(ordinalsBySite);
+    }
+
+    /**
+     * @param siteName The name of the site including its descriptor, see {@link InjectionSite#getName()}
+     * @return true if an exception was recorded for the site.
+     */
+    boolean contains(String siteName) {
+        return ordinalsBySite.containsKey(siteName);
+    }
+
+    /**
+     * @return The hit ordinals at which the site threw or was delayed, or null if it never was.
+     */
+    BitSet getOrdinals(String siteName) {
+        return ordinalsBySite.get(siteName);
+    }
+
+    int size() {
+        return ordinalsBySite.size();
+    }
+}
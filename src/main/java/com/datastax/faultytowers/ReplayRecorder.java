@@ -0,0 +1,53 @@
+package com.datastax.faultytowers;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * An {@link EventSink} that writes every thrown exception and injected delay to a replay file which
+ * can later be loaded with {@link ReplayPlan}. Runs on the event log's writer thread so the throwing
+ * thread never touches the file.
+ *
+ * If the event log drops events the file is marked as incomplete, as it may be missing throws, and
+ * {@link ReplayPlan} refuses to load it.
+ */
+final class ReplayRecorder implements EventSink {
+    static final String INCOMPLETE = "# faulty-towers replay incomplete";
+
+    private final BufferedWriter writer;
+
+    ReplayRecorder(Path path, long seed) throws IOException {
+        writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8);
+        writer.write("# faulty-towers replay seed=" + seed);
+        writer.newLine();
+    }
+
+    @Override
+    public void accept(byte type, long time, long threadId, int siteId, long ordinal, long value, String text)
+            throws IOException {
+        if (type == EventLog.DROPPED) {
+            writer.write(INCOMPLETE + " dropped=" + value);
+            writer.newLine();
+            return;
+        }
+        if (type != EventLog.THROW && type != EventLog.DELAY)
+            return;
+
+        InjectionSite site = InjectionSites.get(siteId);
+        writer.write(siteId + " " + site.getName() + " " + site.getExceptionClassName() + " " + ordinal);
+        writer.newLine();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        writer.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.close();
+    }
+}
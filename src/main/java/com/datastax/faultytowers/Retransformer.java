@@ -0,0 +1,138 @@
+package com.datastax.faultytowers;
+
+import java.lang.instrument.Instrumentation;
+import java.lang.instrument.UnmodifiableClassException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Retransforms many classes in bounded batches spread over a {@link ForkJoinPool}.
+ *
+ * Every call to {@link Instrumentation#retransformClasses} installs its classes in a single
+ * safepoint, so the batch size bounds how long the application is paused at a time. Batches are
+ * submitted in parallel: the transformers run on the calling thread before the safepoint, so they
+ * overlap, while the safepoints themselves are serialised by the JVM.
+ *
+ * If a batch fails, e.g. because one class cannot be modified, its classes are retried one at a time
+ * so that a single bad class does not stop the rest from being retransformed.
+ */
+final class Retransformer {
+    static final int DEFAULT_BATCH_SIZE = 64;
+
+    /**
+     * What happened during a call to {@link #retransform}.
+     */
+    static final class Result {
+        private final int classes;
+        private final int batches;
+        private final int failures;
+        private final long elapsedNanos;
+        private final long retransformNanos;
+        private final long maxBatchNanos;
+
+        Result(int classes, int batches, int failures, long elapsedNanos, long retransformNanos, long maxBatchNanos) {
+            this.classes = classes;
+            this.batches = batches;
+            this.failures = failures;
+            this.elapsedNanos = elapsedNanos;
+            this.retransformNanos = retransformNanos;
+            this.maxBatchNanos = maxBatchNanos;
+        }
+
+        int getClasses() {
+            return classes;
+        }
+
+        int getFailures() {
+            return failures;
+        }
+
+        long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        /**
+         * @return The total time spent inside {@link Instrumentation#retransformClasses} across all threads.
+         */
+        long getRetransformNanos() {
+            return retransformNanos;
+        }
+
+        /**
+         * @return The longest single call to {@link Instrumentation#retransformClasses}, which bounds the
+         * longest pause.
+         */
+        long getMaxBatchNanos() {
+            return maxBatchNanos;
+        }
+
+        @Override
+        public String toString() {
+            return classes + " classes in " + batches + " batches, " + failures + " failed, "
+                    + TimeUnit.NANOSECONDS.toMillis(elapsedNanos) + "ms elapsed, "
+                    + TimeUnit.NANOSECONDS.toMillis(retransformNanos) + "ms retransforming, longest batch "
+                    + TimeUnit.NANOSECONDS.toMillis(maxBatchNanos) + "ms";
+        }
+    }
+
+    private Retransformer() {
+    }
+
+    /**
+     * Retransform {@code classes}, {@code batchSize} classes at a time, using up to {@code parallelism}
+     * threads.
+     */
+    static Result retransform(Instrumentation inst, List<Class<?>> classes, int batchSize, int parallelism) {
+        List<List<Class<?>>> batches = new ArrayList<>();
+        for (int i = 0; i < classes.size(); i += batchSize)
+            batches.add(classes.subList(i, Math.min(i + batchSize, classes.size())));
+
+        AtomicInteger failures = new AtomicInteger();
+        AtomicLong retransformNanos = new AtomicLong();
+        AtomicLong maxBatchNanos = new AtomicLong();
+
+        long start = System.nanoTime();
+        ForkJoinPool pool = new ForkJoinPool(Math.max(1, parallelism));
+        try {
+            pool.submit(() -> batches.parallelStream().forEach(batch -> {
+                long batchStart = System.nanoTime();
+                failures.addAndGet(retransformBatch(inst, batch));
+                long batchNanos = System.nanoTime() - batchStart;
+                retransformNanos.addAndGet(batchNanos);
+                maxBatchNanos.accumulateAndGet(batchNanos, Math::max);
+            })).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            e.getCause().printStackTrace();
+        } finally {
+            pool.shutdown();
+        }
+
+        return new Result(classes.size(), batches.size(), failures.get(), System.nanoTime() - start,
+                retransformNanos.get(), maxBatchNanos.get());
+    }
+
+    // Returns the number of classes that could not be retransformed
+    private static int retransformBatch(Instrumentation inst, List<Class<?>> batch) {
+        try {
+            inst.retransformClasses(batch.toArray(new Class<?>[0]));
+            return 0;
+        } catch (UnmodifiableClassException | RuntimeException | LinkageError e) {
+            if (batch.size() == 1) {
+                System.err.println("Failed to retransform " + batch.get(0).getName() + ": " + e);
+                return 1;
+            }
+
+            int failures = 0;
+            for (Class<?> c : batch)
+                failures += retransformBatch(inst, List.of(c));
+            return failures;
+        }
+    }
+}
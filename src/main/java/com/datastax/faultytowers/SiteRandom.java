@@ -0,0 +1,60 @@
+package com.datastax.faultytowers;
+
+/**
+ * Deterministic random numbers for injection decisions.
+ *
+ * Every site gets its own stream, derived from the run's seed and the site's name, so a decision
+ * about one site does not depend on how many other sites were seen before it or on the order in
+ * which classes happened to load. Running again with the same seed makes the same choices.
+ */
+final class SiteRandom {
+    private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+    private static final double DOUBLE_UNIT = 0x1.0p-53;
+
+    private long state;
+
+    SiteRandom(long seed, String siteName) {
+        this.state = mix(seed ^ hash(siteName));
+    }
+
+    /**
+     * @return A seed for a run that did not ask for one.
+     */
+    static long newSeed() {
+        return mix(System.nanoTime() ^ System.currentTimeMillis() * GOLDEN_GAMMA);
+    }
+
+    /**
+     * @return A uniformly distributed double in {@code [0, 1)} that only depends on {@code seed} and
+     * {@code siteName}.
+     */
+    static double uniform(long seed, String siteName) {
+        return new SiteRandom(seed, siteName).nextDouble();
+    }
+
+    long nextLong() {
+        // SplitMix64
+        state += GOLDEN_GAMMA;
+        return mix(state);
+    }
+
+    double nextDouble() {
+        return (nextLong() >>> 11) * DOUBLE_UNIT;
+    }
+
+    static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    // 64-bit FNV-1a so that names with the same String.hashCode() still get different streams
+    private static long hash(String s) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+}
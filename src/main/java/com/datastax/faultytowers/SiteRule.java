@@ -0,0 +1,72 @@
+package com.datastax.faultytowers;
+
+/**
+ * The settings that a {@link FaultPlan} gives the sites matching one prefix. Each setting is null if
+ * the rule leaves it alone, so that a rule for a class only has to name what differs from the rule
+ * for its package. A latency of {@link LatencyFault#NONE} makes the sites throw rather than delay.
+ */
+final class SiteRule {
+    static final SiteRule NONE = new SiteRule(null, null, null, null);
+
+    private final Double probability;
+    private final Long throwLimit;
+    private final ExceptionPolicy exceptionPolicy;
+    private final LatencyFault latencyFault;
+
+    SiteRule(Double probability, Long throwLimit, ExceptionPolicy exceptionPolicy, LatencyFault latencyFault) {
+        this.probability = probability;
+        this.throwLimit = throwLimit;
+        this.exceptionPolicy = exceptionPolicy;
+        this.latencyFault = latencyFault;
+    }
+
+    /**
+     * @return This rule with the settings of {@code other}, a rule for a longer prefix, in place of its own.
+     */
+    SiteRule overriddenBy(SiteRule other) {
+        return new SiteRule(other.probability != null ? other.probability : probability,
+                other.throwLimit != null ? other.throwLimit : throwLimit,
+                other.exceptionPolicy != null ? other.exceptionPolicy : exceptionPolicy,
+                other.latencyFault != null ? other.latencyFault : latencyFault);
+    }
+
+    double getProbability(double defaultProbability) {
+        return probability != null ? probability : defaultProbability;
+    }
+
+    /**
+     * @return The site's own throw limit, or {@link InjectionSite#GLOBAL_THROW_LIMIT}.
+     */
+    long getThrowLimit() {
+        return throwLimit != null ? throwLimit : InjectionSite.GLOBAL_THROW_LIMIT;
+    }
+
+    ExceptionPolicy getExceptionPolicy(ExceptionPolicy defaultPolicy) {
+        return exceptionPolicy != null ? exceptionPolicy : defaultPolicy;
+    }
+
+    /**
+     * @param defaultFault The delay of sites the rule leaves alone, or null to throw
+     * @return The delay to inject in place of an exception, or null to throw.
+     */
+    LatencyFault getLatencyFault(LatencyFault defaultFault) {
+        if (latencyFault == null)
+            return defaultFault;
+        return latencyFault == LatencyFault.NONE ? null : latencyFault;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder s = new StringBuilder();
+        if (probability != null)
+            s.append(" ").append(FaultPlan.PROBABILITY).append('=').append(probability);
+        if (throwLimit != null)
+            s.append(" ").append(FaultPlan.LIMIT).append('=').append(throwLimit);
+        if (exceptionPolicy != null)
+            s.append(" ").append(FaultPlan.EXCEPTIONS).append('=').append(exceptionPolicy);
+        if (latencyFault != null)
+            s.append(" ").append(FaultPlan.LATENCY).append('=')
+                    .append(latencyFault == LatencyFault.NONE ? FaultyTowersControl.NO_LATENCY : latencyFault.toString());
+        return s.toString().trim();
+    }
+}
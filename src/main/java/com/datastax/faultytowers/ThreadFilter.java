@@ -0,0 +1,146 @@
+package com.datastax.faultytowers;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Limits injection to some of the application's threads, e.g. one thread pool's workers.
+ *
+ * A filter is a list of patterns separated by {@code |}. A pattern matches the thread's name, with
+ * {@code *} standing for any run of characters and {@code ?} for any one, e.g. {@code ReadStage-*}. A
+ * pattern that starts with {@code group:} matches the name of the thread's {@link ThreadGroup} or of
+ * any group above it instead, e.g. {@code group:compaction}. A thread is targeted if any pattern matches.
+ *
+ * Each thread matches the filter once, the first time it reaches an armed site, and keeps the result
+ * in a thread local until the filter is changed, so checking is a read of a field and of a thread local.
+ * A thread that is renamed after its first check keeps the result for its old name.
+ *
+ * Virtual threads have thread locals of their own, so each is matched by its own name rather than
+ * that of the carrier thread running it. They have no names unless the application gives them some,
+ * and all of them are in the {@code VirtualThreads} group.
+ */
+final class ThreadFilter {
+    static final String SEPARATOR = "|";
+    static final String GROUP = "group:";
+    // The filter that targets every thread again
+    static final String ALL = "all";
+
+    private static final ThreadLocal<Match> MATCH = ThreadLocal.withInitial(Match::new);
+    // null if every thread is targeted
+    private static volatile ThreadFilter current;
+
+    private final List<Pattern> names;
+    private final List<Pattern> groups;
+    private final String spec;
+
+    private ThreadFilter(List<Pattern> names, List<Pattern> groups, String spec) {
+        this.names = names;
+        this.groups = groups;
+        this.spec = spec;
+    }
+
+    /**
+     * @throws IllegalArgumentException if {@code spec} holds no patterns.
+     */
+    static ThreadFilter parse(String spec) {
+        List<Pattern> names = new ArrayList<>();
+        List<Pattern> groups = new ArrayList<>();
+        List<String> patterns = new ArrayList<>();
+        for (String pattern : spec.split("\\|")) {
+            pattern = pattern.trim();
+            if (pattern.isEmpty())
+                continue;
+            patterns.add(pattern);
+            if (pattern.startsWith(GROUP))
+                groups.add(glob(pattern.substring(GROUP.length()).trim()));
+            else
+                names.add(glob(pattern));
+        }
+        if (patterns.isEmpty())
+            throw new IllegalArgumentException("No thread patterns in '" + spec + "'");
+        return new ThreadFilter(List.copyOf(names), List.copyOf(groups), String.join(SEPARATOR, patterns));
+    }
+
+    /**
+     * @return A pattern matching the whole of a name against {@code glob}, where {@code *} matches any
+     * characters and {@code ?} any one character.
+     */
+    static Pattern glob(String glob) {
+        StringBuilder regex = new StringBuilder();
+        int start = 0;
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c != '*' && c != '?')
+                continue;
+            if (i > start)
+                regex.append(Pattern.quote(glob.substring(start, i)));
+            regex.append(c == '*' ? ".*" : ".");
+            start = i + 1;
+        }
+        if (start < glob.length())
+            regex.append(Pattern.quote(glob.substring(start)));
+        return Pattern.compile(regex.toString(), Pattern.DOTALL);
+    }
+
+    /**
+     * @param filter The threads that sites may throw on from now on, or null for every thread
+     */
+    static void setCurrent(ThreadFilter filter) {
+        current = filter;
+    }
+
+    /**
+     * @return The threads that sites may throw on, or null for every thread.
+     */
+    static ThreadFilter getCurrent() {
+        return current;
+    }
+
+    /**
+     * @return true if a site may throw on this thread.
+     */
+    static boolean allows() {
+        ThreadFilter filter = current;
+        if (filter == null)
+            return true;
+        Match match = MATCH.get();
+        // A new filter is a new object, so a result for an older one is never used
+        if (match.filter != filter) {
+            match.allowed = filter.matches(Thread.currentThread());
+            match.filter = filter;
+        }
+        return match.allowed;
+    }
+
+    boolean matches(Thread thread) {
+        if (matchesAny(names, thread.getName()))
+            return true;
+        if (groups.isEmpty())
+            return false;
+        // A thread that has terminated has no group
+        for (ThreadGroup group = thread.getThreadGroup(); group != null; group = group.getParent()) {
+            if (matchesAny(groups, group.getName()))
+                return true;
+        }
+        return false;
+    }
+
+    private static boolean matchesAny(List<Pattern> patterns, String name) {
+        for (Pattern pattern : patterns) {
+            if (pattern.matcher(name).matches())
+                return true;
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return spec;
+    }
+
+    private static final class Match {
+        private ThreadFilter filter;
+        private boolean allowed;
+    }
+}
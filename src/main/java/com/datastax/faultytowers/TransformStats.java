@@ -0,0 +1,75 @@
+package com.datastax.faultytowers;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts what the transformer did with the classes it was offered and how long it spent doing it,
+ * so that the agent's class-loading overhead can be measured.
+ */
+final class TransformStats {
+    private final LongAdder classesSeen = new LongAdder();
+    private final LongAdder classesRejectedByName = new LongAdder();
+    private final LongAdder classesWithoutCandidates = new LongAdder();
+    private final LongAdder classesTransformed = new LongAdder();
+    private final LongAdder classesFromCache = new LongAdder();
+    private final LongAdder transformNanos = new LongAdder();
+
+    void classSeen(long nanos) {
+        classesSeen.increment();
+        transformNanos.add(nanos);
+    }
+
+    void classRejectedByName() {
+        classesRejectedByName.increment();
+    }
+
+    void classWithoutCandidates() {
+        classesWithoutCandidates.increment();
+    }
+
+    void classTransformed() {
+        classesTransformed.increment();
+    }
+
+    void classFromCache() {
+        classesFromCache.increment();
+    }
+
+    long getClassesSeen() {
+        return classesSeen.sum();
+    }
+
+    long getClassesRejectedByName() {
+        return classesRejectedByName.sum();
+    }
+
+    long getClassesWithoutCandidates() {
+        return classesWithoutCandidates.sum();
+    }
+
+    long getClassesTransformed() {
+        return classesTransformed.sum();
+    }
+
+    /**
+     * @return The number of classes, changed or not, whose transformation was found in the cache.
+     */
+    long getClassesFromCache() {
+        return classesFromCache.sum();
+    }
+
+    long getTransformNanos() {
+        return transformNanos.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "classes seen=" + getClassesSeen()
+                + " rejected by name=" + getClassesRejectedByName()
+                + " without candidates=" + getClassesWithoutCandidates()
+                + " transformed=" + getClassesTransformed()
+                + " from cache=" + getClassesFromCache()
+                + " time=" + TimeUnit.NANOSECONDS.toMillis(getTransformNanos()) + "ms";
+    }
+}
@@ -0,0 +1,97 @@
+package com.datastax.faultytowers;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BudgetTest {
+    private static final long NO_DELAY = 0;
+
+    private static int acquired(Budget budget, int siteId, int attempts) {
+        int acquired = 0;
+        for (int i = 0; i < attempts; i++) {
+            if (budget.acquire(siteId))
+                acquired++;
+        }
+        return acquired;
+    }
+
+    @Test
+    public void ratesAreParsed() {
+        RateLimit rate = RateLimit.parse("1/10m");
+        assertEquals(1, rate.getPermits());
+        assertEquals(TimeUnit.MINUTES.toNanos(10), rate.getPeriodNanos());
+        assertEquals(TimeUnit.HOURS.toNanos(2), RateLimit.parse("5/2h").getPeriodNanos());
+        for (String spec : new String[] {"10", "0/1s", "x/1s", "1/0s"}) {
+            try {
+                RateLimit.parse(spec);
+                throw new AssertionError("Accepted '" + spec + "'");
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void globalBudgetIsSharedByEverySiteAndSplitOverStripes() {
+        // 100 does not split evenly over 8 stripes, but one thread can still use all of it
+        Budget budget = new Budget(RateLimit.parse("100/1h"), null, NO_DELAY, 8);
+        assertEquals(60, acquired(budget, 0, 60));
+        assertEquals(40, acquired(budget, 1, 60));
+        assertFalse(budget.acquire(2));
+    }
+
+    @Test
+    public void releasedPermitsCanBeTakenAgain() {
+        Budget budget = new Budget(RateLimit.parse("4/1h"), RateLimit.parse("1/1h"), NO_DELAY, 2);
+        assertTrue(budget.acquire(0));
+        assertFalse(budget.acquire(0));
+        budget.giveBack(0);
+        assertTrue(budget.acquire(0));
+        assertEquals(3, acquired(budget, 1, 1) + acquired(budget, 2, 1) + acquired(budget, 3, 1));
+        assertFalse(budget.acquire(4));
+        budget.giveBack(3);
+        assertTrue(budget.acquire(4));
+    }
+
+    @Test
+    public void eachSiteHasItsOwnBudget() {
+        Budget budget = new Budget(null, RateLimit.parse("2/1h"), NO_DELAY, 8);
+        assertEquals(2, acquired(budget, 0, 5));
+        assertEquals(2, acquired(budget, 1, 5));
+        // Sites registered after the budget was made have room too
+        assertEquals(2, acquired(budget, 5000, 5));
+    }
+
+    @Test
+    public void siteKeepsItsPermitsWhileTheGlobalBudgetIsEmpty() throws InterruptedException {
+        Budget budget = new Budget(RateLimit.parse("1/100ms"), RateLimit.parse("2/1h"), NO_DELAY, 1);
+        assertTrue(budget.acquire(0));
+        assertEquals(0, acquired(budget, 1, 5));
+        for (int i = 0; i < 2; i++) {
+            Thread.sleep(150);
+            assertTrue(budget.acquire(1));
+        }
+        Thread.sleep(150);
+        assertFalse(budget.acquire(1));
+    }
+
+    @Test
+    public void permitsComeBackOverTime() throws InterruptedException {
+        Budget budget = new Budget(RateLimit.parse("2/50ms"), null, NO_DELAY, 1);
+        assertEquals(2, acquired(budget, 0, 5));
+        Thread.sleep(200);
+        assertEquals(2, acquired(budget, 0, 5));
+    }
+
+    @Test
+    public void nothingFiresDuringTheDelay() throws InterruptedException {
+        Budget budget = new Budget(null, null, TimeUnit.MILLISECONDS.toNanos(100), 1);
+        assertFalse(budget.acquire(0));
+        Thread.sleep(200);
+        assertTrue(budget.acquire(0));
+    }
+}
@@ -0,0 +1,75 @@
+package com.datastax.faultytowers;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CallScopeIntegrationTest {
+
+    private static long oldThrowLimit;
+
+    @BeforeClass
+    public static void setUp() {
+        oldThrowLimit = ExceptionThrower.getThrowLimit();
+        ExceptionThrower.setThrowLimit(100);
+        FaultyTowers.installAgent(AgentOptions.PROBABILITY + "=1.0," + AgentOptions.LOADED + "=false,"
+                + AgentOptions.ENTRY + "=com.datastax.faultytowers.Scoped.handle|com.datastax.faultytowers.Scoped.propagate");
+    }
+
+    @AfterClass
+    public static void tearDown() {
+        FaultyTowers.removeAgent();
+        ExceptionThrower.setThrowLimit(oldThrowLimit);
+    }
+
+    private static boolean sharedThrows() {
+        try {
+            Scoped.shared();
+            return false;
+        } catch (Utils.CheckedException e) {
+            return true;
+        }
+    }
+
+    @Test
+    public void sitesOnlyThrowInsideEntryPoints() {
+        assertFalse("Threw outside every entry point", sharedThrows());
+        assertTrue("Failed to throw inside an entry point", Scoped.handle());
+        assertFalse("Threw after returning from an entry point", sharedThrows());
+
+        try {
+            Scoped.propagate();
+            fail("Failed to throw inside an entry point");
+        } catch (Utils.CheckedException expected) {
+        }
+        assertFalse("Threw after an entry point threw", sharedThrows());
+    }
+}
+
+// A top level class, because nested classes are never instrumented
+class Scoped {
+    // An entry point that is not a site itself
+    static boolean handle() {
+        try {
+            shared();
+            return false;
+        } catch (Utils.CheckedException e) {
+            return true;
+        }
+    }
+
+    // An entry point that the exception escapes from
+    static void propagate() throws Utils.CheckedException {
+        shared();
+    }
+
+    static void shared() throws Utils.CheckedException {
+        // noinspection ConstantConditions
+        if (false)
+            throw new Utils.CheckedException();
+    }
+}
@@ -0,0 +1,28 @@
+package com.datastax.faultytowers;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CandidateScannerTest {
+
+    @Test
+    public void scannerFindsSourceFileAndLinesOfCandidates() throws IOException {
+        byte[] classFile;
+        try (InputStream in = Utils.class.getResourceAsStream("Utils.class")) {
+            classFile = in.readAllBytes();
+        }
+
+        CandidateScanner scanner = CandidateScanner.scanWithLines(classFile);
+        assertEquals("Utils.java", scanner.getSourceFile());
+        assertEquals(CandidateScanner.scan(classFile), scanner.getCandidates());
+        for (int i = 0; i < scanner.getCandidates().size(); i++) {
+            assertTrue(scanner.getFirstLine(i) > 0);
+            assertTrue(scanner.getFirstLine(i) <= scanner.getLastLine(i));
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.datastax.faultytowers;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class ClassCacheTest {
+
+    private static final byte[] CLASS_FILE = "a class file".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] TRANSFORMED = "a transformed class file".getBytes(StandardCharsets.UTF_8);
+
+    @Test
+    public void entriesAreSharedBetweenOpenCaches() throws IOException {
+        Path directory = Files.createTempDirectory("faulty-cache");
+        try (ClassCache writer = ClassCache.open(directory, 42, 16);
+             ClassCache reader = ClassCache.open(directory, 42, 16)) {
+            assertNull(reader.get(CLASS_FILE));
+
+            writer.put(CLASS_FILE, new ClassCache.Entry(
+                    Collections.singletonList(new String[] {"read", "(I)V", "java/io/IOException"}), TRANSFORMED));
+
+            ClassCache.Entry entry = reader.get(CLASS_FILE);
+            assertNotNull(entry);
+            assertArrayEquals(TRANSFORMED, entry.getBytes());
+            assertEquals(1, entry.getSites().size());
+            assertArrayEquals(new String[] {"read", "(I)V", "java/io/IOException"}, entry.getSites().get(0));
+        }
+
+        // A different configuration never sees the entry
+        try (ClassCache other = ClassCache.open(directory, 43, 16)) {
+            assertNull(other.get(CLASS_FILE));
+        }
+    }
+
+    @Test
+    public void fingerprintCoversTheOptionsAndTheAgentsCode() throws IOException {
+        long fingerprint = ClassCache.fingerprint(AgentOptions.parse("seed=1"));
+        assertEquals(fingerprint, ClassCache.fingerprint(AgentOptions.parse("seed=1")));
+        assertNotEquals(fingerprint, ClassCache.fingerprint(AgentOptions.parse("seed=2")));
+    }
+
+    @Test
+    public void closedCacheMissesInsteadOfFailing() throws IOException {
+        Path directory = Files.createTempDirectory("faulty-cache");
+        ClassCache cache = ClassCache.open(directory, 42, 16);
+        cache.put(CLASS_FILE, new ClassCache.Entry(Collections.emptyList(), TRANSFORMED));
+        cache.close();
+        assertNull(cache.get(CLASS_FILE));
+        cache.put(CLASS_FILE, new ClassCache.Entry(Collections.emptyList(), TRANSFORMED));
+    }
+
+    @Test
+    public void unchangedClassesAreCached() throws IOException {
+        Path directory = Files.createTempDirectory("faulty-cache");
+        try (ClassCache cache = ClassCache.open(directory, 42, 16)) {
+            cache.put(CLASS_FILE, new ClassCache.Entry(Collections.emptyList(), null));
+            ClassCache.Entry entry = cache.get(CLASS_FILE);
+            assertNotNull(entry);
+            assertNull(entry.getBytes());
+            assertEquals(0, entry.getSites().size());
+        }
+    }
+
+    @Test
+    public void fullTableStopsCaching() throws IOException {
+        Path directory = Files.createTempDirectory("faulty-cache");
+        try (ClassCache cache = ClassCache.open(directory, 42, 16)) {
+            for (int i = 0; i < 32; i++)
+                cache.put(new byte[] {(byte) i}, new ClassCache.Entry(Collections.emptyList(), null));
+            int cached = 0;
+            for (int i = 0; i < 32; i++) {
+                if (cache.get(new byte[] {(byte) i}) != null)
+                    cached++;
+            }
+            assertEquals(16, cached);
+        }
+    }
+
+    @Test
+    public void hashDependsOnContentAndSeed() {
+        assertArrayEquals(ClassCache.hash(CLASS_FILE, 1), ClassCache.hash(CLASS_FILE, 1));
+        assertNotEquals(ClassCache.hash(CLASS_FILE, 1)[0], ClassCache.hash(CLASS_FILE, 2)[0]);
+        assertNotEquals(ClassCache.hash(CLASS_FILE, 1)[0], ClassCache.hash(TRANSFORMED, 1)[0]);
+    }
+
+    @Test
+    public void secondTransformerUsesCachedClass() throws IOException {
+        byte[] classFile;
+        try (InputStream in = Utils.class.getResourceAsStream("Utils.class")) {
+            classFile = in.readAllBytes();
+        }
+        String className = "com/datastax/faultytowers/Utils";
+        ClassLoader loader = getClass().getClassLoader();
+        Path directory = Files.createTempDirectory("faulty-cache");
+
+        byte[] transformed;
+        try (ClassCache cache = ClassCache.open(directory, 42, 16)) {
+            ExceptionThrower thrower = new ExceptionThrower(1.0, 42, null, true);
+            thrower.setCache(cache);
+            transformed = thrower.transform(loader, className, null, null, classFile);
+            assertNotNull(transformed);
+            assertEquals(0, thrower.getTransformStats().getClassesFromCache());
+        }
+
+        try (ClassCache cache = ClassCache.open(directory, 42, 16)) {
+            ExceptionThrower thrower = new ExceptionThrower(1.0, 42, null, true);
+            thrower.setCache(cache);
+            assertArrayEquals(transformed, thrower.transform(loader, className, null, null, classFile));
+            assertEquals(1, thrower.getTransformStats().getClassesFromCache());
+            assertEquals(1, thrower.getTransformStats().getClassesTransformed());
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package com.datastax.faultytowers;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ClassNameFilterTest {
+
+    @Test
+    public void defaultsRejectJdkAndNestedClasses() {
+        ClassNameFilter filter = ClassNameFilter.defaults();
+        assertFalse(filter.accepts("java/lang/String"));
+        assertFalse(filter.accepts("org/junit/Assert"));
+        assertFalse(filter.accepts("org/apache/cassandra/db/ReadCommand$Serializer"));
+        assertFalse(filter.accepts(null));
+        assertTrue(filter.accepts("org/apache/cassandra/db/ReadCommand"));
+    }
+
+    @Test
+    public void includesRestrictEligibleClasses() {
+        ClassNameFilter filter = ClassNameFilter.of(Collections.singletonList("org.apache.cassandra."),
+                Collections.emptyList());
+        assertTrue(filter.accepts("org/apache/cassandra/db/ReadCommand"));
+        assertFalse(filter.accepts("com/google/common/collect/Lists"));
+        assertFalse(filter.accepts("org/apache/cassa"));
+    }
+
+    @Test
+    public void longestPrefixWins() {
+        ClassNameFilter filter = ClassNameFilter.of(
+                Arrays.asList("org/apache/cassandra/", "org/apache/cassandra/utils/concurrent/"),
+                Collections.singletonList("org/apache/cassandra/utils/"));
+        assertTrue(filter.accepts("org/apache/cassandra/db/ReadCommand"));
+        assertFalse(filter.accepts("org/apache/cassandra/utils/FBUtilities"));
+        assertTrue(filter.accepts("org/apache/cassandra/utils/concurrent/Ref"));
+    }
+}
@@ -0,0 +1,36 @@
+package com.datastax.faultytowers;
+
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ClusterReportTest {
+
+    @Test
+    public void countersAreAddedUpAcrossNodes() {
+        ClusterReport report = new ClusterReport();
+        report.add("1", 10, 3, Map.of("a/B.read()V", 10L), Map.of("a/B.read()V", 3L));
+        report.add("2", 7, 0, Map.of("a/B.read()V", 5L, "a/B.write()V", 2L), Map.of());
+        report.add("3", 4, 1, Map.of("a/B.write()V", 4L), Map.of("a/B.write()V", 1L));
+
+        assertEquals(21, report.getTotalHits());
+        assertEquals(4, report.getTotalThrows());
+        assertArrayEquals(new long[] {15, 3, 1}, report.getSite("a/B.read()V"));
+        assertArrayEquals(new long[] {6, 1, 1}, report.getSite("a/B.write()V"));
+    }
+
+    @Test
+    public void jvmsAreMatchedByMainClassOrJar() {
+        Pattern pattern = ThreadFilter.glob("*CassandraDaemon");
+        assertTrue(Cluster.matches(pattern, "org.apache.cassandra.service.CassandraDaemon -p 7000"));
+        assertTrue(Cluster.matches(ThreadFilter.glob("CassandraDaemon"), "org.apache.cassandra.service.CassandraDaemon"));
+        assertFalse(Cluster.matches(pattern, "org.apache.cassandra.tools.NodeProbe CassandraDaemon"));
+        assertTrue(Cluster.matches(ThreadFilter.glob("*/node?.jar"), "/opt/cluster/node1.jar"));
+    }
+}
@@ -0,0 +1,108 @@
+package com.datastax.faultytowers;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ControlIntegrationTest {
+
+    private static ControlClient client;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        // Leave the classes that are already loaded, including this one, alone
+        FaultyTowers.installAgent(AgentOptions.PROBABILITY + "=1.0," + AgentOptions.LOADED + "=false");
+        String runtimeName = ManagementFactory.getRuntimeMXBean().getName();
+        client = ControlClient.connect(runtimeName.substring(0, runtimeName.indexOf('@')));
+    }
+
+    @AfterClass
+    public static void tearDown() throws Exception {
+        FaultyTowers.removeAgent();
+        if (client != null)
+            client.close();
+    }
+
+    private static boolean throwsCheckedException() {
+        try {
+            Controlled.throwGuardedCheckedException();
+            return false;
+        } catch (Utils.CheckedException e) {
+            return true;
+        }
+    }
+
+    @Test
+    public void commandsChangeLiveSitesAndCountersAreVisible() {
+        FaultyTowersMXBean control = client.getControl();
+        long oldThrowLimit = control.getThrowLimit();
+        control.setThrowLimit(100);
+        try {
+            assertEquals(100, ExceptionThrower.getThrowLimit());
+
+            assertTrue("Failed to throw CheckedException", throwsCheckedException());
+            String site = "com/datastax/faultytowers/Controlled.throwGuardedCheckedException()V";
+            assertEquals(Long.valueOf(1), control.getThrowCounts().get(site));
+            assertTrue(control.getTotalThrows() >= 1);
+
+            assertEquals(1, control.disarm("com.datastax.faultytowers.Controlled"));
+            assertFalse("Threw CheckedException from a disarmed site", throwsCheckedException());
+
+            assertEquals(1, control.arm("com.datastax.faultytowers.Controlled"));
+            assertTrue("Failed to throw CheckedException", throwsCheckedException());
+        } finally {
+            control.setThrowLimit(oldThrowLimit);
+        }
+    }
+
+    @Test
+    public void latencyReplacesTheExceptionAndIsRecorded() throws Exception {
+        FaultyTowersMXBean control = client.getControl();
+        String prefix = "com.datastax.faultytowers.Delayed.delayCheckedException";
+        String site = "com/datastax/faultytowers/Delayed.delayCheckedException()V";
+        long oldThrowLimit = control.getThrowLimit();
+        control.setThrowLimit(100);
+        try {
+            // Load the class so that its site exists
+            assertEquals("Delayed", Delayed.class.getSimpleName());
+            assertEquals(1, control.setLatency(prefix, "fixed:1ms"));
+            long start = System.nanoTime();
+            Delayed.delayCheckedException();
+            assertTrue(System.nanoTime() - start >= 1_000_000);
+            assertTrue(control.getDelays().get(site).startsWith("count=1 "));
+
+            assertEquals(1, control.setLatency(prefix, "none"));
+            try {
+                Delayed.delayCheckedException();
+                fail("Failed to throw CheckedException");
+            } catch (Utils.CheckedException expected) {
+            }
+        } finally {
+            control.setThrowLimit(oldThrowLimit);
+        }
+    }
+}
+
+// A top level class, because nested classes are never instrumented
+class Controlled {
+    static void throwGuardedCheckedException() throws Utils.CheckedException {
+        // noinspection ConstantConditions
+        if (false)
+            throw new Utils.CheckedException();
+    }
+}
+
+class Delayed {
+    static void delayCheckedException() throws Utils.CheckedException {
+        // noinspection ConstantConditions
+        if (false)
+            throw new Utils.CheckedException();
+    }
+}
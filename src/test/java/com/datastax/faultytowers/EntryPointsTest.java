@@ -0,0 +1,33 @@
+package com.datastax.faultytowers;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class EntryPointsTest {
+
+    @Test
+    public void methodsMatchPackageClassAndMethodPrefixes() {
+        EntryPoints entryPoints = EntryPoints.parse("org.foo.Handler.handle|org.bar");
+        assertTrue(entryPoints.contains("org/foo/Handler", "handle", "()V"));
+        assertTrue(entryPoints.contains("org/foo/Handler", "handleRead", "(I)V"));
+        assertFalse(entryPoints.contains("org/foo/Handler", "close", "()V"));
+        assertTrue(entryPoints.contains("org/bar/Compaction", "run", "()V"));
+        assertFalse(entryPoints.contains("org/bar/Compaction", "<init>", "()V"));
+    }
+
+    @Test
+    public void classesThatCannotHoldEntryPointsAreRejected() {
+        EntryPoints entryPoints = EntryPoints.parse("org.foo.Handler.handle|org.bar");
+        assertTrue(entryPoints.mayContain("org/foo/Handler"));
+        assertTrue(entryPoints.mayContain("org/bar/baz/Task"));
+        assertFalse(entryPoints.mayContain("org/foo/Other"));
+        assertFalse(entryPoints.mayContain("org/foo/HandlerFactory"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void emptySpecIsRejected() {
+        EntryPoints.parse(" | ");
+    }
+}
@@ -0,0 +1,109 @@
+package com.datastax.faultytowers;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class EventLogTest {
+
+    @Test
+    public void recordsAreWrittenAndDumped() throws IOException {
+        Path path = Files.createTempFile("faulty", ".events");
+        EventLog log = new EventLog(16);
+        log.start(path);
+        assertTrue(log.record(EventLog.TRANSFORM, -1, 0, 0, "a/B"));
+        assertTrue(log.record(EventLog.THROW, 7, 1, 0, null));
+        log.stop();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = Files.newInputStream(path)) {
+            EventLogDump.dump(in, new PrintStream(out, true, "UTF-8"));
+        }
+        String[] lines = out.toString("UTF-8").split("\n");
+        assertEquals(2, lines.length);
+        assertTrue(lines[0].endsWith(" transform -1 0 0 a/B"));
+        assertTrue(lines[1].endsWith(" throw 7 1 0 "));
+        Files.delete(path);
+    }
+
+    @Test
+    public void fullRingDropsInsteadOfBlocking() {
+        EventLog log = new EventLog(4);
+        for (int i = 0; i < 4; i++)
+            assertTrue(log.record(EventLog.THROW, i, 0, 0, null));
+        assertFalse(log.record(EventLog.THROW, 4, 0, 0, null));
+        assertEquals(1, log.getDropped());
+    }
+
+    @Test
+    public void droppedEventsAreReported() throws IOException {
+        Path path = Files.createTempFile("faulty", ".events");
+        EventLog log = new EventLog(4);
+        for (int i = 0; i < 6; i++)
+            log.record(EventLog.THROW, i, 0, 0, null);
+        log.start(path);
+        log.stop();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = Files.newInputStream(path)) {
+            EventLogDump.dump(in, new PrintStream(out, true, "UTF-8"));
+        }
+        String[] lines = out.toString("UTF-8").split("\n");
+        assertEquals(5, lines.length);
+        assertTrue(lines[4].endsWith(" dropped -1 0 2 "));
+        Files.delete(path);
+    }
+
+    @Test
+    public void stoppedLogCanBeStartedAgain() throws IOException {
+        Path first = Files.createTempFile("faulty", ".events");
+        Path second = Files.createTempFile("faulty", ".events");
+        EventLog log = new EventLog(16);
+        log.start(first);
+        assertTrue(log.record(EventLog.THROW, 1, 1, 0, null));
+        log.stop();
+        assertFalse(log.isStarted());
+
+        log.start(second);
+        assertTrue(log.record(EventLog.THROW, 2, 1, 0, null));
+        log.stop();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = Files.newInputStream(second)) {
+            EventLogDump.dump(in, new PrintStream(out, true, "UTF-8"));
+        }
+        String[] lines = out.toString("UTF-8").split("\n");
+        assertEquals(1, lines.length);
+        assertTrue(lines[0].endsWith(" throw 2 1 0 "));
+        Files.delete(first);
+        Files.delete(second);
+    }
+
+    @Test
+    public void longTextIsCutAtACharacterBoundary() throws IOException {
+        Path path = Files.createTempFile("faulty", ".events");
+        EventLog log = new EventLog(16);
+        log.start(path);
+        // The 3 byte encoding of each euro sign straddles the limit of Short.MAX_VALUE bytes
+        assertTrue(log.record(EventLog.INJECT, 1, 0, 0, "xx" + "\u20ac".repeat(Short.MAX_VALUE / 3)));
+        log.stop();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = Files.newInputStream(path)) {
+            EventLogDump.dump(in, new PrintStream(out, true, "UTF-8"));
+        }
+        String line = out.toString("UTF-8").trim();
+        String text = line.substring(line.lastIndexOf(' ') + 1);
+        assertEquals("xx" + "\u20ac".repeat(Short.MAX_VALUE / 3 - 1), text);
+        Files.delete(path);
+    }
+}
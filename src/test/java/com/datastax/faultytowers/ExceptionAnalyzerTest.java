@@ -0,0 +1,161 @@
+package com.datastax.faultytowers;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.tree.ClassNode;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ExceptionAnalyzerTest {
+
+    private static byte[] classFile() throws IOException {
+        try (InputStream in = Throwing.class.getResourceAsStream("Throwing.class")) {
+            return in.readAllBytes();
+        }
+    }
+
+    @Test
+    public void scannerFollowsSameClassCalls() throws IOException {
+        List<String> candidates = CandidateScanner.scan(classFile());
+        assertTrue(candidates.contains("callsHelper()V"));
+        assertTrue(candidates.contains("callsCallsHelper()V"));
+        assertFalse(candidates.contains("neverThrows()V"));
+    }
+
+    @Test
+    public void thrownTypesAreInferredWhereverTheValueComesFrom() throws IOException {
+        byte[] classFile = classFile();
+        ClassNode node = new ClassNode();
+        new ClassReader(classFile).accept(node, 0);
+        Map<String, String> exceptions = ExceptionAnalyzer.exceptionClassNames(classFile, node,
+                new HashSet<>(CandidateScanner.scan(classFile)), Throwing.class.getClassLoader());
+
+        assertEquals("java/lang/IllegalStateException", exceptions.get("throwNew()V"));
+        assertEquals("java/lang/IllegalStateException", exceptions.get("rethrowLocal()V"));
+        assertEquals("java/lang/IllegalArgumentException", exceptions.get("throwField()V"));
+        assertEquals("java/lang/UnsupportedOperationException", exceptions.get("throwResult()V"));
+        assertEquals("java/lang/ArithmeticException", exceptions.get("rethrowCaught(I)I"));
+        assertEquals("java/lang/IndexOutOfBoundsException", exceptions.get("callsHelper()V"));
+        assertEquals("java/lang/IndexOutOfBoundsException", exceptions.get("callsCallsHelper()V"));
+        assertEquals("java/io/IOException", exceptions.get("declared()V"));
+        // A finally block only rethrows a Throwable, which is not worth injecting
+        assertFalse(exceptions.containsKey("onlyFinally()V"));
+        // Exceptions that are caught never escape, and checked ones are never injected without a throws clause
+        assertFalse(exceptions.containsKey("catchesHelper()V"));
+        assertFalse(exceptions.containsKey("catchesOwn()V"));
+        assertEquals("java/io/IOException", exceptions.get("throwsChecked()V"));
+        // A handler for another type does not stop an exception escaping
+        assertEquals("java/lang/IndexOutOfBoundsException", exceptions.get("catchesOtherType()V"));
+
+        // The same class file is answered from the cache
+        assertEquals(exceptions, ExceptionAnalyzer.exceptionClassNames(classFile, node,
+                new HashSet<>(CandidateScanner.scan(classFile)), Throwing.class.getClassLoader()));
+    }
+}
+
+// A top level class, because nested classes are never instrumented
+@SuppressWarnings("unused")
+class Throwing {
+    private static final IllegalArgumentException FIELD = new IllegalArgumentException();
+    private static boolean fail;
+
+    void throwNew() {
+        if (fail)
+            throw new IllegalStateException();
+    }
+
+    void rethrowLocal() {
+        IllegalStateException e = new IllegalStateException();
+        if (fail)
+            throw e;
+    }
+
+    void throwField() {
+        if (fail)
+            throw FIELD;
+    }
+
+    void throwResult() {
+        if (fail)
+            throw unsupported();
+    }
+
+    private static UnsupportedOperationException unsupported() {
+        return new UnsupportedOperationException();
+    }
+
+    int rethrowCaught(int divisor) {
+        try {
+            return 1 / divisor;
+        } catch (ArithmeticException e) {
+            fail = true;
+            throw e;
+        }
+    }
+
+    static void callsHelper() {
+        check();
+    }
+
+    void callsCallsHelper() {
+        callsHelper();
+    }
+
+    private static void check() {
+        if (fail)
+            throw new IndexOutOfBoundsException();
+    }
+
+    void declared() throws java.io.IOException {
+    }
+
+    void catchesHelper() {
+        try {
+            throwsChecked();
+        } catch (java.io.IOException e) {
+            fail = false;
+        }
+    }
+
+    void catchesOwn() {
+        try {
+            if (fail)
+                throw new java.io.IOException();
+        } catch (java.io.IOException e) {
+            fail = false;
+        }
+    }
+
+    private static void throwsChecked() throws java.io.IOException {
+        if (fail)
+            throw new java.io.IOException();
+    }
+
+    void catchesOtherType() {
+        try {
+            check();
+        } catch (IllegalArgumentException e) {
+            fail = false;
+        }
+    }
+
+    void onlyFinally() {
+        try {
+            neverThrows();
+        } finally {
+            fail = false;
+        }
+    }
+
+    void neverThrows() {
+        fail = false;
+    }
+}
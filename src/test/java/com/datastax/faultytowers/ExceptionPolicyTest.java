@@ -0,0 +1,91 @@
+package com.datastax.faultytowers;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ExceptionPolicyTest {
+    private static final ClassLoader LOADER = ExceptionPolicyTest.class.getClassLoader();
+
+    private static InjectionSite site(String method, Class<?> exceptionClass, ExceptionPolicy policy) {
+        InjectionSite site = InjectionSites.register("policy/Test", method, "()V",
+                exceptionClass.getName().replace('.', '/'));
+        site.setExceptionPolicy(policy);
+        return site;
+    }
+
+    @Test
+    public void fullBuildsANewExceptionWithAStackTrace() throws Throwable {
+        InjectionSite site = site("full", IllegalStateException.class, ExceptionPolicy.FULL);
+        Throwable first = site.newException(LOADER);
+        assertNotSame(first, site.newException(LOADER));
+        assertTrue(first.getStackTrace().length > 0);
+    }
+
+    @Test
+    public void stacklessSkipsTheStackTraceWhenTheClassAllowsIt() throws Throwable {
+        InjectionSite site = site("stackless", StacklessCapableException.class, ExceptionPolicy.STACKLESS);
+        Throwable first = site.newException(LOADER);
+        assertNotSame(first, site.newException(LOADER));
+        assertEquals(0, first.getStackTrace().length);
+        // Suppression is disabled too
+        first.addSuppressed(new RuntimeException());
+        assertEquals(0, first.getSuppressed().length);
+    }
+
+    @Test
+    public void stacklessKeepsTheStackTraceWhenTheClassDoesNotAllowIt() throws Throwable {
+        InjectionSite site = site("stacklessFallback", IllegalStateException.class, ExceptionPolicy.STACKLESS);
+        assertTrue(site.newException(LOADER).getStackTrace().length > 0);
+    }
+
+    @Test
+    public void cachedRethrowsOneStacklessException() throws Throwable {
+        InjectionSite site = site("cached", IllegalStateException.class, ExceptionPolicy.CACHED);
+        Throwable first = site.newException(LOADER);
+        assertSame(first, site.newException(LOADER));
+        assertEquals(0, first.getStackTrace().length);
+    }
+
+    @Test
+    public void onceRethrowsTheFirstException() throws Throwable {
+        InjectionSite site = site("once", IllegalStateException.class, ExceptionPolicy.ONCE);
+        Throwable first = site.newException(LOADER);
+        assertSame(first, site.newException(LOADER));
+        assertTrue(first.getStackTrace().length > 0);
+    }
+
+    @Test
+    public void changingThePolicyDropsTheCachedException() throws Throwable {
+        InjectionSite site = site("changed", IllegalStateException.class, ExceptionPolicy.CACHED);
+        Throwable cached = site.newException(LOADER);
+        site.setExceptionPolicy(ExceptionPolicy.ONCE);
+        assertNotSame(cached, site.newException(LOADER));
+    }
+
+    @Test
+    public void parseIgnoresCase() {
+        assertEquals(ExceptionPolicy.STACKLESS, ExceptionPolicy.parse("Stackless"));
+        assertEquals("once", ExceptionPolicy.ONCE.toString());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void parseRejectsUnknownPolicies() {
+        ExceptionPolicy.parse("lazy");
+    }
+
+    // Public so that the agent can call its public constructor
+    public static class StacklessCapableException extends RuntimeException {
+        public StacklessCapableException(String message) {
+            super(message);
+        }
+
+        protected StacklessCapableException(String message, Throwable cause, boolean enableSuppression,
+                                            boolean writableStackTrace) {
+            super(message, cause, enableSuppression, writableStackTrace);
+        }
+    }
+}
@@ -14,7 +14,7 @@ public class ExceptionThrowerTestIntegrationTest {
     @BeforeClass
     public static void setUp() {
         System.out.println("Setting up");
-        ExceptionThrower.THROW_LIMIT = 10;
+        ExceptionThrower.setThrowLimit(10);
         FaultyTowers.installAgent(THROW_PROBABILITY);
     }
 
@@ -87,8 +87,8 @@ public class ExceptionThrowerTestIntegrationTest {
 
     @Test
     public void throwLimitCapsMaxNumberOfThrows() {
-        long oldThrowLimit = ExceptionThrower.THROW_LIMIT;
-        ExceptionThrower.THROW_LIMIT = 0;
+        long oldThrowLimit = ExceptionThrower.getThrowLimit();
+        ExceptionThrower.setThrowLimit(0);
         boolean caughtCheckedException = false;
         try {
             Utils.throwGuardedCheckedException();
@@ -97,6 +97,21 @@ public class ExceptionThrowerTestIntegrationTest {
         } finally {
             assertFalse("Failed to throw CheckedException", caughtCheckedException);
         }
-        ExceptionThrower.THROW_LIMIT = oldThrowLimit;
+        ExceptionThrower.setThrowLimit(oldThrowLimit);
+    }
+
+    @Test
+    public void zeroProbabilityDisarmsSite() {
+        String site = "com.datastax.faultytowers.Utils.throwGuardedUncheckException";
+        ExceptionThrower.setProbability(site, 0.0);
+        boolean caughtUncheckedException = false;
+        try {
+            Utils.throwGuardedUncheckException();
+        } catch (Utils.UncheckedException e) {
+            caughtUncheckedException = true;
+        } finally {
+            ExceptionThrower.setProbability(site, 1.0);
+            assertFalse("Threw UncheckedException from a disarmed site", caughtUncheckedException);
+        }
     }
 }
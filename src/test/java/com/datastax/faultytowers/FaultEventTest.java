@@ -0,0 +1,60 @@
+package com.datastax.faultytowers;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class FaultEventTest {
+
+    @Test
+    public void faultsAreRecordedWithTheirSiteAndThread() throws IOException {
+        InjectionSite site = InjectionSites.register("a/Jfr", "read", "(I)V", "java/io/IOException");
+        Path path = Files.createTempFile("faulty", ".jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable(FaultEvent.NAME);
+            recording.start();
+            FaultEvent.emit(site, 3, -1);
+            FaultEvent.emit(site, 4, 5_000_000);
+            recording.stop();
+            recording.dump(path);
+        }
+
+        List<RecordedEvent> events = RecordingFile.readAllEvents(path);
+        assertEquals(2, events.size());
+        RecordedEvent thrown = events.get(0);
+        assertEquals(site.getName(), thrown.getString("site"));
+        assertEquals("java/io/IOException", thrown.getString("exception"));
+        assertEquals(3, thrown.getLong("ordinal"));
+        assertEquals(Thread.currentThread().getId(), thrown.getThread().getJavaThreadId());
+        RecordedEvent delayed = events.get(1);
+        assertNull(delayed.getString("exception"));
+        assertEquals(4, delayed.getLong("ordinal"));
+        assertEquals(5_000_000, delayed.getDuration("delay").toNanos());
+        Files.delete(path);
+    }
+
+    @Test
+    public void nothingIsRecordedWhenDisabled() throws IOException {
+        InjectionSite site = InjectionSites.register("a/Jfr", "write", "()V", "java/io/IOException");
+        Path path = Files.createTempFile("faulty", ".jfr");
+        try (Recording recording = new Recording()) {
+            recording.disable(FaultEvent.NAME);
+            recording.start();
+            FaultEvent.emit(site, 1, -1);
+            recording.stop();
+            recording.dump(path);
+        }
+        assertEquals(0, RecordingFile.readAllEvents(path).stream()
+                .filter(e -> e.getEventType().getName().equals(FaultEvent.NAME)).count());
+        Files.delete(path);
+    }
+}
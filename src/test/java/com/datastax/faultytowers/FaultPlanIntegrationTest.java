@@ -0,0 +1,91 @@
+package com.datastax.faultytowers;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+public class FaultPlanIntegrationTest {
+
+    private static long oldThrowLimit;
+    private static Path plan;
+
+    @BeforeClass
+    public static void setUp() throws IOException {
+        oldThrowLimit = ExceptionThrower.getThrowLimit();
+        plan = Files.createTempFile("faulty", ".plan");
+        Files.write(plan, Arrays.asList(
+                "mode=runtime",
+                "limit=1",
+                "include com.datastax.faultytowers.Planned",
+                "site com.datastax.faultytowers.Planned.limited limit=3",
+                "site com.datastax.faultytowers.Planned.disarmed probability=0"));
+        FaultyTowers.installAgent(AgentOptions.LOADED + "=false," + AgentOptions.PLAN + "=" + plan);
+    }
+
+    @AfterClass
+    public static void tearDown() throws IOException {
+        FaultyTowers.removeAgent();
+        ExceptionThrower.setThrowLimit(oldThrowLimit);
+        Files.delete(plan);
+    }
+
+    @Test
+    public void sitesFollowThePlan() {
+        assertEquals(1, Planned.throwsOf(Planned::once));
+        assertEquals(3, Planned.throwsOf(Planned::limited));
+        assertEquals(0, Planned.throwsOf(Planned::disarmed));
+        assertEquals(0, Planned.throwsOf(NotPlanned::excluded));
+    }
+}
+
+interface PlannedCall {
+    void call() throws Utils.CheckedException;
+}
+
+// Top level classes, because nested classes are never instrumented
+class Planned {
+    static int throwsOf(PlannedCall call) {
+        int throwCount = 0;
+        for (int i = 0; i < 10; i++) {
+            try {
+                call.call();
+            } catch (Utils.CheckedException e) {
+                throwCount++;
+            }
+        }
+        return throwCount;
+    }
+
+    static void once() throws Utils.CheckedException {
+        // noinspection ConstantConditions
+        if (false)
+            throw new Utils.CheckedException();
+    }
+
+    static void limited() throws Utils.CheckedException {
+        // noinspection ConstantConditions
+        if (false)
+            throw new Utils.CheckedException();
+    }
+
+    static void disarmed() throws Utils.CheckedException {
+        // noinspection ConstantConditions
+        if (false)
+            throw new Utils.CheckedException();
+    }
+}
+
+class NotPlanned {
+    static void excluded() throws Utils.CheckedException {
+        // noinspection ConstantConditions
+        if (false)
+            throw new Utils.CheckedException();
+    }
+}
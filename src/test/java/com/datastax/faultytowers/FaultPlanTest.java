@@ -0,0 +1,99 @@
+package com.datastax.faultytowers;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FaultPlanTest {
+
+    private static FaultPlan load(String... lines) throws IOException {
+        Path path = Files.createTempFile("faulty", ".plan");
+        try {
+            Files.write(path, Arrays.asList(lines));
+            return FaultPlan.load(path);
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    @Test
+    public void sitesTakeEachSettingFromTheLongestPrefixThatSetsIt() throws IOException {
+        FaultPlan plan = load(
+                "# A comment",
+                "",
+                "site org.foo probability=0.5 exceptions=stackless",
+                "site org.foo.Bar limit=3 latency=fixed:5ms",
+                "site org/foo/Bar.read(I)V probability=0.25 latency=none",
+                "site org.foo.Bar.write exceptions=cached");
+        assertEquals(4, plan.size());
+
+        SiteRule read = plan.ruleFor("org/foo/Bar.read(I)V");
+        assertEquals(0.25, read.getProbability(1.0), 0.0);
+        assertEquals(3, read.getThrowLimit());
+        assertEquals(ExceptionPolicy.STACKLESS, read.getExceptionPolicy(ExceptionPolicy.FULL));
+        assertNull(read.getLatencyFault(LatencyFault.parse("fixed:1ms")));
+
+        SiteRule write = plan.ruleFor("org/foo/Bar.write()V");
+        assertEquals(0.5, write.getProbability(1.0), 0.0);
+        assertEquals(ExceptionPolicy.CACHED, write.getExceptionPolicy(ExceptionPolicy.FULL));
+        assertEquals(LatencyFault.parse("fixed:5ms").toString(), write.getLatencyFault(null).toString());
+
+        SiteRule other = plan.ruleFor("org/foo/Baz.read(I)V");
+        assertEquals(0.5, other.getProbability(1.0), 0.0);
+        assertEquals(InjectionSite.GLOBAL_THROW_LIMIT, other.getThrowLimit());
+
+        SiteRule unmatched = plan.ruleFor("org/bar/Baz.read(I)V");
+        assertEquals(1.0, unmatched.getProbability(1.0), 0.0);
+        assertEquals(ExceptionPolicy.FULL, unmatched.getExceptionPolicy(ExceptionPolicy.FULL));
+    }
+
+    @Test
+    public void optionsAndClassFilterAreLoaded() throws IOException {
+        FaultPlan plan = load("seed=42", "mode = runtime", "include org.foo", "exclude org.foo.internal");
+        assertEquals("{seed=42, mode=runtime}", plan.getOptions().toString());
+        ClassNameFilter filter = plan.getClassFilter();
+        assertTrue(filter.accepts("org/foo/Bar"));
+        assertFalse(filter.accepts("org/foo/internal/Bar"));
+        assertFalse(filter.accepts("org/bar/Baz"));
+
+        assertNull(load("seed=42").getClassFilter());
+    }
+
+    @Test
+    public void nodeFilesFromThePlanAreSuffixedToo() throws IOException {
+        Path path = Files.createTempFile("faulty", ".plan");
+        try {
+            Files.write(path, Arrays.asList("record=/tmp/plan.replay", "ndjson=/tmp/plan.ndjson"));
+            AgentOptions options = AgentOptions.parse(AgentOptions.PLAN + "=" + path + ","
+                    + AgentOptions.REPLAY + "=/tmp/old.replay," + AgentOptions.NODE + "=2");
+            assertEquals("/tmp/plan.replay.2", options.getRecordPath().toString());
+            assertEquals("/tmp/plan.ndjson.2", options.getNdjsonPath().toString());
+            assertEquals("/tmp/old.replay.2", options.getReplayPath().toString());
+            assertEquals(AgentOptions.DEFAULT_LOG + ".2", options.getEventLogPath().toString());
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    @Test
+    public void malformedLinesAreReportedWithTheirLineNumber() throws IOException {
+        for (String line : new String[] {"site org.foo", "site org.foo probability=2", "site org.foo color=red",
+                "include", "unknown"}) {
+            try {
+                load("seed=42", line);
+                fail("Accepted '" + line + "'");
+            } catch (IOException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains(":2: "));
+            }
+        }
+    }
+}
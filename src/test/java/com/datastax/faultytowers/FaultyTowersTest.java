@@ -2,8 +2,12 @@ package com.datastax.faultytowers;
 
 import org.junit.Test;
 
+import java.util.List;
+
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 public class FaultyTowersTest {
 
@@ -36,4 +40,114 @@ public class FaultyTowersTest {
         FaultyTowers faultyTowers = FaultyTowers.buildFaultyTowers(args);
         assertNull(faultyTowers);
     }
+
+    @Test
+    public void testEventLogPathIsPassedToAgent() {
+        String[] args = new String[] {"-p", "0.5", "-P", "1234", "--log", "/tmp/events"};
+        FaultyTowers faultyTowers = FaultyTowers.buildFaultyTowers(args);
+        assertEquals(faultyTowers.getEventLogPath(), "/tmp/events");
+        assertEquals(faultyTowers.getAgentArgs(), "probability=0.5,log=/tmp/events");
+    }
+
+    @Test
+    public void testReplayOptionsArePassedToAgent() {
+        String[] args = new String[] {"-P", "1234", "--seed", "42", "--replay", "/tmp/replay"};
+        FaultyTowers faultyTowers = FaultyTowers.buildFaultyTowers(args);
+        assertEquals(faultyTowers.getAgentArgs(), "probability=1.0,seed=42,replay=/tmp/replay");
+    }
+
+    @Test
+    public void testParsingControlCommands() {
+        String[] args = new String[] {"-P", "1234", "--control", "-p", "0.1", "--limit", "5",
+                "--site", "org.foo.Bar=0.5", "--disarm", "org.foo"};
+        FaultyTowers faultyTowers = FaultyTowers.buildFaultyTowers(args);
+        assertTrue(faultyTowers.isControlOnly());
+        ControlCommands commands = faultyTowers.getControlCommands();
+        assertEquals(Long.valueOf(5), commands.getThrowLimit());
+        assertEquals(0.1, commands.getProbabilities().get(""), 0.0);
+        assertEquals(0.5, commands.getProbabilities().get("org.foo.Bar"), 0.0);
+        assertFalse(commands.isEmpty());
+    }
+
+    @Test
+    public void testParsingExceptionPolicies() {
+        String[] args = new String[] {"-P", "1234", "--exceptions", "stackless", "--exceptions", "org.foo=cached"};
+        FaultyTowers faultyTowers = FaultyTowers.buildFaultyTowers(args);
+        assertTrue(faultyTowers.getAgentArgs().contains("exceptions=stackless"));
+        assertEquals(ExceptionPolicy.CACHED, faultyTowers.getControlCommands().getExceptionPolicies().get("org.foo"));
+    }
+
+    @Test
+    public void testParsingLatencies() {
+        String[] args = new String[] {"-P", "1234", "--latency", "fixed:5ms", "--latency", "org.foo=none"};
+        FaultyTowers faultyTowers = FaultyTowers.buildFaultyTowers(args);
+        assertTrue(faultyTowers.getAgentArgs().contains("latency=fixed:5000000ns:park"));
+        assertEquals("none", faultyTowers.getControlCommands().getLatencies().get("org.foo"));
+        assertNull(FaultyTowers.buildFaultyTowers(new String[] {"-P", "1234", "--latency", "fixed"}));
+    }
+
+    @Test
+    public void testParsingMetricsOptions() {
+        String[] args = new String[] {"-P", "1234", "--metrics", "--recovery", "--snapshot-file", "/tmp/metrics.tsv",
+                "--snapshot-interval", "5s"};
+        FaultyTowers faultyTowers = FaultyTowers.buildFaultyTowers(args);
+        assertEquals("probability=1.0,snapshot=/tmp/metrics.tsv,snapshotInterval=5s,metrics=true,recovery=true",
+                faultyTowers.getAgentArgs());
+    }
+
+    @Test
+    public void testParsingEntryPoints() {
+        String[] args = new String[] {"-P", "1234", "--entry", "org.foo.Handler.handle", "--entry", " org.foo.Compaction "};
+        FaultyTowers faultyTowers = FaultyTowers.buildFaultyTowers(args);
+        assertEquals("probability=1.0,entry=org.foo.Handler.handle|org.foo.Compaction", faultyTowers.getAgentArgs());
+    }
+
+    @Test
+    public void testParsingThreadFilter() {
+        String[] args = new String[] {"-P", "1234", "--threads", "ReadStage-*", "--threads", " group:compaction "};
+        FaultyTowers faultyTowers = FaultyTowers.buildFaultyTowers(args);
+        assertEquals("probability=1.0,threads=ReadStage-*|group:compaction", faultyTowers.getAgentArgs());
+
+        args = new String[] {"-P", "1234", "--control", "--threads", "all"};
+        faultyTowers = FaultyTowers.buildFaultyTowers(args);
+        assertEquals("all", faultyTowers.getControlCommands().getThreadFilter());
+        assertFalse(faultyTowers.getControlCommands().isEmpty());
+    }
+
+    @Test
+    public void testParsingBudgets() {
+        String[] args = new String[] {"-P", "1234", "--budget", "100/1s", "--per-site-budget", "1/10m", "--delay", "30s"};
+        FaultyTowers faultyTowers = FaultyTowers.buildFaultyTowers(args);
+        assertEquals("probability=1.0,budget=100/1000000000ns,siteBudget=1/600000000000ns,delay=30000000000ns",
+                faultyTowers.getAgentArgs());
+        assertNull(FaultyTowers.buildFaultyTowers(new String[] {"-P", "1234", "--budget", "100"}));
+    }
+
+    @Test
+    public void testParsingCluster() {
+        String[] args = new String[] {"-P", "1234,5678", "--seed", "42", "--record", "/tmp/replay"};
+        FaultyTowers faultyTowers = FaultyTowers.buildFaultyTowers(args);
+        assertTrue(faultyTowers.isCluster());
+        assertEquals(List.of("1234", "5678"), faultyTowers.getPids());
+        assertEquals("probability=1.0,seed=42,record=/tmp/replay,node=1", faultyTowers.getAgentArgs(1));
+
+        // Every JVM gets the same seed even if none is given
+        args = new String[] {"--main", "*CassandraDaemon"};
+        faultyTowers = FaultyTowers.buildFaultyTowers(args);
+        assertTrue(faultyTowers.isCluster());
+        assertEquals("*CassandraDaemon", faultyTowers.getMainClass());
+        assertTrue(faultyTowers.getAgentArgs().contains("seed="));
+        assertEquals(faultyTowers.getAgentArgs() + ",node=0", faultyTowers.getAgentArgs(0));
+        assertEquals(faultyTowers.getAgentArgs() + ",node=1", faultyTowers.getAgentArgs(1));
+
+        faultyTowers = FaultyTowers.buildFaultyTowers(new String[] {"-P", "1234"});
+        assertFalse(faultyTowers.isCluster());
+        assertEquals(faultyTowers.getAgentArgs(), faultyTowers.getAgentArgs(0));
+    }
+
+    @Test
+    public void testMalformedSiteProbability() {
+        String[] args = new String[] {"-P", "1234", "--control", "--site", "org.foo.Bar"};
+        assertNull(FaultyTowers.buildFaultyTowers(args));
+    }
 }
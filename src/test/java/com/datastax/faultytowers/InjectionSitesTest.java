@@ -0,0 +1,46 @@
+package com.datastax.faultytowers;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+
+public class InjectionSitesTest {
+
+    @Test
+    public void registeringTheSameMethodTwiceReturnsTheSameSite() {
+        InjectionSite first = InjectionSites.register("a/B", "foo", "()V", "java/io/IOException");
+        InjectionSite second = InjectionSites.register("a/B", "foo", "()V", "java/io/IOException");
+        assertSame(first, second);
+        assertSame(first, InjectionSites.get(first.getId()));
+    }
+
+    @Test
+    public void overloadedMethodsGetDifferentSites() {
+        InjectionSite noArgs = InjectionSites.register("a/C", "foo", "()V", "java/io/IOException");
+        InjectionSite oneArg = InjectionSites.register("a/C", "foo", "(I)V", "java/io/IOException");
+        assertNotEquals(noArgs.getId(), oneArg.getId());
+    }
+
+    @Test
+    public void throwCountStopsAtLimit() {
+        InjectionSite site = InjectionSites.register("a/D", "foo", "()V", "java/io/IOException");
+        assertEquals(1, InjectionSites.countThrow(site.getId(), 2));
+        assertEquals(2, InjectionSites.countThrow(site.getId(), 2));
+        assertEquals(-1, InjectionSites.countThrow(site.getId(), 2));
+        assertEquals(2, InjectionSites.getThrowCount(site.getId()));
+    }
+
+    @Test
+    public void sitesKeepTheirCountersAcrossChunks() {
+        InjectionSite first = InjectionSites.register("a/E", "first", "()V", "java/io/IOException");
+        for (int i = 0; i < 3000; i++)
+            InjectionSites.register("a/E", "m" + i, "()V", "java/io/IOException");
+        InjectionSites.countThrow(first.getId(), 10);
+        InjectionSite last = InjectionSites.register("a/E", "m2999", "()V", "java/io/IOException");
+        InjectionSites.countThrow(last.getId(), 10);
+        assertEquals(1, InjectionSites.getThrowCount(first.getId()));
+        assertEquals(1, InjectionSites.getThrowCount(last.getId()));
+    }
+}
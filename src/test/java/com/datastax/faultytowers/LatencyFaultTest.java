@@ -0,0 +1,81 @@
+package com.datastax.faultytowers;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyFaultTest {
+
+    @Test
+    public void parsesDistributionsDurationsAndWaits() {
+        LatencyFault fixed = LatencyFault.parse("fixed:5ms");
+        assertEquals(LatencyFault.Distribution.FIXED, fixed.getDistribution());
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(5), fixed.getNanos());
+        assertFalse(fixed.isSpin());
+
+        LatencyFault pareto = LatencyFault.parse("pareto:200us:2.5:spin");
+        assertEquals(LatencyFault.Distribution.PARETO, pareto.getDistribution());
+        assertEquals(TimeUnit.MICROSECONDS.toNanos(200), pareto.getNanos());
+        assertTrue(pareto.isSpin());
+
+        // Without a unit the duration is in milliseconds
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(3), LatencyFault.parse("exponential:3").getNanos());
+    }
+
+    @Test
+    public void toStringCanBeParsedAgain() {
+        LatencyFault fault = LatencyFault.parse("pareto:1ms:1.5:spin");
+        LatencyFault parsed = LatencyFault.parse(fault.toString());
+        assertEquals(fault.toString(), parsed.toString());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownDistributions() {
+        LatencyFault.parse("normal:5ms");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsAShapeForFixedDelays() {
+        LatencyFault.parse("fixed:5ms:1.5");
+    }
+
+    @Test
+    public void paretoDelaysAreNeverBelowTheMinimum() {
+        LatencyFault fault = LatencyFault.parse("pareto:1ms:1.5");
+        for (int i = 0; i < 10000; i++) {
+            long nanos = fault.sampleNanos();
+            assertTrue(nanos >= fault.getNanos() && nanos <= LatencyFault.MAX_DELAY_NANOS);
+        }
+    }
+
+    @Test
+    public void exponentialDelaysHaveTheGivenMean() {
+        LatencyFault fault = LatencyFault.parse("exponential:1ms");
+        int samples = 100000;
+        double total = 0;
+        for (int i = 0; i < samples; i++)
+            total += fault.sampleNanos();
+        assertEquals(fault.getNanos(), total / samples, fault.getNanos() * 0.05);
+    }
+
+    @Test
+    public void injectWaitsAtLeastTheDelay() {
+        for (String spec : new String[] {"fixed:2ms:park", "fixed:2ms:spin"}) {
+            LatencyFault fault = LatencyFault.parse(spec);
+            assertTrue(spec, fault.inject() >= fault.getNanos());
+        }
+    }
+
+    @Test
+    public void sitesRecordTheirDelays() {
+        InjectionSite site = InjectionSites.register("latency/Test", "delayed", "()V", "java/io/IOException");
+        site.injectDelay(LatencyFault.parse("fixed:1ms"));
+        site.injectDelay(LatencyFault.parse("fixed:1ms"));
+        assertEquals(2, site.getDelays().getCount());
+        assertTrue(site.getDelays().getValueAtPercentile(50) >= TimeUnit.MILLISECONDS.toNanos(1) * 0.97);
+    }
+}
@@ -0,0 +1,46 @@
+package com.datastax.faultytowers;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void everyValueFallsInTheBucketStartingAtOrBelowIt() {
+        long[] values = {0, 1, 31, 32, 33, 63, 64, 1000, 123456789L, Long.MAX_VALUE};
+        for (long value : values) {
+            int index = LatencyHistogram.index(value);
+            assertTrue(value + " below its bucket", LatencyHistogram.lowestValue(index) <= value);
+            if (value < Long.MAX_VALUE)
+                assertTrue(value + " above its bucket", index + 1 >= LatencyHistogram.index(Long.MAX_VALUE)
+                        || LatencyHistogram.lowestValue(index + 1) > value);
+        }
+    }
+
+    @Test
+    public void bucketsAreWithinThreePercent() {
+        for (long value = 32; value > 0 && value < Long.MAX_VALUE / 3; value = value * 3 + 7) {
+            long lowest = LatencyHistogram.lowestValue(LatencyHistogram.index(value));
+            assertTrue(value + " in bucket from " + lowest, value - lowest <= value * 0.0315);
+        }
+    }
+
+    @Test
+    public void percentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long i = 1; i <= 1000; i++)
+            histogram.record(i * 1000);
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1000_000, histogram.getMaxNanos());
+        assertEquals(500_000, histogram.getValueAtPercentile(50), 500_000 * 0.0315);
+        assertEquals(990_000, histogram.getValueAtPercentile(99), 990_000 * 0.0315);
+        assertEquals(1000_000, histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void emptyHistogramHasNoPercentiles() {
+        assertEquals(0, new LatencyHistogram().getValueAtPercentile(99));
+    }
+}
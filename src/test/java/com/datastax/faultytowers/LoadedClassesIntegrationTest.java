@@ -0,0 +1,40 @@
+package com.datastax.faultytowers;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LoadedClassesIntegrationTest {
+
+    private static boolean throwsCheckedException() {
+        try {
+            Preloaded.throwGuardedCheckedException();
+            return false;
+        } catch (Utils.CheckedException e) {
+            return true;
+        }
+    }
+
+    @Test
+    public void classesLoadedBeforeAttachAreInstrumented() {
+        // Loads the class before the agent is attached
+        assertFalse("Threw CheckedException before the agent was installed", throwsCheckedException());
+
+        FaultyTowers.installAgent(1.0);
+        try {
+            assertTrue("Failed to throw CheckedException", throwsCheckedException());
+        } finally {
+            FaultyTowers.removeAgent();
+        }
+    }
+}
+
+// A top level class, because nested classes are never instrumented
+class Preloaded {
+    static void throwGuardedCheckedException() throws Utils.CheckedException {
+        // noinspection ConstantConditions
+        if (false)
+            throw new Utils.CheckedException();
+    }
+}
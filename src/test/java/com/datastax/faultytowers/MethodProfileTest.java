@@ -0,0 +1,71 @@
+package com.datastax.faultytowers;
+
+import org.junit.Test;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MethodProfileTest {
+
+    @Test
+    public void coverageLinesSelectHotAndColdMethods() throws IOException {
+        Path path = Files.createTempFile("faulty", ".coverage");
+        Files.write(path, ("src/main/java/a/b/Bar.java:10:100\n"
+                + "src/main/java/a/b/Bar.java:20:1\n"
+                + "src/main/java/a/b/Bar.java:30:0\n").getBytes(StandardCharsets.UTF_8));
+
+        MethodProfile hot = MethodProfile.load(path, true, 0.5);
+        assertEquals(1, hot.size());
+        assertTrue(hot.needsLineNumbers());
+        assertTrue(hot.contains("a/b/Bar", "hot()V", "Bar.java", 9, 12));
+        assertFalse(hot.contains("a/b/Bar", "cold()V", "Bar.java", 19, 22));
+        // Same file name in another package
+        assertFalse(hot.contains("a/c/Bar", "hot()V", "Bar.java", 9, 12));
+
+        MethodProfile cold = MethodProfile.load(path, false, 0.5);
+        assertFalse(cold.contains("a/b/Bar", "hot()V", "Bar.java", 9, 12));
+        assertTrue(cold.contains("a/b/Bar", "cold()V", "Bar.java", 19, 22));
+        // Never executed lines are never selected
+        assertFalse(cold.contains("a/b/Bar", "dead()V", "Bar.java", 29, 32));
+        Files.delete(path);
+    }
+
+    @Test
+    public void jacocoExecSelectsCoveredClasses() throws IOException {
+        Path path = Files.createTempFile("faulty", ".exec");
+        try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(path))) {
+            out.writeByte(0x01);
+            out.writeChar(0xC0C0);
+            out.writeChar(0x1007);
+            out.writeByte(0x10);
+            out.writeUTF("session");
+            out.writeLong(0);
+            out.writeLong(0);
+            writeExecutionData(out, "a/Covered", 0b1011);
+            writeExecutionData(out, "a/Uncovered", 0);
+        }
+
+        MethodProfile profile = MethodProfile.load(path, true, 1.0);
+        assertEquals(1, profile.size());
+        assertFalse(profile.needsLineNumbers());
+        assertTrue(profile.contains("a/Covered", "read()V", null, -1, -1));
+        assertFalse(profile.contains("a/Uncovered", "read()V", null, -1, -1));
+        Files.delete(path);
+    }
+
+    private static void writeExecutionData(DataOutputStream out, String className, int probes) throws IOException {
+        out.writeByte(0x11);
+        out.writeLong(className.hashCode());
+        out.writeUTF(className);
+        // Eight probes as a one byte variable length count and one byte of bits
+        out.writeByte(8);
+        out.writeByte(probes);
+    }
+}
@@ -0,0 +1,93 @@
+package com.datastax.faultytowers;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+// An integration test because the transformer needs the JDK's ASM to be exported
+public class MetricsIntegrationTest {
+    private static final String CLASS_NAME = "com.datastax.faultytowers.Recovering";
+    private static final String SITE = "com/datastax/faultytowers/Recovering.read()I";
+
+    @After
+    public void tearDown() {
+        ExceptionThrower.enableMetrics(false, false);
+    }
+
+    // Defines Recovering from the transformed bytes rather than delegating to the test class loader
+    private static Class<?> transformedClass(byte[] bytes) throws ClassNotFoundException {
+        return new ClassLoader(MetricsIntegrationTest.class.getClassLoader()) {
+            @Override
+            protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+                if (name.equals(CLASS_NAME))
+                    return defineClass(name, bytes, 0, bytes.length);
+                return super.loadClass(name, resolve);
+            }
+        }.loadClass(CLASS_NAME);
+    }
+
+    @Test
+    public void invocationsThrowsAndRecoveriesAreCounted() throws Exception {
+        byte[] classFile;
+        try (InputStream in = Recovering.class.getResourceAsStream("Recovering.class")) {
+            classFile = in.readAllBytes();
+        }
+
+        ExceptionThrower.enableMetrics(true, true);
+        ExceptionThrower thrower = new ExceptionThrower(1.0, 42, null, true);
+        byte[] transformed = thrower.transform(getClass().getClassLoader(), CLASS_NAME.replace('.', '/'), null, null,
+                classFile);
+        assertNotNull(transformed);
+
+        Method read = transformedClass(transformed).getDeclaredMethod("read");
+        // A class from another loader is in another runtime package
+        read.setAccessible(true);
+        long oldThrowLimit = ExceptionThrower.getThrowLimit();
+        ExceptionThrower.setThrowLimit(1);
+        try {
+            try {
+                read.invoke(null);
+                fail("Failed to throw CheckedException");
+            } catch (InvocationTargetException e) {
+                assertTrue(e.getCause() instanceof Utils.CheckedException);
+            }
+            // The retry succeeds, as the site has used up its throw limit
+            assertEquals(1, read.invoke(null));
+            assertEquals(1, read.invoke(null));
+        } finally {
+            ExceptionThrower.setThrowLimit(oldThrowLimit);
+        }
+
+        InjectionSite site = InjectionSites.get(SITE);
+        assertEquals(3, site.getInvocations());
+        assertEquals(1, InjectionSites.getThrowCount(site.getId()));
+        assertEquals(1, site.getRecoveries().getCount());
+
+        Path snapshot = Files.createTempFile("faulty-metrics", ".tsv");
+        MetricsSnapshot.write(snapshot);
+        List<String> lines = Files.readAllLines(snapshot);
+        assertEquals(MetricsSnapshot.HEADER, lines.get(1));
+        assertTrue(lines.stream().anyMatch(line -> line.startsWith(SITE + "\t3\t")));
+    }
+}
+
+// A top level class, because nested classes are never instrumented
+class Recovering {
+    static int read() throws Utils.CheckedException {
+        // noinspection ConstantConditions
+        if (false)
+            throw new Utils.CheckedException();
+        return 1;
+    }
+}
@@ -0,0 +1,51 @@
+package com.datastax.faultytowers;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class NdjsonSinkTest {
+
+    @Test
+    public void eventsAreWrittenAsJsonLines() throws IOException {
+        InjectionSite site = InjectionSites.register("a/Json", "read", "(I)V", "java/io/IOException");
+        Path path = Files.createTempFile("faulty", ".ndjson");
+        NdjsonSink sink = new NdjsonSink(path);
+        sink.accept(EventLog.THROW, 1000, 7, site.getId(), 3, 0, null);
+        sink.accept(EventLog.DELAY, 1001, 8, site.getId(), 4, 5000000, null);
+        sink.accept(EventLog.TRANSFORM, 1002, 9, -1, 0, 0, "a/\"Quoted\"\n");
+        sink.close();
+
+        List<String> lines = Files.readAllLines(path, StandardCharsets.UTF_8);
+        assertEquals(3, lines.size());
+        assertEquals("{\"time\":1000,\"type\":\"throw\",\"thread\":7,\"site\":\"" + site.getName()
+                + "\",\"exception\":\"java/io/IOException\",\"ordinal\":3}", lines.get(0));
+        assertEquals("{\"time\":1001,\"type\":\"delay\",\"thread\":8,\"site\":\"" + site.getName()
+                + "\",\"ordinal\":4,\"delayNanos\":5000000}", lines.get(1));
+        assertEquals("{\"time\":1002,\"type\":\"transform\",\"thread\":9,\"text\":\"a/\\\"Quoted\\\"\\u000a\"}",
+                lines.get(2));
+        Files.delete(path);
+    }
+
+    @Test
+    public void linesLongerThanTheBufferAreWrittenWhole() throws IOException {
+        Path path = Files.createTempFile("faulty", ".ndjson");
+        NdjsonSink sink = new NdjsonSink(path);
+        String text = "x".repeat(100_000);
+        for (int i = 0; i < 3; i++)
+            sink.accept(EventLog.INJECT, i, 1, -1, 0, 0, text);
+        sink.close();
+
+        List<String> lines = Files.readAllLines(path, StandardCharsets.UTF_8);
+        assertEquals(3, lines.size());
+        for (int i = 0; i < 3; i++)
+            assertEquals("{\"time\":" + i + ",\"type\":\"inject\",\"thread\":1,\"text\":\"" + text + "\"}", lines.get(i));
+        Files.delete(path);
+    }
+}
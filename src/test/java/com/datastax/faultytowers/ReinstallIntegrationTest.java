@@ -0,0 +1,73 @@
+package com.datastax.faultytowers;
+
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ReinstallIntegrationTest {
+    private static final String SITE = "com/datastax/faultytowers/Reinstalled.throwGuardedCheckedException()V";
+
+    private static boolean throwsCheckedException() {
+        try {
+            Reinstalled.throwGuardedCheckedException();
+            return false;
+        } catch (Utils.CheckedException e) {
+            return true;
+        }
+    }
+
+    private static String options(Path record, long limit) {
+        return AgentOptions.PROBABILITY + "=1.0," + AgentOptions.LIMIT + "=" + limit + "," + AgentOptions.RECORD + "="
+                + record;
+    }
+
+    @Test
+    public void reinstalledAgentStartsFromItsOwnOptions() throws Exception {
+        Path firstRecord = Files.createTempFile("faulty", ".replay");
+        Path secondRecord = Files.createTempFile("faulty", ".replay");
+
+        FaultyTowers.installAgent(options(firstRecord, 5));
+        try {
+            assertTrue("Failed to throw CheckedException", throwsCheckedException());
+            ExceptionThrower.setProbability("com.datastax.faultytowers.Reinstalled", 0.0);
+            assertEquals(1, InjectionSites.getThrowCount(InjectionSites.get(SITE).getId()));
+        } finally {
+            FaultyTowers.removeAgent();
+        }
+
+        FaultyTowers.installAgent(options(secondRecord, 1));
+        try {
+            assertEquals(1, ExceptionThrower.getThrowLimit());
+            InjectionSite site = InjectionSites.get(SITE);
+            assertEquals(0, InjectionSites.getThrowCount(site.getId()));
+            assertNull(site.getReplayOrdinals());
+            // The probability override of the first agent is gone
+            assertTrue("Failed to throw CheckedException", throwsCheckedException());
+            assertEquals(1, InjectionSites.getThrowCount(site.getId()));
+        } finally {
+            FaultyTowers.removeAgent();
+        }
+
+        // Each agent recorded its own throw to its own file
+        for (Path record : List.of(firstRecord, secondRecord)) {
+            List<String> lines = Files.readAllLines(record);
+            assertTrue(lines.toString(), lines.stream().anyMatch(line -> line.contains(" " + SITE + " ")));
+            Files.delete(record);
+        }
+    }
+}
+
+// A top level class, because nested classes are never instrumented
+class Reinstalled {
+    static void throwGuardedCheckedException() throws Utils.CheckedException {
+        // noinspection ConstantConditions
+        if (false)
+            throw new Utils.CheckedException();
+    }
+}
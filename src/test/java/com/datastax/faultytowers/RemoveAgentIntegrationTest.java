@@ -0,0 +1,46 @@
+package com.datastax.faultytowers;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RemoveAgentIntegrationTest {
+
+    private static boolean throwsCheckedException() {
+        try {
+            Guarded.throwGuardedCheckedException();
+            return false;
+        } catch (Utils.CheckedException e) {
+            return true;
+        }
+    }
+
+    @Test
+    public void removeAgentRestoresOriginalBytecode() {
+        FaultyTowers.installAgent(1.0);
+        try {
+            assertTrue("Failed to throw CheckedException", throwsCheckedException());
+        } finally {
+            FaultyTowers.removeAgent();
+        }
+
+        long oldThrowLimit = ExceptionThrower.getThrowLimit();
+        ExceptionThrower.setThrowLimit(Long.MAX_VALUE);
+        try {
+            assertFalse("Threw CheckedException after the agent was removed", throwsCheckedException());
+        } finally {
+            ExceptionThrower.setThrowLimit(oldThrowLimit);
+        }
+    }
+}
+
+// Only loaded once the agent is installed, so that it is transformed on first use. Nested classes are never
+// instrumented, so this has to be a top level class.
+class Guarded {
+    static void throwGuardedCheckedException() throws Utils.CheckedException {
+        // noinspection ConstantConditions
+        if (false)
+            throw new Utils.CheckedException();
+    }
+}
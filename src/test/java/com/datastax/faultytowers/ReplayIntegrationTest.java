@@ -0,0 +1,66 @@
+package com.datastax.faultytowers;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class ReplayIntegrationTest {
+    private static final int CALLS = 20;
+
+    private static void callRepeatedly() throws Utils.CheckedException {
+        for (int i = 0; i < CALLS; i++)
+            Replayed.delayCheckedException();
+    }
+
+    private static List<String> recordedFaults(Path record) throws IOException {
+        return Files.readAllLines(record).stream().filter(line -> !line.startsWith("#")).collect(Collectors.toList());
+    }
+
+    @Test
+    public void recordedDelaysAreReplayed() throws Exception {
+        Path first = Files.createTempFile("faulty", ".replay");
+        Path second = Files.createTempFile("faulty", ".replay");
+        String latency = AgentOptions.LATENCY + "=fixed:1ms," + AgentOptions.LIMIT + "=" + CALLS;
+
+        // Leave the classes that are already loaded alone, so that only Replayed is instrumented
+        FaultyTowers.installAgent(AgentOptions.PROBABILITY + "=0.5," + AgentOptions.MODE + "="
+                + AgentOptions.MODE_RUNTIME + "," + AgentOptions.LOADED + "=false," + AgentOptions.RECORD + "=" + first
+                + "," + latency);
+        try {
+            callRepeatedly();
+        } finally {
+            FaultyTowers.removeAgent();
+        }
+        List<String> recorded = recordedFaults(first);
+        assertFalse("Recorded no delays", recorded.isEmpty());
+
+        // Replayed has been loaded by now, and only the sites in the replay file are instrumented
+        FaultyTowers.installAgent(AgentOptions.REPLAY + "=" + first + "," + AgentOptions.RECORD + "=" + second + ","
+                + latency);
+        try {
+            callRepeatedly();
+        } finally {
+            FaultyTowers.removeAgent();
+        }
+        assertEquals(recorded, recordedFaults(second));
+
+        Files.delete(first);
+        Files.delete(second);
+    }
+}
+
+// A top level class, because nested classes are never instrumented
+class Replayed {
+    static void delayCheckedException() throws Utils.CheckedException {
+        // noinspection ConstantConditions
+        if (false)
+            throw new Utils.CheckedException();
+    }
+}
@@ -0,0 +1,79 @@
+package com.datastax.faultytowers;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ReplayPlanTest {
+
+    @Test
+    public void recordedThrowsAndDelaysCanBeReplayed() throws IOException {
+        InjectionSite site = InjectionSites.register("a/Replay", "read", "(I)V", "java/io/IOException");
+        Path path = Files.createTempFile("faulty", ".replay");
+
+        ReplayRecorder recorder = new ReplayRecorder(path, 42);
+        recorder.accept(EventLog.TRANSFORM, 0, 1, -1, 0, 0, "a/Replay");
+        recorder.accept(EventLog.THROW, 0, 1, site.getId(), 3, 0, null);
+        recorder.accept(EventLog.DELAY, 0, 1, site.getId(), 9, 1000000, null);
+        recorder.accept(EventLog.THROW, 0, 1, site.getId(), 17, 0, null);
+        recorder.close();
+
+        ReplayPlan plan = ReplayPlan.load(path);
+        assertEquals(1, plan.size());
+        assertTrue(plan.contains("a/Replay.read(I)V"));
+        assertFalse(plan.contains("a/Replay.read()V"));
+        assertEquals("{3, 9, 17}", plan.getOrdinals("a/Replay.read(I)V").toString());
+        Files.delete(path);
+    }
+
+    @Test
+    public void incompleteRecordingsAreRejected() throws IOException {
+        InjectionSite site = InjectionSites.register("a/Replay", "write", "()V", "java/io/IOException");
+        Path path = Files.createTempFile("faulty", ".replay");
+
+        ReplayRecorder recorder = new ReplayRecorder(path, 42);
+        recorder.accept(EventLog.THROW, 0, 1, site.getId(), 3, 0, null);
+        recorder.accept(EventLog.DROPPED, 0, 1, -1, 0, 5, null);
+        recorder.close();
+
+        try {
+            ReplayPlan.load(path);
+            fail("Loaded an incomplete recording");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("incomplete"));
+        }
+        Files.delete(path);
+    }
+
+    @Test
+    public void ordinalsBelowOneAreRejected() throws IOException {
+        Path path = Files.createTempFile("faulty", ".replay");
+        for (String ordinal : new String[] {"0", "-3"}) {
+            Files.write(path, List.of("# faulty-towers replay seed=42",
+                    "0 a/Replay.read(I)V java/io/IOException " + ordinal));
+            try {
+                ReplayPlan.load(path);
+                fail("Loaded hit ordinal " + ordinal);
+            } catch (IOException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains(":2: bad hit ordinal '" + ordinal + "'"));
+            }
+        }
+        Files.delete(path);
+    }
+
+    @Test
+    public void siteRandomOnlyDependsOnSeedAndSite() {
+        assertEquals(SiteRandom.uniform(42, "a/B.c()V"), SiteRandom.uniform(42, "a/B.c()V"), 0.0);
+        assertNotEquals(SiteRandom.uniform(42, "a/B.c()V"), SiteRandom.uniform(43, "a/B.c()V"), 0.0);
+        assertNotEquals(SiteRandom.uniform(42, "a/B.c()V"), SiteRandom.uniform(42, "a/B.d()V"), 0.0);
+    }
+}
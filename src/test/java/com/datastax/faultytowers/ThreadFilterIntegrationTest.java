@@ -0,0 +1,64 @@
+package com.datastax.faultytowers;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ThreadFilterIntegrationTest {
+
+    private static long oldThrowLimit;
+
+    @BeforeClass
+    public static void setUp() {
+        oldThrowLimit = ExceptionThrower.getThrowLimit();
+        ExceptionThrower.setThrowLimit(100);
+        FaultyTowers.installAgent(AgentOptions.PROBABILITY + "=1.0," + AgentOptions.LOADED + "=false,"
+                + AgentOptions.THREADS + "=targeted-*");
+    }
+
+    @AfterClass
+    public static void tearDown() {
+        FaultyTowers.removeAgent();
+        ExceptionThrower.setThrowLimit(oldThrowLimit);
+    }
+
+    private static boolean throwsOn(String threadName) throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor(r -> new Thread(r, threadName));
+        try {
+            return executor.submit(Targeted::throwsOnce).get();
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void sitesOnlyThrowOnTargetedThreads() throws Exception {
+        assertTrue("Failed to throw on a targeted thread", throwsOn("targeted-1"));
+        assertFalse("Threw on a thread that is not targeted", throwsOn("other-1"));
+        assertFalse("Threw on a thread that is not targeted", Targeted.throwsOnce());
+    }
+}
+
+// A top level class, because nested classes are never instrumented
+class Targeted {
+    static boolean throwsOnce() {
+        try {
+            site();
+            return false;
+        } catch (Utils.CheckedException e) {
+            return true;
+        }
+    }
+
+    static void site() throws Utils.CheckedException {
+        // noinspection ConstantConditions
+        if (false)
+            throw new Utils.CheckedException();
+    }
+}
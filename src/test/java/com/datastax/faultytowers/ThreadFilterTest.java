@@ -0,0 +1,71 @@
+package com.datastax.faultytowers;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ThreadFilterTest {
+
+    @After
+    public void tearDown() {
+        ThreadFilter.setCurrent(null);
+    }
+
+    @Test
+    public void namesMatchGlobs() {
+        ThreadFilter filter = ThreadFilter.parse("ReadStage-*| Mutation?Stage |a.b");
+        assertTrue(filter.matches(new Thread("ReadStage-12")));
+        assertTrue(filter.matches(new Thread("MutationXStage")));
+        assertTrue(filter.matches(new Thread("a.b")));
+        assertFalse(filter.matches(new Thread("ReadStage")));
+        assertFalse(filter.matches(new Thread("MutationStage")));
+        assertFalse(filter.matches(new Thread("aXb")));
+        assertEquals("ReadStage-*|Mutation?Stage|a.b", filter.toString());
+    }
+
+    @Test
+    public void groupsMatchTheThreadsGroupOrAnyAbove() {
+        ThreadGroup pool = new ThreadGroup("pool");
+        ThreadGroup workers = new ThreadGroup(pool, "workers");
+        ThreadFilter filter = ThreadFilter.parse("group:pool");
+        assertTrue(filter.matches(new Thread(pool, "a")));
+        assertTrue(filter.matches(new Thread(workers, "b")));
+        assertFalse(filter.matches(new Thread("pool")));
+    }
+
+    @Test
+    public void eachThreadKeepsItsResultUntilTheFilterChanges() throws InterruptedException {
+        assertTrue(ThreadFilter.allows());
+
+        Thread current = Thread.currentThread();
+        String name = current.getName();
+        try {
+            current.setName("targeted");
+            ThreadFilter.setCurrent(ThreadFilter.parse("targeted"));
+            assertTrue(ThreadFilter.allows());
+            AtomicBoolean otherAllowed = new AtomicBoolean(true);
+            Thread other = new Thread(() -> otherAllowed.set(ThreadFilter.allows()), "other");
+            other.start();
+            other.join();
+            assertFalse(otherAllowed.get());
+
+            // A renamed thread keeps its result until the filter changes
+            current.setName("renamed");
+            assertTrue(ThreadFilter.allows());
+            ThreadFilter.setCurrent(ThreadFilter.parse("targeted"));
+            assertFalse(ThreadFilter.allows());
+        } finally {
+            current.setName(name);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void emptySpecIsRejected() {
+        ThreadFilter.parse(" | ");
+    }
+}
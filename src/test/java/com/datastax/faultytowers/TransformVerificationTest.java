@@ -0,0 +1,194 @@
+package com.datastax.faultytowers;
+
+import com.google.common.collect.ImmutableList;
+import org.apache.commons.cli.Options;
+import org.hamcrest.Matcher;
+import org.junit.Test;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.InvokeDynamicInsnNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.analysis.Analyzer;
+import org.objectweb.asm.tree.analysis.AnalyzerException;
+import org.objectweb.asm.tree.analysis.BasicInterpreter;
+import org.objectweb.asm.tree.analysis.BasicValue;
+import org.objectweb.asm.tree.analysis.Frame;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Injects into every candidate method, and marks every method as an entry point, of the libraries on
+ * the test class path, both those new enough for invokedynamic and those that are not, and of some of
+ * the JDK's modules. The JVM then verifies every rewritten class, and the maximum stack size of every
+ * rewritten method is checked to be exact.
+ */
+public class TransformVerificationTest {
+    private static final Class<?>[] LIBRARIES = {ImmutableList.class, Options.class, Matcher.class,
+            ClassReader.class};
+    // Large bodies of real code that ship with every JDK. Unlike java.*, their packages can be defined
+    // again by another class loader.
+    private static final List<String> JDK_MODULES = List.of("jdk.compiler", "java.xml");
+    private static final List<String> INCLUDES = List.of("com/google/", "org/apache/commons/cli/", "org/hamcrest/",
+            "org/objectweb/asm/", "com/sun/tools/javac/", "com/sun/org/apache/", "javax/");
+    private static final String THROWER_CLASS_NAME = ExceptionThrower.class.getName().replace('.', '/');
+    private static final String CALL_SCOPE_CLASS_NAME = CallScope.class.getName().replace('.', '/');
+
+    @Test
+    public void rewrittenLibraryClassesVerifyWithExactStackSizes() throws Exception {
+        Map<String, byte[]> classFiles = new HashMap<>();
+        for (Class<?> library : LIBRARIES)
+            readJar(library, classFiles);
+        for (String module : JDK_MODULES)
+            readModule(module, classFiles);
+
+        ExceptionThrower thrower = new ExceptionThrower(1.0, 42, null, false);
+        thrower.setClassFilter(ClassNameFilter.of(INCLUDES, Collections.emptyList()));
+        // Every method is an entry point too, so that every method gets the handler that marks its exit
+        thrower.setEntryPoints(EntryPoints.parse(String.join(EntryPoints.SEPARATOR, INCLUDES)));
+        ClassLoader loader = getClass().getClassLoader();
+        Map<String, byte[]> transformed = new HashMap<>();
+        List<String> inexact = new ArrayList<>();
+        int methods = 0;
+        ExceptionThrower.enableMetrics(false, true);
+        try {
+            for (Map.Entry<String, byte[]> entry : classFiles.entrySet()) {
+                String className = entry.getKey().replace('.', '/');
+                byte[] classFile = thrower.transform(loader, className, null, null, entry.getValue());
+                if (classFile == null)
+                    continue;
+                transformed.put(entry.getKey(), classFile);
+                methods += checkMaxStack(classFile, inexact);
+            }
+        } finally {
+            ExceptionThrower.enableMetrics(false, false);
+            thrower.setEntryPoints(null);
+        }
+        assertTrue("Only " + transformed.size() + " classes were rewritten", transformed.size() > 1000);
+        assertTrue(methods > transformed.size());
+        assertEquals(new ArrayList<>(), inexact);
+
+        // Defining the classes apart from their originals makes the JVM verify each one as it is linked
+        Map<String, byte[]> corpus = new HashMap<>(classFiles);
+        corpus.putAll(transformed);
+        CorpusLoader corpusLoader = new CorpusLoader(corpus);
+        List<String> failures = new ArrayList<>();
+        int linked = 0;
+        for (String name : transformed.keySet()) {
+            try {
+                Class.forName(name, false, corpusLoader).getDeclaredMethods();
+                linked++;
+            } catch (VerifyError | ClassFormatError e) {
+                failures.add(name + ": " + e.getMessage());
+            } catch (LinkageError e) {
+                // An optional dependency of the library that is not on the class path
+            }
+        }
+        assertEquals(new ArrayList<>(), failures);
+        assertTrue("Only " + linked + " classes were linked", linked > 1000);
+    }
+
+    private static void readJar(Class<?> library, Map<String, byte[]> classFiles)
+            throws IOException, URISyntaxException {
+        Path path = Path.of(library.getProtectionDomain().getCodeSource().getLocation().toURI());
+        try (JarFile jar = new JarFile(path.toFile())) {
+            Enumeration<JarEntry> entries = jar.entries();
+            while (entries.hasMoreElements()) {
+                String name = entries.nextElement().getName();
+                if (!name.endsWith(".class") || name.endsWith("module-info.class") || name.startsWith("META-INF/"))
+                    continue;
+                classFiles.put(name.substring(0, name.length() - ".class".length()).replace('/', '.'),
+                        jar.getInputStream(jar.getJarEntry(name)).readAllBytes());
+            }
+        }
+    }
+
+    private static void readModule(String module, Map<String, byte[]> classFiles) throws IOException {
+        Path root = FileSystems.getFileSystem(URI.create("jrt:/")).getPath("modules", module);
+        try (Stream<Path> paths = Files.walk(root)) {
+            for (Path path : (Iterable<Path>) paths::iterator) {
+                String name = root.relativize(path).toString();
+                if (!name.endsWith(".class") || name.endsWith("module-info.class") || name.startsWith("java/"))
+                    continue;
+                classFiles.put(name.substring(0, name.length() - ".class".length()).replace('/', '.'),
+                        Files.readAllBytes(path));
+            }
+        }
+    }
+
+    // Returns the number of rewritten methods, adding those whose maximum stack size is not exact to inexact
+    private static int checkMaxStack(byte[] classFile, List<String> inexact) throws AnalyzerException {
+        ClassNode node = new ClassNode();
+        new ClassReader(classFile).accept(node, 0);
+        int methods = 0;
+        for (MethodNode method : node.methods) {
+            if (!isRewritten(method))
+                continue;
+            methods++;
+            Frame<BasicValue>[] frames = new Analyzer<>(new BasicInterpreter()).analyze(node.name, method);
+            int maxStack = 0;
+            for (Frame<BasicValue> frame : frames) {
+                if (frame == null)
+                    continue;
+                int size = 0;
+                for (int i = 0; i < frame.getStackSize(); i++)
+                    size += frame.getStack(i).getSize();
+                maxStack = Math.max(maxStack, size);
+            }
+            if (method.maxStack != maxStack)
+                inexact.add(node.name + "." + method.name + method.desc + " " + method.maxStack + " != " + maxStack);
+        }
+        return methods;
+    }
+
+    private static boolean isRewritten(MethodNode method) {
+        for (AbstractInsnNode instruction : method.instructions) {
+            if (instruction instanceof InvokeDynamicInsnNode)
+                return ((InvokeDynamicInsnNode) instruction).name.equals("throwException");
+            if (instruction instanceof MethodInsnNode) {
+                String owner = ((MethodInsnNode) instruction).owner;
+                return owner.equals(THROWER_CLASS_NAME) || owner.equals(CALL_SCOPE_CLASS_NAME);
+            }
+        }
+        return false;
+    }
+
+    private static final class CorpusLoader extends ClassLoader {
+        private final Map<String, byte[]> classFiles;
+
+        CorpusLoader(Map<String, byte[]> classFiles) {
+            super(TransformVerificationTest.class.getClassLoader());
+            this.classFiles = classFiles;
+        }
+
+        // Child first, so that the classes of a library only ever see each other's rewritten versions
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            byte[] classFile = classFiles.get(name);
+            if (classFile == null)
+                return super.loadClass(name, resolve);
+            synchronized (getClassLoadingLock(name)) {
+                Class<?> c = findLoadedClass(name);
+                return c != null ? c : defineClass(name, classFile, 0, classFile.length);
+            }
+        }
+    }
+}